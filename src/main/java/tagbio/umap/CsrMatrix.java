@@ -7,6 +7,8 @@ package tagbio.umap;
 
 import java.util.Arrays;
 
+import tagbio.umap.metric.Metric;
+
 /**
  * A form of sparse matrix where only non-zero entries are explicitly recorded.
  * This format is compatible with the Python scipy <code>csr_matrix</code> format.
@@ -18,12 +20,32 @@ class CsrMatrix extends Matrix {
   private final int[] mIndptr;  // indptr[row] to indptr[row + 1] locations of cols in indices
   private final int[] mIndices; // positions of actual data
   private final float[] mData;
+  // Dense scratch row per thread, only used for metrics without a sparse implementation
+  private final ThreadLocal<float[][]> mScratch;
 
   CsrMatrix(final float[] data, final int[] indptr, final int[] indices, final int rowCount, final int colCount) {
     super(rowCount, colCount);
     mIndptr = indptr;
     mIndices = indices;
     mData = data;
+    mScratch = ThreadLocal.withInitial(() -> new float[2][colCount]);
+  }
+
+  /**
+   * Construct a matrix from arrays in the compressed sparse row format of
+   * <code>Umap.fitTransform</code>, checking that they are consistent.
+   * @param indptr start of each row in <code>indices</code> and <code>data</code>
+   * @param indices column of each nonzero value
+   * @param data nonzero values
+   * @param cols number of columns
+   * @return matrix
+   * @throws IllegalArgumentException if the arrays are inconsistent.
+   */
+  static CsrMatrix fromArrays(final int[] indptr, final int[] indices, final float[] data, final int cols) {
+    if (indices.length != data.length || indptr[indptr.length - 1] != data.length) {
+      throw new IllegalArgumentException("Inconsistent sparse matrix arrays");
+    }
+    return new CsrMatrix(data, indptr, indices, indptr.length - 1, cols);
   }
 
   @Override
@@ -43,6 +65,47 @@ class CsrMatrix extends Matrix {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  float[] row(final int row) {
+    return row(row, new float[cols()]);
+  }
+
+  @Override
+  float[] row(final int row, final float[] scratch) {
+    Arrays.fill(scratch, 0);
+    for (int p = mIndptr[row]; p < mIndptr[row + 1]; ++p) {
+      scratch[mIndices[p]] = mData[p];
+    }
+    return scratch;
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final int j) {
+    if (Sparse.isSupported(metric)) {
+      return Sparse.distance(metric, mIndices, mData, mIndptr[i], mIndptr[i + 1], mIndices, mData, mIndptr[j], mIndptr[j + 1]);
+    }
+    final float[][] scratch = mScratch.get();
+    return metric.distance(row(i, scratch[0]), row(j, scratch[1]));
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y) {
+    return distance(metric, i, y, prepareQuery(metric, y));
+  }
+
+  @Override
+  double[] prepareQuery(final Metric metric, final float[] y) {
+    return Sparse.isSupported(metric) ? new double[] {Sparse.prepare(metric, y)} : null;
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y, final double[] yPrepared) {
+    if (yPrepared != null) {
+      return Sparse.distance(metric, mIndices, mData, mIndptr[i], mIndptr[i + 1], y, yPrepared[0]);
+    }
+    return metric.distance(row(i, mScratch.get()[0]), y);
+  }
+
   @Override
   boolean isFinite() {
     for (final float v : mData) {
@@ -58,6 +121,15 @@ class CsrMatrix extends Matrix {
     return new CsrMatrix(Arrays.copyOf(mData, mData.length), Arrays.copyOf(mIndptr, mIndptr.length), Arrays.copyOf(mIndices, mIndices.length), rows(), cols());
   }
 
+  @Override
+  CooMatrix toCoo() {
+    final int[] row = new int[mData.length];
+    for (int r = 0; r < rows(); ++r) {
+      Arrays.fill(row, mIndptr[r], mIndptr[r + 1], r);
+    }
+    return new CooMatrix(Arrays.copyOf(mData, mData.length), row, Arrays.copyOf(mIndices, mIndices.length), rows(), cols());
+  }
+
   @Override
   CsrMatrix toCsr() {
     return this;
@@ -7,6 +7,8 @@ package tagbio.umap;
 
 import java.util.Arrays;
 
+import tagbio.umap.metric.Metric;
+
 /**
  * Default matrix implementation backed by a square matrix.
  * @author Sean A. Irvine
@@ -76,6 +78,31 @@ class DefaultMatrix extends Matrix {
     return mData[row];
   }
 
+  @Override
+  float[] row(final int row, final float[] scratch) {
+    return mData[row];
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final int j) {
+    return metric.distance(mData[i], mData[j]);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y) {
+    return metric.distance(mData[i], y);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final int j, final double[] jPrepared, final int jPreparedOffset) {
+    return metric.distance(mData[i], iPrepared, iPreparedOffset, mData[j], jPrepared, jPreparedOffset);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    return metric.distance(mData[i], iPrepared, iPreparedOffset, y, yPrepared, yPreparedOffset);
+  }
+
   @Override
   Matrix eliminateZeros() {
     // There is nothing to be done in this implementation (zeros cannot be removed)
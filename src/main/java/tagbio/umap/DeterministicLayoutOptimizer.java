@@ -0,0 +1,163 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Stochastic gradient descent optimization of an embedding.
+ * Deterministic parallel version.  The head vertices are divided into blocks
+ * of a fixed size, each block owning the 1-simplices with heads in the block
+ * and having its own random number generator for each epoch.  During an epoch
+ * all reads of the tail embedding are from a snapshot taken at the start of the
+ * epoch, and moves of the tail vertices are deferred until the end of the epoch
+ * when they are applied in 1-simplex order.  The result depends only on the
+ * random number generator and not on the number of threads.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class DeterministicLayoutOptimizer extends LayoutOptimizer {
+
+  // Number of head vertices in a block; must not depend on the number of threads
+  private static final int BLOCK_SIZE = 256;
+
+  private final int mThreads;
+  private final int mBlocks;
+  private final int[] mBlockPtr;   // edges of block b are mBlockEdges[mBlockPtr[b]] to mBlockEdges[mBlockPtr[b + 1] - 1]
+  private final int[] mBlockEdges;
+  private final int[] mTailPtr;    // edges with tail k are mTailEdges[mTailPtr[k]] to mTailEdges[mTailPtr[k + 1] - 1]
+  private final int[] mTailEdges;
+  private final float[] mSnapshot;
+  private final float[] mTailDelta;
+  private final int[] mFired;      // last epoch in which each edge was sampled
+
+  /**
+   * Construct a deterministic optimizer for the given embeddings and 1-simplices.
+   * See <code>LayoutOptimizer</code> for a description of the parameters.
+   * @param threads number of threads
+   */
+  DeterministicLayoutOptimizer(final FlatMatrix headEmbedding, final FlatMatrix tailEmbedding, final int[] head, final int[] tail, final int nVertices, final float[] epochsPerSample, final float a, final float b, final float gamma, final float negativeSampleRate, final boolean moveOther, final int threads) {
+    super(headEmbedding, tailEmbedding, head, tail, nVertices, epochsPerSample, a, b, gamma, negativeSampleRate, moveOther);
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    mThreads = threads;
+    mBlocks = (headEmbedding.rows() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    mBlockPtr = new int[mBlocks + 1];
+    mBlockEdges = groupEdges(head, BLOCK_SIZE, mBlockPtr);
+    if (mMoveOther) {
+      mTailPtr = new int[tailEmbedding.rows() + 1];
+      mTailEdges = groupEdges(tail, 1, mTailPtr);
+      mSnapshot = new float[mTailData.length];
+      mTailDelta = new float[tail.length * mDim];
+      mFired = new int[tail.length];
+      Arrays.fill(mFired, -1);
+    } else {
+      mTailPtr = null;
+      mTailEdges = null;
+      mSnapshot = null;
+      mTailDelta = null;
+      mFired = null;
+    }
+  }
+
+  // Stable counting sort of edge numbers by vertex / groupSize
+  private static int[] groupEdges(final int[] vertices, final int groupSize, final int[] ptr) {
+    for (final int v : vertices) {
+      ++ptr[v / groupSize + 1];
+    }
+    for (int k = 1; k < ptr.length; ++k) {
+      ptr[k] += ptr[k - 1];
+    }
+    final int[] pos = Arrays.copyOf(ptr, ptr.length - 1);
+    final int[] edges = new int[vertices.length];
+    for (int i = 0; i < vertices.length; ++i) {
+      edges[pos[vertices[i] / groupSize]++] = i;
+    }
+    return edges;
+  }
+
+  @Override
+  FlatMatrix optimize(final int nEpochs, final float initialAlpha, final Random random) {
+    final EdgeSchedule[] schedules = new EdgeSchedule[mBlocks];
+    for (int blk = 0; blk < mBlocks; ++blk) {
+      schedules[blk] = new EdgeSchedule(mEpochOfNextSample, Arrays.copyOfRange(mBlockEdges, mBlockPtr[blk], mBlockPtr[blk + 1]), nEpochs);
+    }
+    float alpha = initialAlpha;
+    for (int n = 0; n < nEpochs; ++n) {
+      final int epoch = n;
+      final float epochAlpha = alpha;
+      if (mMoveOther) {
+        Utils.parallelFor(mSnapshot.length, mThreads, (lo, hi) -> System.arraycopy(mTailData, lo, mSnapshot, lo, hi - lo));
+      }
+      final Random[] randoms = Utils.splitRandom(random, mBlocks);
+      Utils.parallelFor(mBlocks, mThreads, (lo, hi) -> {
+        for (int blk = lo; blk < hi; ++blk) {
+          optimizeBlock(epoch, epochAlpha, schedules[blk], randoms[blk]);
+        }
+      });
+      if (mMoveOther) {
+        Utils.parallelFor(mTailEmbedding.rows(), mThreads, (lo, hi) -> applyTailMoves(epoch, lo, hi));
+      }
+      alpha = initialAlpha * (1 - (float) n / (float) nEpochs);
+      epochCompleted(n, nEpochs);
+    }
+    return mHeadEmbedding;
+  }
+
+  private void optimizeBlock(final int n, final float alpha, final EdgeSchedule schedule, final Random random) {
+    final int dim = mDim;
+    final float[] head = mHeadData;
+    final float[] tail = mMoveOther ? mSnapshot : mTailData;
+    final int due = schedule.due(n);
+    for (int s = 0; s < due; ++s) {
+      final int i = schedule.edge(s);
+      final int j = mHead[i];
+      final int c = j * dim;
+      final int o = mTail[i] * dim;
+
+      final float gradCoeff = mKernel.attractive(distSquared(head, c, tail, o, dim));
+      for (int d = 0; d < dim; ++d) {
+        final float gradD = Umap.clip(gradCoeff * (head[c + d] - tail[o + d]));
+        head[c + d] += gradD * alpha;
+        if (mMoveOther) {
+          mTailDelta[i * dim + d] = -gradD * alpha;
+        }
+      }
+      if (mMoveOther) {
+        mFired[i] = n;
+      }
+
+      mEpochOfNextSample[i] += mEpochsPerSample[i];
+
+      final int nNegSamples = (int) ((n - mEpochOfNextNegativeSample[i]) / mEpochsPerNegativeSample[i]);
+
+      for (int p = 0; p < nNegSamples; ++p) {
+        final int kr = random.nextInt(mNVertices);
+        repel(head, c, tail, kr * dim, j == kr, alpha);
+      }
+
+      mEpochOfNextNegativeSample[i] += nNegSamples * mEpochsPerNegativeSample[i];
+      schedule.reschedule(s, n);
+    }
+  }
+
+  private void applyTailMoves(final int n, final int lo, final int hi) {
+    final int dim = mDim;
+    for (int k = lo; k < hi; ++k) {
+      final int o = k * dim;
+      for (int e = mTailPtr[k]; e < mTailPtr[k + 1]; ++e) {
+        final int i = mTailEdges[e];
+        if (mFired[i] == n) {
+          for (int d = 0; d < dim; ++d) {
+            mTailData[o + d] += mTailDelta[i * dim + d];
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import tagbio.umap.metric.Metric;
+
+/**
+ * Nearest neighbor descent for a specified distance metric.
+ * Deterministic parallel version.  Work is divided into chunks of a fixed
+ * size, each with its own random number generator, and distances computed
+ * by the chunks are buffered and then merged into the heaps in a fixed
+ * order, a block of chunks at a time.  The result depends only on the random number generator and not
+ * on the number of threads.
+ * @author Leland McInnes (Python)
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class DeterministicNearestNeighborDescent extends NearestNeighborDescent {
+
+  // Number of vertices handled by a single chunk; must not depend on the number of threads
+  private static final int CHUNK_SIZE = 1024;
+  // Number of leaves handled by a single chunk during random projection tree initialization
+  private static final int LEAF_CHUNK_SIZE = 256;
+
+  private final int mThreads;
+
+  /**
+   * Construct a nearest neighbor descent object for the given metric.
+   * @param metric distance function
+   * @param threads number of threads
+   */
+  DeterministicNearestNeighborDescent(final Metric metric, final int threads) {
+    super(metric);
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    mThreads = threads;
+  }
+
+  @Override
+  IndexedDistances descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest) {
+    return descent(data, nNeighbors, random, maxCandidates, rpTreeInit, nIters, forest, 0.001F, 0.5F);
+  }
+
+  @Override
+  IndexedDistances descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest, final float delta, final float rho) {
+    final ExecutorService executor = SharedExecutor.acquire(mThreads);
+    try {
+      final int nVertices = data.rows();
+      final Heap currentGraph = new Heap(nVertices, nNeighbors);
+      final int nChunks = (nVertices + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      final HeapUpdates[] updates = HeapUpdates.create(HeapUpdates.BLOCK_SIZE / CHUNK_SIZE);
+
+      final Random[] initRandoms = Utils.splitRandom(random, nChunks);
+      HeapUpdates.computeAndApply(executor, mThreads, currentGraph, updates, nChunks, (chunk, u) -> {
+        final Random rand = initRandoms[chunk];
+        final int hi = Math.min((chunk + 1) * CHUNK_SIZE, nVertices);
+        for (int i = chunk * CHUNK_SIZE; i < hi; ++i) {
+          for (final int index : Utils.rejectionSample(nNeighbors, nVertices, rand)) {
+            u.add(i, index, data.distance(mMetric, i, index));
+          }
+        }
+      });
+      mProgress.step();
+
+      if (rpTreeInit) {
+        for (final FlatTree tree : forest) {
+          final int[][] leaves = tree.getIndices();
+          final int nLeafChunks = (leaves.length + LEAF_CHUNK_SIZE - 1) / LEAF_CHUNK_SIZE;
+          HeapUpdates.computeAndApply(executor, mThreads, currentGraph, updates, nLeafChunks, (chunk, u) -> {
+            final int hi = Math.min((chunk + 1) * LEAF_CHUNK_SIZE, leaves.length);
+            for (int l = chunk * LEAF_CHUNK_SIZE; l < hi; ++l) {
+              final int[] leaf = leaves[l];
+              for (int i = 0; i < leaf.length; ++i) {
+                for (int j = i + 1; j < leaf.length; ++j) {
+                  final float d = data.distance(mMetric, leaf[i], leaf[j]);
+                  if (d < currentGraph.weight(leaf[i], 0) || d < currentGraph.weight(leaf[j], 0)) {
+                    u.add(leaf[i], leaf[j], d);
+                  }
+                }
+              }
+            }
+          });
+        }
+      }
+      mProgress.step();
+
+      for (int n = 0; n < nIters; ++n) {
+        if (mVerbose) {
+          Utils.message("NearestNeighborDescent: " + (n + 1) + " / " + nIters);
+        }
+
+        final Heap candidateNeighbors = currentGraph.buildCandidates(nVertices, nNeighbors, maxCandidates, random);
+        final Random[] randoms = Utils.splitRandom(random, nChunks);
+
+        final int c = HeapUpdates.computeAndApply(executor, mThreads, currentGraph, updates, nChunks, (chunk, u) -> {
+          final Random rand = randoms[chunk];
+          final boolean[] rejectStatus = new boolean[maxCandidates];
+          final int hi = Math.min((chunk + 1) * CHUNK_SIZE, nVertices);
+          for (int i = chunk * CHUNK_SIZE; i < hi; ++i) {
+            for (int j = 0; j < maxCandidates; ++j) {
+              rejectStatus[j] = rand.nextFloat() < rho;
+            }
+
+            for (int j = 0; j < maxCandidates; ++j) {
+              final int p = candidateNeighbors.index(i, j);
+              if (p < 0) {
+                continue;
+              }
+              for (int k = 0; k <= j; ++k) {
+                final int q = candidateNeighbors.index(i, k);
+                if (q < 0 || (rejectStatus[j] && rejectStatus[k]) || (!candidateNeighbors.isNew(i, j) && !candidateNeighbors.isNew(i, k))) {
+                  continue;
+                }
+
+                final float d = data.distance(mMetric, p, q);
+                if (d < currentGraph.weight(p, 0) || d < currentGraph.weight(q, 0)) {
+                  u.add(p, q, d);
+                }
+              }
+            }
+          }
+        });
+
+        if (c <= delta * nNeighbors * nVertices) {
+          mProgress.step(nIters - n);
+          break;
+        }
+        mProgress.step();
+      }
+      return currentGraph.deheapSort();
+    } catch (final InterruptedException | ExecutionException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      SharedExecutor.release(executor);
+    }
+  }
+}
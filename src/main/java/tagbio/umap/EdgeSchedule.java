@@ -0,0 +1,112 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+
+/**
+ * Calendar of the epochs in which 1-simplices are next due to be sampled.
+ * Each 1-simplex is held in a linked list for the first epoch <code>n</code>
+ * satisfying <code>epochOfNextSample[i] &lt;= n</code>.  Collecting the
+ * <code>k</code> 1-simplices due in an epoch takes <code>O(k log k)</code> time
+ * for sorting them, independent of the total number of 1-simplices.
+ * The due 1-simplices of an epoch are delivered in increasing order, the
+ * same order as a scan.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class EdgeSchedule {
+
+  private final float[] mEpochOfNextSample;
+  private final int[] mEdges;   // 1-simplices handled by this schedule, increasing
+  private final int[] mBucket;  // first position due in each epoch, or -1
+  private final int[] mNext;    // next position due in the same epoch, or -1
+  private final int[] mDue;
+  private int mDueCount = 0;
+
+  /**
+   * Construct a schedule for the given 1-simplices.
+   * @param epochOfNextSample epoch of next sample for every 1-simplex
+   * @param edges 1-simplices handled by this schedule, in increasing order
+   * @param nEpochs number of epochs, no 1-simplex is scheduled on or after this epoch
+   */
+  EdgeSchedule(final float[] epochOfNextSample, final int[] edges, final int nEpochs) {
+    mEpochOfNextSample = epochOfNextSample;
+    mEdges = edges;
+    mBucket = new int[nEpochs];
+    Arrays.fill(mBucket, -1);
+    mNext = new int[edges.length];
+    mDue = new int[edges.length];
+    for (int p = edges.length - 1; p >= 0; --p) {
+      insert(p, 0);
+    }
+  }
+
+  /**
+   * Construct a schedule for a contiguous range of 1-simplices.
+   * @param epochOfNextSample epoch of next sample for every 1-simplex
+   * @param lo first 1-simplex
+   * @param hi upper bound (exclusive) on 1-simplices
+   * @param nEpochs number of epochs, no 1-simplex is scheduled on or after this epoch
+   */
+  EdgeSchedule(final float[] epochOfNextSample, final int lo, final int hi, final int nEpochs) {
+    this(epochOfNextSample, range(lo, hi), nEpochs);
+  }
+
+  private static int[] range(final int lo, final int hi) {
+    final int[] edges = new int[hi - lo];
+    for (int k = 0; k < edges.length; ++k) {
+      edges[k] = lo + k;
+    }
+    return edges;
+  }
+
+  private void insert(final int p, final int earliest) {
+    final double next = Math.ceil(mEpochOfNextSample[mEdges[p]]);
+    final int epoch = next > earliest ? (next < mBucket.length ? (int) next : mBucket.length) : earliest;
+    if (epoch < mBucket.length) {
+      mNext[p] = mBucket[epoch];
+      mBucket[epoch] = p;
+    }
+  }
+
+  /**
+   * Collect the 1-simplices due in the given epoch and remove them from the schedule.
+   * Epochs must be requested in increasing order.
+   * @param n epoch
+   * @return number of due 1-simplices
+   */
+  int due(final int n) {
+    // Collect the due positions then put them in increasing order
+    int count = 0;
+    for (int p = mBucket[n]; p >= 0; p = mNext[p]) {
+      mDue[count++] = p;
+    }
+    mBucket[n] = -1;
+    Arrays.sort(mDue, 0, count);
+    mDueCount = count;
+    return count;
+  }
+
+  /**
+   * Return a 1-simplex due in the current epoch.
+   * @param k index in the range from 0 to the count returned by <code>due</code>
+   * @return 1-simplex
+   */
+  int edge(final int k) {
+    return mEdges[mDue[k]];
+  }
+
+  /**
+   * Reinsert a due 1-simplex after its epoch of next sample has been advanced.
+   * @param k index in the range from 0 to the count returned by <code>due</code>
+   * @param n current epoch
+   */
+  void reschedule(final int k, final int n) {
+    assert k < mDueCount;
+    insert(mDue[k], n + 1);
+  }
+}
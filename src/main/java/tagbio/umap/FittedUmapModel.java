@@ -0,0 +1,513 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tagbio.umap.metric.Metric;
+import tagbio.umap.metric.PrecomputedMetric;
+
+/**
+ * The result of fitting UMAP to training data, able to transform new data
+ * into the embedded space.  The model is not changed by transforms, so
+ * transforms may be performed concurrently from any number of threads.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+public final class FittedUmapModel {
+
+  /** Number of new instances sharing a random source in transform. */
+  private static final int SEARCH_BLOCK_SIZE = 64;
+  /** Largest number of new instances handled by the lightweight transform. */
+  private static final int MICRO_BATCH_SIZE = 16;
+
+  private final Matrix mRawData;
+  private final FlatMatrix mEmbedding;
+  private final Metric mMetric;
+  private final boolean mSmallData;
+  private final List<FlatTree> mRpForest;
+  private final NearestNeighborSearch mSearch;
+  private final SearchGraph mSearchGraph;
+  private final int mRunNNeighbors;
+  private final int mLocalConnectivity;
+  private final float mTransformQueueSize;
+  private final Integer mNEpochs;
+  private final float mRunA;
+  private final float mRunB;
+  private final float mRepulsionStrength;
+  private final float mInitialAlpha;
+  private final int mNegativeSampleRate;
+  private final String mGradientKernel;
+  private final int mThreads;
+  private final boolean mParallelLayout;
+  private final boolean mDeterministic;
+  private final boolean mVerbose;
+  private final AtomicLong mSeed;
+  private volatile ExecutorService mExecutor = null;
+
+  FittedUmapModel(final Matrix rawData, final FlatMatrix embedding, final Metric metric, final boolean smallData, final List<FlatTree> rpForest, final NearestNeighborSearch search, final SearchGraph searchGraph,
+                  final int runNNeighbors, final int localConnectivity, final float transformQueueSize, final Integer nEpochs, final float runA, final float runB, final float repulsionStrength, final float initialAlpha, final int negativeSampleRate,
+                  final String gradientKernel, final int threads, final boolean parallelLayout, final boolean deterministic, final boolean verbose, final long seed) {
+    mRawData = rawData;
+    mEmbedding = embedding;
+    mMetric = metric;
+    mSmallData = smallData;
+    mRpForest = rpForest;
+    mSearch = search;
+    mSearchGraph = searchGraph;
+    mRunNNeighbors = runNNeighbors;
+    mLocalConnectivity = localConnectivity;
+    mTransformQueueSize = transformQueueSize;
+    mNEpochs = nEpochs;
+    mRunA = runA;
+    mRunB = runB;
+    mRepulsionStrength = repulsionStrength;
+    mInitialAlpha = initialAlpha;
+    mNegativeSampleRate = negativeSampleRate;
+    mGradientKernel = gradientKernel;
+    mThreads = threads;
+    mParallelLayout = parallelLayout;
+    mDeterministic = deterministic;
+    mVerbose = verbose;
+    mSeed = new AtomicLong(seed);
+  }
+
+  /**
+   * Set an executor on which to run the parallel stages of transforms.  The
+   * executor is not shut down by this model.  The number of threads given when
+   * the model was fit still determines how work is divided between tasks.
+   * By default, each transform creates a pool of threads for its duration.
+   * A fixed size executor must not be used from one of its own tasks.
+   * @param executor executor, or null for a pool per transform
+   */
+  public void setExecutor(final ExecutorService executor) {
+    mExecutor = executor;
+  }
+
+  /**
+   * Save this model to a file.  The model can subsequently be recovered with <code>load</code>.
+   * @param file destination file
+   * @throws IOException if an I/O error occurs.
+   * @throws IllegalArgumentException if the model was fit to sparse data or uses a
+   * metric that is not available by name.
+   */
+  public void save(final File file) throws IOException {
+    if (mRawData instanceof CsrMatrix) {
+      throw new IllegalArgumentException("Cannot save model fit to sparse data");
+    }
+    final String metric = Metric.getName(mMetric);
+    try (final ModelFile.Writer out = new ModelFile.Writer(file)) {
+      out.writeString(metric);
+      out.writeBoolean(mSmallData);
+      out.writeInt(mRunNNeighbors);
+      out.writeInt(mLocalConnectivity);
+      out.writeFloat(mTransformQueueSize);
+      out.writeInt(mNEpochs == null ? -1 : mNEpochs);
+      out.writeFloat(mRunA);
+      out.writeFloat(mRunB);
+      out.writeFloat(mRepulsionStrength);
+      out.writeFloat(mInitialAlpha);
+      out.writeInt(mNegativeSampleRate);
+      out.writeString(mGradientKernel);
+      out.writeInt(mThreads);
+      out.writeBoolean(mParallelLayout);
+      out.writeBoolean(mDeterministic);
+      out.writeBoolean(mVerbose);
+      out.writeLong(mSeed.get());
+      out.writeMatrix(mRawData);
+      // Prepared values are stored so that loading need not read every row
+      final double[] prepared = mRawData instanceof PreparedMatrix ? ((PreparedMatrix) mRawData).prepared() : new double[0];
+      out.writeInt(prepared.length);
+      out.writeDoubles(prepared);
+      out.writeMatrix(mEmbedding);
+      out.writeInt(mRpForest == null ? -1 : mRpForest.size());
+      if (mRpForest != null) {
+        for (final FlatTree tree : mRpForest) {
+          writeTree(out, tree);
+        }
+      }
+      out.writeBoolean(mSearchGraph != null);
+      if (mSearchGraph != null) {
+        out.writeInt(mSearchGraph.size());
+        out.writeInts(mSearchGraph.indptr());
+        out.writeInts(mSearchGraph.indices());
+      }
+    }
+  }
+
+  private static void writeTree(final ModelFile.Writer out, final FlatTree tree) throws IOException {
+    final float[][] hyperplanes = (float[][]) tree.getHyperplanes();
+    final int nodes = hyperplanes.length;
+    final int dim = nodes == 0 ? 0 : hyperplanes[0].length;
+    out.writeInt(nodes);
+    out.writeInt(dim);
+    final float[] flat = new float[nodes * dim];
+    final int[] children = new int[2 * nodes];
+    for (int k = 0; k < nodes; ++k) {
+      System.arraycopy(hyperplanes[k], 0, flat, k * dim, dim);
+      children[2 * k] = tree.getChildren()[k][0];
+      children[2 * k + 1] = tree.getChildren()[k][1];
+    }
+    out.writeFloats(flat);
+    out.writeFloats(tree.getOffsets());
+    out.writeInts(children);
+    // Leaves are written as their lengths followed by their concatenation
+    final int[][] leaves = tree.getIndices();
+    final int[] lengths = new int[leaves.length];
+    int total = 0;
+    for (int k = 0; k < leaves.length; ++k) {
+      lengths[k] = leaves[k].length;
+      total += lengths[k];
+    }
+    final int[] indices = new int[total];
+    for (int k = 0, pos = 0; k < leaves.length; pos += lengths[k++]) {
+      System.arraycopy(leaves[k], 0, indices, pos, lengths[k]);
+    }
+    out.writeInt(leaves.length);
+    out.writeInts(lengths);
+    out.writeInts(indices);
+  }
+
+  private static FlatTree readTree(final ModelFile.Reader in) throws IOException {
+    final int nodes = in.readInt();
+    final int dim = in.readInt();
+    final float[] flat = in.readFloats(nodes * dim);
+    final float[] offsets = in.readFloats(nodes);
+    final int[] children = in.readInts(2 * nodes);
+    final float[][] hyperplanes = new float[nodes][];
+    final int[][] childPairs = new int[nodes][];
+    for (int k = 0; k < nodes; ++k) {
+      hyperplanes[k] = Arrays.copyOfRange(flat, k * dim, (k + 1) * dim);
+      childPairs[k] = new int[] {children[2 * k], children[2 * k + 1]};
+    }
+    final int[] lengths = in.readInts(in.readInt());
+    int total = 0;
+    for (final int len : lengths) {
+      total += len;
+    }
+    final int[] indices = in.readInts(total);
+    final int[][] leaves = new int[lengths.length][];
+    for (int k = 0, pos = 0; k < leaves.length; pos += lengths[k++]) {
+      leaves[k] = Arrays.copyOfRange(indices, pos, pos + lengths[k]);
+    }
+    return new FlatTree(hyperplanes, offsets, childPairs, leaves);
+  }
+
+  /**
+   * Load a model previously saved with <code>save</code>.  The file is memory
+   * mapped and the training data is read directly from the mapping, so loading
+   * is fast even for large models.
+   * @param file model file
+   * @return model
+   * @throws IOException if an I/O error occurs or the file is not a valid model.
+   */
+  public static FittedUmapModel load(final File file) throws IOException {
+    try (final ModelFile.Reader in = new ModelFile.Reader(file)) {
+      final Metric metric = Metric.getMetric(in.readString());
+      final boolean smallData = in.readBoolean();
+      final int runNNeighbors = in.readInt();
+      final int localConnectivity = in.readInt();
+      final float transformQueueSize = in.readFloat();
+      final int nEpochs = in.readInt();
+      final float runA = in.readFloat();
+      final float runB = in.readFloat();
+      final float repulsionStrength = in.readFloat();
+      final float initialAlpha = in.readFloat();
+      final int negativeSampleRate = in.readInt();
+      final String gradientKernel = in.readString();
+      final int threads = in.readInt();
+      final boolean parallelLayout = in.readBoolean();
+      final boolean deterministic = in.readBoolean();
+      final boolean verbose = in.readBoolean();
+      final long seed = in.readLong();
+      final MappedMatrix mapped = in.readMappedMatrix();
+      final int preparedLength = in.readInt();
+      if (preparedLength != 0 && preparedLength != mapped.rows() * metric.preparedLength()) {
+        throw new IOException("Inconsistent prepared values in model file: " + file);
+      }
+      final Matrix rawData = preparedLength == 0 ? PreparedMatrix.prepare(mapped, metric) : new PreparedMatrix(mapped, metric, in.readDoubles(preparedLength));
+      final FlatMatrix embedding = in.readFlatMatrix();
+      final int trees = in.readInt();
+      List<FlatTree> rpForest = null;
+      if (trees >= 0) {
+        rpForest = new ArrayList<>();
+        for (int k = 0; k < trees; ++k) {
+          rpForest.add(readTree(in));
+        }
+      }
+      SearchGraph searchGraph = null;
+      NearestNeighborSearch search = null;
+      if (in.readBoolean()) {
+        final int[] indptr = in.readInts(in.readInt() + 1);
+        searchGraph = new SearchGraph(indptr, in.readInts(indptr[indptr.length - 1]));
+        search = new NearestNeighborSearch(metric);
+      }
+      return new FittedUmapModel(rawData, embedding, metric, smallData, rpForest, search, searchGraph,
+        runNNeighbors, localConnectivity, transformQueueSize, nEpochs < 0 ? null : nEpochs, runA, runB, repulsionStrength, initialAlpha, negativeSampleRate,
+        gradientKernel, threads, parallelLayout, deterministic, verbose, seed);
+    }
+  }
+
+  /**
+   * Transform instances into the embedded space.  Each call uses its own
+   * random source, taken from a sequence of seeds.
+   * @param instances array, shape <code>(nSamples, nFeatures)</code>
+   * New data to be transformed.
+   * @return array, shape <code>(nSamples, nComponents)</code>
+   * Embedding of the new data in low-dimensional space.
+   * @throws IllegalArgumentException If we fit just a single instance then error.
+   */
+  public float[][] transform(final float[][] instances) {
+    return transform(instances, mSeed.getAndIncrement());
+  }
+
+  /**
+   * Transform instances into the embedded space, using a random source with
+   * the given seed.  The result only depends on the model, the instances and the seed.
+   * @param instances array, shape <code>(nSamples, nFeatures)</code>
+   * New data to be transformed.
+   * @param seed random number seed
+   * @return array, shape <code>(nSamples, nComponents)</code>
+   * Embedding of the new data in low-dimensional space.
+   * @throws IllegalArgumentException If we fit just a single instance then error.
+   */
+  public float[][] transform(final float[][] instances, final long seed) {
+    return transform(new DefaultMatrix(instances), new Random(seed), UmapProgress.NONE).toArray();
+  }
+
+  /**
+   * Transform sparse instances into the embedded space.  The instances are
+   * given in the compressed sparse row format of
+   * <code>Umap.fitTransform(int[], int[], float[], int)</code>.  Each call uses
+   * its own random source, taken from a sequence of seeds.
+   * @param indptr start of each row in <code>indices</code> and <code>data</code>, of length <code>nSamples + 1</code>
+   * @param indices column of each nonzero value
+   * @param data nonzero values
+   * @param cols number of features in each sample
+   * @return array, shape <code>(nSamples, nComponents)</code>
+   * Embedding of the new data in low-dimensional space.
+   * @throws IllegalArgumentException If we fit just a single instance then error.
+   */
+  public float[][] transform(final int[] indptr, final int[] indices, final float[] data, final int cols) {
+    return transform(CsrMatrix.fromArrays(indptr, indices, data, cols), new Random(mSeed.getAndIncrement()), UmapProgress.NONE).toArray();
+  }
+
+  /**
+   * Transform a single instance into the embedded space.
+   * @param instance new instance
+   * @return embedding of the instance
+   */
+  public float[] transform(final float[] instance) {
+    return transform(new float[][] {instance})[0];
+  }
+
+  /**
+   * Given indices and weights and an original embeddings
+   * initialize the positions of new points relative to the
+   * indices and weights (of their neighbors in the source data).
+   * @param indices array of shape <code>(nNewSamples, nNeighbors)</code>
+   * The indices of the neighbors of each new sample
+   * @param weights array of shape <code>(nNewSamples, nNeighbors)</code>
+   * The membership strengths of associated 1-simplices
+   * for each of the new samples.
+   * @param embedding array of shape <code>(nSamples, dim)</code>
+   * The original embedding of the source data.
+   * @return array of shape <code>(nNewSamples, dim)</code>
+   * An initial embedding of the new sample points.
+   */
+  private static FlatMatrix initTransform(final int[][] indices, final float[][] weights, final FlatMatrix embedding) {
+    final int dim = embedding.cols();
+    final float[] result = new float[indices.length * dim];
+    for (int i = 0; i < indices.length; ++i) {
+      for (int j = 0; j < indices[i].length; ++j) {
+        for (int d = 0; d < dim; ++d) {
+          result[i * dim + d] += weights[i][j] * embedding.get(indices[i][j], d);
+        }
+      }
+    }
+    return new FlatMatrix(result, indices.length, dim);
+  }
+
+  // Approximate nearest training instances of new instances.  The new instances are
+  // divided into blocks, each with its own random source, and the blocks are searched
+  // in parallel.  The result does not depend on the number of threads.
+  private IndexedDistances searchNeighbors(final Matrix instances, final int threads, final Random random) {
+    final int n = instances.rows();
+    final Heap heap = new Heap(n, (int) (mRunNNeighbors * mTransformQueueSize));
+    final int blocks = (n + SEARCH_BLOCK_SIZE - 1) / SEARCH_BLOCK_SIZE;
+    final Random[] randoms = Utils.splitRandom(random, blocks);
+    Utils.parallelFor(blocks, threads, (lo, hi) -> {
+      for (int b = lo; b < hi; ++b) {
+        final int start = b * SEARCH_BLOCK_SIZE;
+        final int end = Math.min(start + SEARCH_BLOCK_SIZE, n);
+        NearestNeighborDescent.initialiseSearch(mRpForest, mRawData, instances, start, end, (int) (mRunNNeighbors * mTransformQueueSize), mSearch, heap, randoms[b]);
+        mSearch.initializedNndSearch(mRawData, mSearchGraph, heap, instances, start, end);
+      }
+    });
+    return heap.deheapSort(mRunNNeighbors);
+  }
+
+  // Transform of a few instances on the calling thread.  This follows the same steps
+  // as the general transform, but computes the membership strengths directly from
+  // the neighbors and optimizes each new point separately against the training
+  // embedding without copying it.
+  private Matrix transformMicroBatch(final Matrix instances, final Random random) {
+    final int n = instances.rows();
+    final int[][] indices;
+    final float[][] dists;
+    if (mSmallData) {
+      final IndexedDistances knn = Utils.fastKnn(PairwiseDistances.pairwiseDistances(instances, mRawData, mMetric, 1), mRunNNeighbors, 1);
+      indices = knn.getIndices();
+      dists = knn.getDistances();
+    } else {
+      final IndexedDistances result = searchNeighbors(instances, 1, random);
+      indices = result.getIndices();
+      dists = result.getDistances();
+    }
+
+    final int adjustedLocalConnectivity = Math.max(0, mLocalConnectivity - 1);
+    final float[][] sigmasRhos = Umap.smoothKnnDist(dists, mRunNNeighbors, adjustedLocalConnectivity, 1);
+    final float[] sigmas = sigmasRhos[0];
+    final float[] rhos = sigmasRhos[1];
+
+    // Membership strengths, and their normalization for the initial placement
+    final float[][] weights = new float[n][mRunNNeighbors];
+    final float[][] normalized = new float[n][mRunNNeighbors];
+    int nEdges = 0;
+    for (int i = 0; i < n; ++i) {
+      float l1 = 0;
+      for (int j = 0; j < mRunNNeighbors; ++j) {
+        if (indices[i][j] != -1) {
+          weights[i][j] = Umap.membershipStrength(i, indices[i][j], dists[i][j], sigmas[i], rhos[i]);
+          if (weights[i][j] != 0) {
+            l1 += weights[i][j];
+            ++nEdges;
+          }
+        }
+      }
+      if (l1 > 0) {
+        for (int j = 0; j < mRunNNeighbors; ++j) {
+          normalized[i][j] = weights[i][j] / l1;
+        }
+      }
+    }
+    final FlatMatrix embedding = initTransform(indices, normalized, mEmbedding);
+
+    final int[] head = new int[nEdges];
+    final int[] tail = new int[nEdges];
+    final float[] strengths = new float[nEdges];
+    for (int i = 0, e = 0; i < n; ++i) {
+      for (int j = 0; j < mRunNNeighbors; ++j) {
+        if (weights[i][j] != 0) {
+          head[e] = i;
+          tail[e] = indices[i][j];
+          strengths[e++] = weights[i][j];
+        }
+      }
+    }
+    final int nEpochs = mNEpochs == null ? 100 : mNEpochs;
+    final float[] epochsPerSample = Umap.makeEpochsPerSample(strengths, nEpochs);
+    final LayoutOptimizer optimizer = new PointLayoutOptimizer(embedding, mEmbedding, head, tail, mEmbedding.rows(), epochsPerSample, mRunA, mRunB, mRepulsionStrength, mNegativeSampleRate);
+    optimizer.setGradientKernel(mGradientKernel);
+    return optimizer.optimize(nEpochs, mInitialAlpha, random);
+  }
+
+  /**
+   * Transform instances into the embedded space.
+   * @param instances new data to be transformed
+   * @param random random source
+   * @param progress progress to which completed stages are reported
+   * @return embedding of the new data
+   */
+  Matrix transform(final Matrix instances, final Random random, final UmapProgress progress) {
+    if (mEmbedding.rows() == 1) {
+      throw new IllegalArgumentException("Transform unavailable when model was fit with only a single data sample.");
+    }
+    if (mMetric instanceof PrecomputedMetric) {
+      throw new IllegalArgumentException("Transform of new data not available for precomputed metric.");
+    }
+    if (instances.rows() <= MICRO_BATCH_SIZE) {
+      return transformMicroBatch(instances, random);
+    }
+    final SharedExecutor scope = new SharedExecutor(mExecutor, mThreads);
+    try {
+      return transformBatch(instances, random, progress);
+    } finally {
+      scope.close();
+    }
+  }
+
+  private Matrix transformBatch(final Matrix instances, final Random random, final UmapProgress progress) {
+    progress.start(4);
+
+    final int[][] indices;
+    final float[][] dists;
+    if (mSmallData) {
+      final Matrix distanceMatrix = PairwiseDistances.pairwiseDistances(instances, mRawData, mMetric, mThreads);
+      final IndexedDistances knn = Utils.fastKnn(distanceMatrix, mRunNNeighbors, mThreads);
+      indices = knn.getIndices();
+      dists = knn.getDistances();
+    } else {
+      final IndexedDistances result = searchNeighbors(instances, mThreads, random);
+      indices = result.getIndices();
+      dists = result.getDistances();
+    }
+
+    progress.step();
+
+    final int adjustedLocalConnectivity = Math.max(0, mLocalConnectivity - 1);
+    final float[][] sigmasRhos = Umap.smoothKnnDist(dists, mRunNNeighbors, adjustedLocalConnectivity, mThreads);
+    final float[] sigmas = sigmasRhos[0];
+    final float[] rhos = sigmasRhos[1];
+    CooMatrix graph = Umap.computeMembershipStrengths(indices, dists, sigmas, rhos, instances.rows(), mRawData.rows(), mThreads);
+
+    progress.step();
+
+    // This was a very specially constructed graph with constant degree.
+    // That lets us do fancy unpacking by reshaping the Csr matrix indices
+    // and data. Doing so relies on the constant degree assumption!
+    final CsrMatrix csrGraph = graph.toCsr().l1Normalize().toCsr();
+    final int[][] inds = csrGraph.reshapeIndicies(instances.rows(), mRunNNeighbors);
+    final float[][] weights = csrGraph.reshapeWeights(instances.rows(), mRunNNeighbors);
+    final FlatMatrix embedding = initTransform(inds, weights, mEmbedding);
+
+    final int nEpochs;
+    if (mNEpochs == null) {
+      // For smaller datasets we can use more epochs
+      if (graph.rows() <= 10000) {
+        nEpochs = 100;
+      } else {
+        nEpochs = 30;
+      }
+    } else {
+      nEpochs = mNEpochs; // 3.0
+    }
+
+    MathUtils.zeroEntriesBelowLimit(graph.data(), MathUtils.max(graph.data()) / (float) nEpochs);
+    graph = graph.eliminateZeros().toCoo();
+
+    final float[] epochsPerSample = Umap.makeEpochsPerSample(graph.data(), nEpochs);
+
+    final int[] head = graph.row();
+    final int[] tail = graph.col();
+
+    progress.step();
+    progress.addTotal(nEpochs);
+    // Only the new embedding moves, the training embedding is shared and left unchanged
+    final Matrix matrix = Umap.optimizeLayout(embedding, mEmbedding, head, tail, nEpochs, graph.cols(), epochsPerSample, mRunA, mRunB, random, mRepulsionStrength, mInitialAlpha, mNegativeSampleRate, false, mThreads, mParallelLayout, mDeterministic, mGradientKernel, progress, mVerbose);
+
+    progress.finish();
+
+    return matrix;
+  }
+}
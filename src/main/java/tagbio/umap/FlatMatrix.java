@@ -0,0 +1,144 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+
+import tagbio.umap.metric.Metric;
+
+/**
+ * Dense matrix stored in row-major order in a single contiguous array.
+ * Entry <code>(r, c)</code> is at position <code>r * cols() + c</code> of
+ * the array returned by <code>data()</code>.  Used for embeddings, where
+ * random access to rows is the dominant operation.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class FlatMatrix extends Matrix {
+
+  private final float[] mData;
+
+  /**
+   * Construct a matrix backed by the given array.  Note the array is NOT copied, so that
+   * any external changes to the underlying array will affect that matrix as well.
+   * @param data matrix values in row-major order
+   * @param rows number of rows
+   * @param cols number of columns
+   */
+  FlatMatrix(final float[] data, final int rows, final int cols) {
+    super(rows, cols);
+    if (data.length != rows * cols) {
+      throw new IllegalArgumentException("Data length " + data.length + " does not match " + rows + "x" + cols);
+    }
+    mData = data;
+  }
+
+  /**
+   * Construct a new zero matrix of specified dimensions.
+   * @param rows number of rows
+   * @param cols number of columns
+   */
+  FlatMatrix(final int rows, final int cols) {
+    this(new float[rows * cols], rows, cols);
+  }
+
+  /**
+   * Construct a matrix containing a copy of the given values.
+   * @param matrix matrix values
+   */
+  FlatMatrix(final float[][] matrix) {
+    this(matrix.length, matrix[0].length);
+    final int cols = cols();
+    for (int r = 0; r < matrix.length; ++r) {
+      System.arraycopy(matrix[r], 0, mData, r * cols, cols);
+    }
+  }
+
+  /**
+   * Return the underlying row-major array.
+   * @return data array
+   */
+  float[] data() {
+    return mData;
+  }
+
+  @Override
+  float get(final int row, final int col) {
+    return mData[row * cols() + col];
+  }
+
+  @Override
+  void set(final int row, final int col, final float val) {
+    mData[row * cols() + col] = val;
+  }
+
+  @Override
+  boolean isFinite() {
+    for (final float v : mData) {
+      if (!Float.isFinite(v)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  Matrix copy() {
+    return new FlatMatrix(Arrays.copyOf(mData, mData.length), rows(), cols());
+  }
+
+  @Override
+  float[][] toArray() {
+    final int cols = cols();
+    final float[][] res = new float[rows()][];
+    for (int r = 0; r < res.length; ++r) {
+      res[r] = Arrays.copyOfRange(mData, r * cols, (r + 1) * cols);
+    }
+    return res;
+  }
+
+  @Override
+  float[] row(final int row) {
+    final int cols = cols();
+    return Arrays.copyOfRange(mData, row * cols, (row + 1) * cols);
+  }
+
+  @Override
+  float[] row(final int row, final float[] scratch) {
+    System.arraycopy(mData, row * scratch.length, scratch, 0, scratch.length);
+    return scratch;
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final int j) {
+    final int cols = cols();
+    return metric.distance(mData, i * cols, mData, j * cols, cols);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y) {
+    final int cols = cols();
+    return metric.distance(mData, i * cols, y, 0, cols);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final int j, final double[] jPrepared, final int jPreparedOffset) {
+    final int cols = cols();
+    return metric.distance(mData, i * cols, iPrepared, iPreparedOffset, mData, j * cols, jPrepared, jPreparedOffset, cols);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    final int cols = cols();
+    return metric.distance(mData, i * cols, iPrepared, iPreparedOffset, y, 0, yPrepared, yPreparedOffset, cols);
+  }
+
+  @Override
+  Matrix eliminateZeros() {
+    // There is nothing to be done in this implementation (zeros cannot be removed)
+    return this;
+  }
+}
@@ -30,6 +30,23 @@ class FlatTree {
     mIndices = indices;
   }
 
+  /**
+   * Hyperplanes of the internal nodes, either <code>float[][]</code> for a tree
+   * built from dense data, or <code>SparseVector[]</code> for sparse data.
+   * @return hyperplanes
+   */
+  Object getHyperplanes() {
+    return mHyperplanes;
+  }
+
+  float[] getOffsets() {
+    return mOffsets;
+  }
+
+  int[][] getChildren() {
+    return mChildren;
+  }
+
   int[][] getIndices() {
     return mIndices;
   }
@@ -46,10 +63,39 @@ class FlatTree {
     }
   }
 
+  private static boolean selectSide(final SparseVector hyperplane, final float offset, final float[] point, final Random random) {
+    final int[] indices = hyperplane.getIndices();
+    final float[] data = hyperplane.getData();
+    float margin = offset;
+    for (int k = 0; k < indices.length; ++k) {
+      margin += data[k] * point[indices[k]];
+    }
+    if (Math.abs(margin) < EPS) {
+      return random.nextBoolean();
+    } else {
+      return margin <= 0;
+    }
+  }
+
+  private boolean selectSide(final int node, final float[] point, final Random random) {
+    if (mHyperplanes instanceof SparseVector[]) {
+      return selectSide(((SparseVector[]) mHyperplanes)[node], mOffsets[node], point, random);
+    } else {
+      return selectSide(((float[][]) mHyperplanes)[node], mOffsets[node], point, random);
+    }
+  }
+
+  /**
+   * Determine the leaf of the tree containing a point.  The point is dense,
+   * but the tree may have been built from sparse data.
+   * @param point point
+   * @param random randomness source for points lying on a hyperplane
+   * @return indices of the leaf
+   */
   int[] searchFlatTree(final float[] point, final Random random) {
     int node = 0;
     while (mChildren[node][0] > 0) {
-      final boolean side = selectSide(((float[][]) mHyperplanes)[node], mOffsets[node], point, random);
+      final boolean side = selectSide(node, point, random);
       node = mChildren[node][side ? 1 : 0];
     }
     return mIndices[-mChildren[node][0]];
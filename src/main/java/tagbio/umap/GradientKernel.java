@@ -0,0 +1,212 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+/**
+ * Coefficients of the attractive and repulsive gradients used in the
+ * embedding optimization.  For a squared distance <code>d</code> in the
+ * embedding these are <code>-2ab d^(b-1) / (1 + a d^b)</code> and
+ * <code>2 gamma b / ((0.001 + d) (1 + a d^b))</code> respectively.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+abstract class GradientKernel {
+
+  /** Choose a kernel based on the curve parameters. */
+  static final String AUTO = "auto";
+  /** Exact kernel computing powers in double precision. */
+  static final String EXACT = "exact";
+  /** Kernel using a fast single precision approximation to the powers. */
+  static final String FAST = "fast";
+
+  // Largest |b - 1| for which the automatic kernel treats b as 1.  The relative
+  // change in d^(b-1) is about |b - 1| |ln d|, keeping the coefficients within
+  // the 1e-5 tested for the fast kernel over squared distances in [1e-4, 1e4].
+  private static final float UNIT_TOLERANCE = 1e-6F;
+  // Largest b for which the automatic kernel uses the fast kernel.  Its error
+  // bound needs |b log2(d)| <= 32, which then holds for squared distances in
+  // [2^-16, 2^16].  This covers the curve parameters except when the minimum
+  // distance is close to the spread.
+  private static final float FAST_MAX_B = 2;
+
+  final float mA;
+  final float mB;
+  final float mGamma;
+
+  GradientKernel(final float a, final float b, final float gamma) {
+    mA = a;
+    mB = b;
+    mGamma = gamma;
+  }
+
+  /**
+   * Attractive gradient coefficient for a positive sample.
+   * @param distSquared squared distance between head and tail
+   * @return coefficient
+   */
+  abstract float attractive(final float distSquared);
+
+  /**
+   * Repulsive gradient coefficient for a negative sample.
+   * @param distSquared squared distance between head and negative sample, must be positive
+   * @return coefficient
+   */
+  abstract float repulsive(final float distSquared);
+
+  /**
+   * Test if the given name is a valid kernel name.
+   * @param name kernel name
+   * @return true if the kernel is known
+   */
+  static boolean isKernel(final String name) {
+    return AUTO.equals(name) || EXACT.equals(name) || FAST.equals(name);
+  }
+
+  /**
+   * Construct a kernel by name.  The <code>auto</code> kernel chooses from
+   * the curve parameters: a computation without powers when <code>b</code> is
+   * within a small tolerance of 1, otherwise the fast kernel when <code>b</code>
+   * is within the range of its error bound, and otherwise the exact kernel.
+   * @param name kernel name
+   * @param a curve parameter
+   * @param b curve parameter
+   * @param gamma weight applied to negative samples
+   * @return kernel
+   */
+  static GradientKernel getKernel(final String name, final float a, final float b, final float gamma) {
+    if (AUTO.equals(name)) {
+      if (Math.abs(b - 1) < UNIT_TOLERANCE) {
+        return new UnitKernel(a, gamma);
+      }
+      return b > 0 && b <= FAST_MAX_B ? new FastKernel(a, b, gamma) : new ExactKernel(a, b, gamma);
+    } else if (EXACT.equals(name)) {
+      return new ExactKernel(a, b, gamma);
+    } else if (FAST.equals(name)) {
+      return new FastKernel(a, b, gamma);
+    }
+    throw new IllegalArgumentException("Unknown gradient kernel: " + name);
+  }
+
+  /** Direct computation of the powers in double precision. */
+  static final class ExactKernel extends GradientKernel {
+
+    ExactKernel(final float a, final float b, final float gamma) {
+      super(a, b, gamma);
+    }
+
+    @Override
+    float attractive(final float distSquared) {
+      if (distSquared > 0.0) {
+        return (float) ((-2.0 * mA * mB * Math.pow(distSquared, mB - 1.0)) / (mA * Math.pow(distSquared, mB) + 1.0));
+      } else {
+        return 0;
+      }
+    }
+
+    @Override
+    float repulsive(final float distSquared) {
+      return 2.0F * mGamma * mB / (float) ((0.001 + distSquared) * (mA * Math.pow(distSquared, mB) + 1));
+    }
+  }
+
+  /**
+   * Special case for <code>b == 1</code> where no powers are needed.  The
+   * operations are otherwise the same as the exact kernel, so for
+   * <code>b == 1</code> the results are identical to it.
+   */
+  static final class UnitKernel extends GradientKernel {
+
+    UnitKernel(final float a, final float gamma) {
+      super(a, 1, gamma);
+    }
+
+    @Override
+    float attractive(final float distSquared) {
+      if (distSquared > 0.0) {
+        return (float) ((-2.0 * mA * mB) / (mA * (double) distSquared + 1.0));
+      } else {
+        return 0;
+      }
+    }
+
+    @Override
+    float repulsive(final float distSquared) {
+      return 2.0F * mGamma * mB / (float) ((0.001 + distSquared) * (mA * (double) distSquared + 1));
+    }
+  }
+
+  /**
+   * Single precision kernel computing <code>d^b</code> as <code>2^(b log2(d))</code>
+   * with polynomial approximations to the logarithm and exponential.  A single
+   * power is computed per coefficient, the attractive coefficient being
+   * rearranged to need only <code>d^-b</code>.  The relative error in the power is dominated by the
+   * rounding of <code>b log2(d)</code>, and is below 2e-6 whenever this product
+   * lies in [-32, 32], which covers all distances occurring in practice.
+   */
+  static final class FastKernel extends GradientKernel {
+
+    private static final int SQRT_HALF_BITS = 0x3F3504F3;
+    // Round to nearest integer by adding and subtracting 1.5 * 2^23
+    private static final float ROUNDER = 12582912F;
+
+    FastKernel(final float a, final float b, final float gamma) {
+      super(a, b, gamma);
+    }
+
+    // Base 2 logarithm of positive finite x.  The mantissa m is reduced to
+    // [sqrt(1/2), sqrt(2)) and log2(m) is given by a least squares polynomial
+    // in u = m - 1 with absolute error below 6e-8 on that interval.
+    static float log2(final float x) {
+      final int bits = Float.floatToRawIntBits(x);
+      if (bits < 0x00800000) {
+        // Subnormal
+        return (float) (Math.log(x) / Math.log(2));
+      }
+      // Subtracting the representation of sqrt(1/2) moves the exponent boundary
+      // to sqrt(2), avoiding an unpredictable branch on the mantissa
+      final int ix = bits - SQRT_HALF_BITS;
+      final int e = ix >> 23;
+      final float m = Float.intBitsToFloat((ix & 0x007FFFFF) + SQRT_HALF_BITS);
+      final float u = m - 1;
+      return e + u * (1.4426948F + u * (-0.72135758F + u * (0.48093232F + u * (-0.36006466F
+        + u * (0.28688511F + u * (-0.25049734F + u * (0.23571557F + u * -0.14302389F)))))));
+    }
+
+    // Two raised to the power y, splitting y into the nearest integer and a
+    // fraction in [-1/2, 1/2] whose power is given by its Taylor series.
+    static float exp2(final float y) {
+      if (y >= 127) {
+        return y < 128 ? 2 * exp2(y - 1) : Float.POSITIVE_INFINITY;
+      } else if (y < -126) {
+        return 0;
+      }
+      final float r = (y + ROUNDER) - ROUNDER;
+      final float f = y - r;
+      final float p = 1 + f * (0.69314718F + f * (0.24022651F + f * (0.055504109F + f * (0.0096181291F + f * (0.0013333558F + f * 0.0001540353F)))));
+      return p * Float.intBitsToFloat(((int) r + 127) << 23);
+    }
+
+    static float pow(final float x, final float y) {
+      return exp2(y * log2(x));
+    }
+
+    @Override
+    float attractive(final float distSquared) {
+      if (distSquared > 0.0) {
+        // -2ab d^(b-1) / (a d^b + 1) = -2ab / (d (a + d^-b))
+        final float p = pow(distSquared, -mB);
+        return -2.0F * mA * mB / (distSquared * (mA + p));
+      } else {
+        return 0;
+      }
+    }
+
+    @Override
+    float repulsive(final float distSquared) {
+      return 2.0F * mGamma * mB / ((0.001F + distSquared) * (mA * pow(distSquared, mB) + 1));
+    }
+  }
+}
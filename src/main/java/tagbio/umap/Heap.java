@@ -9,22 +9,23 @@ import java.util.Arrays;
 import java.util.Random;
 
 /**
- * Arrays of heaps structure.
+ * Arrays of heaps structure.  The heaps are stored in flat arrays, with entry
+ * <code>col</code> of heap <code>row</code> at position <code>row * size + col</code>.
+ * The flag marking an entry as new is packed into its index: a new entry holds
+ * its index, an entry which is not new holds <code>-2 - index</code>, and an
+ * empty entry holds -1.
  * @author Leland McInnes (Python)
  * @author Sean A. Irvine
  * @author Richard Littin
  */
 class Heap {
 
-  private final int[][] mIndices;
-  private final float[][] mWeights;
-  private final boolean[][] mIsNew;
+  private static final int EMPTY = -1;
 
-  private Heap(final int[][] indices, final float[][] weights) {
-    mIndices = indices;
-    mWeights = weights;
-    mIsNew = new boolean[indices.length][indices[0].length];
-  }
+  private final int mRows;
+  private final int mSize;
+  private final int[] mIndices;
+  private final float[] mWeights;
 
   /**
    * Construct an array of heaps. The heaps are used
@@ -35,31 +36,40 @@ class Heap {
    * @param size The number of items to keep on the heap for each data point.
    */
   Heap(final int points, final int size) {
-    mIndices = new int[points][size];
-    mWeights = new float[points][size];
-    mIsNew = new boolean[points][size];
-    for (final int[] a : mIndices) {
-      Arrays.fill(a, -1);
-    }
-    for (final float[] a : mWeights) {
-      Arrays.fill(a, Float.POSITIVE_INFINITY);
-    }
+    mRows = points;
+    mSize = size;
+    mIndices = new int[points * size];
+    mWeights = new float[points * size];
+    Arrays.fill(mIndices, EMPTY);
+    Arrays.fill(mWeights, Float.POSITIVE_INFINITY);
+  }
+
+  private static int encode(final int index, final boolean flag) {
+    return flag ? index : -2 - index;
+  }
+
+  private static int decode(final int v) {
+    return v >= EMPTY ? v : -2 - v;
+  }
+
+  int rows() {
+    return mRows;
   }
 
-  int index(int row, int col) {
-    return mIndices[row][col];
+  int size() {
+    return mSize;
   }
 
-  int[][] indices() {
-    return mIndices;
+  int index(final int row, final int col) {
+    return decode(mIndices[row * mSize + col]);
   }
 
-  float[][] weights() {
-    return mWeights;
+  float weight(final int row, final int col) {
+    return mWeights[row * mSize + col];
   }
 
-  boolean isNew(int row, int col) {
-    return mIsNew[row][col];
+  boolean isNew(final int row, final int col) {
+    return mIndices[row * mSize + col] >= 0;
   }
 
   /**
@@ -67,7 +77,8 @@ class Heap {
    * for each data point. The <code>row</code> parameter determines which data point we
    * are addressing, the <code>weight</code> determines the distance (for heap sorting),
    * the <code>index</code> is the element to add, and the flag determines whether this
-   * is to be considered a new addition.
+   * is to be considered a new addition.  Pushes to different rows may be made
+   * concurrently, but concurrent pushes to the same row are not permitted.
    * @param row Which actual heap within the heap object to push to
    * @param weight The priority value of the element to push onto the heap
    * @param index The actual value to be pushed
@@ -75,68 +86,21 @@ class Heap {
    * @return True iff the pushed element is new.
    */
   boolean push(final int row, final float weight, final int index, final boolean flag) {
-    synchronized (mIndices[row]) {
-      final int[] indices = mIndices[row];
-      final float[] weights = mWeights[row];
-      final boolean[] isNew = mIsNew[row];
+    final int base = row * mSize;
+    if (weight >= mWeights[base]) {
+      return false;
+    }
 
-      if (weight >= weights[0]) {
+    // break if we already have this element.
+    final int old = encode(index, false);
+    for (int j = base; j < base + mSize; ++j) {
+      final int value = mIndices[j];
+      if (value == index || value == old) {
         return false;
       }
-
-      // break if we already have this element.
-      for (final int value : indices) {
-        if (index == value) {
-          return false;
-        }
-      }
-
-      // insert val at position zero
-      weights[0] = weight;
-      indices[0] = index;
-      isNew[0] = flag;
-
-      // descend the heap, swapping values until the max heap criterion is met
-      int i = 0;
-      while (true) {
-        final int ic1 = 2 * i + 1;
-        final int ic2 = ic1 + 1;
-        final int iSwap;
-
-        if (ic1 >= mIndices[0].length) {
-          break;
-        } else if (ic2 >= mIndices[0].length) {
-          if (weights[ic1] > weight) {
-            iSwap = ic1;
-          } else {
-            break;
-          }
-        } else if (weights[ic1] >= weights[ic2]) {
-          if (weight < weights[ic1]) {
-            iSwap = ic1;
-          } else {
-            break;
-          }
-        } else {
-          if (weight < weights[ic2]) {
-            iSwap = ic2;
-          } else {
-            break;
-          }
-        }
-
-        weights[i] = weights[iSwap];
-        indices[i] = indices[iSwap];
-        isNew[i] = isNew[iSwap];
-
-        i = iSwap;
-      }
-
-      weights[i] = weight;
-      indices[i] = index;
-      isNew[i] = flag;
-      return true;
     }
+    siftInsert(base, weight, encode(index, flag));
+    return true;
   }
 
   /**
@@ -152,88 +116,84 @@ class Heap {
    * @return True iff the pushed element is new.
    */
   boolean uncheckedHeapPush(final int row, final float weight, final int index, final boolean flag) {
-    final int[] indices = mIndices[row];
-    final float[] weights = mWeights[row];
-    final boolean[] isNew = mIsNew[row];
-
-    if (weight >= weights[0]) {
+    final int base = row * mSize;
+    if (weight >= mWeights[base]) {
       return false;
     }
+    siftInsert(base, weight, encode(index, flag));
+    return true;
+  }
 
-    // insert val at position zero
-    weights[0] = weight;
-    indices[0] = index;
-    isNew[0] = flag;
-
-    // descend the heap, swapping values until the max heap criterion is met
+  // Replace the root of the heap starting at base and descend the heap, swapping
+  // values until the max heap criterion is met
+  private void siftInsert(final int base, final float weight, final int value) {
+    final int[] indices = mIndices;
+    final float[] weights = mWeights;
     int i = 0;
     while (true) {
       final int ic1 = 2 * i + 1;
       final int ic2 = ic1 + 1;
 
       final int iSwap;
-      if (ic1 >= mIndices[0].length) {
+      if (ic1 >= mSize) {
         break;
-      } else if (ic2 >= mIndices[0].length) {
-        if (weights[ic1] > weight) {
+      } else if (ic2 >= mSize) {
+        if (weights[base + ic1] > weight) {
           iSwap = ic1;
         } else {
           break;
         }
-      } else if (weights[ic1] >= weights[ic2]) {
-        if (weight < weights[ic1]) {
+      } else if (weights[base + ic1] >= weights[base + ic2]) {
+        if (weight < weights[base + ic1]) {
           iSwap = ic1;
         } else {
           break;
         }
       } else {
-        if (weight < weights[ic2]) {
+        if (weight < weights[base + ic2]) {
           iSwap = ic2;
         } else {
           break;
         }
       }
 
-      weights[i] = weights[iSwap];
-      indices[i] = indices[iSwap];
-      isNew[i] = isNew[iSwap];
+      weights[base + i] = weights[base + iSwap];
+      indices[base + i] = indices[base + iSwap];
 
       i = iSwap;
     }
 
-    weights[i] = weight;
-    indices[i] = index;
-    isNew[i] = flag;
-    return true;
+    weights[base + i] = weight;
+    indices[base + i] = value;
   }
 
   // Restore the heap property for a heap with an out of place element
   // at position <code>elt</code>. This works with a heap pair where <code>heap1</code> carries
-  // the weights and <code>heap2</code> holds the corresponding elements.
-  private static void siftdown(final float[] heap1, final int[] heap2, final int length, final int elt) {
+  // the weights and <code>heap2</code> holds the corresponding elements, both starting at <code>base</code>.
+  private static void siftdown(final float[] heap1, final int[] heap2, final int base, final int length, final int elt) {
     int mid = elt;
     while (mid * 2 + 1 < length) {
       final int leftChild = mid * 2 + 1;
       final int rightChild = leftChild + 1;
       int swap = mid;
 
-      if (heap1[swap] < heap1[leftChild]) {
+      if (heap1[base + swap] < heap1[base + leftChild]) {
         swap = leftChild;
       }
 
-      if (rightChild < length && heap1[swap] < heap1[rightChild]) {
+      if (rightChild < length && heap1[base + swap] < heap1[base + rightChild]) {
         swap = rightChild;
       }
 
       if (swap == mid) {
         break;
       } else {
-        final float t = heap1[swap];
-        heap1[swap] = heap1[mid];
-        heap1[mid] = t;
-        final int s = heap2[swap];
-        heap2[swap] = heap2[mid];
-        heap2[mid] = s;
+        final float t = heap1[base + swap];
+        heap1[base + swap] = heap1[base + mid];
+        heap1[base + mid] = t;
+        final int s = heap2[base + swap];
+        heap2[base + swap] = heap2[base + mid];
+        heap2[base + mid] = s;
         mid = swap;
       }
     }
@@ -244,27 +204,42 @@ class Heap {
    * out to give and array of sorted lists of indices and weights by increasing
    * weight. This is effectively just the second half of heap sort (the first
    * half not being required since we already have the data in a heap).
+   * The heaps are destroyed in the process.
    * @return sorted result
    */
-   Heap deheapSort() {
-     for (int i = 0; i < mIndices.length; ++i) {
-       final int[] indHeap = mIndices[i];
-       final float[] distHeap = mWeights[i];
-
-       for (int j = 0; j < indHeap.length - 1; ++j) {
-         final int s = indHeap[0];
-         indHeap[0] = indHeap[indHeap.length - j - 1];
-         indHeap[indHeap.length - j - 1] = s;
-         final float t = distHeap[0];
-         distHeap[0] = distHeap[distHeap.length - j - 1];
-         distHeap[distHeap.length - j - 1] = t;
-
-         //siftdown(distHeap[:distHeap.shape[0] - j - 1], indHeap[:indHeap.shape[0] - j - 1],  0    );
-         siftdown(distHeap, indHeap, distHeap.length - j - 1, 0);
-       }
-     }
-     return new Heap(mIndices, mWeights);
-   }
+  IndexedDistances deheapSort() {
+    return deheapSort(mSize);
+  }
+
+  /**
+   * Sort the heaps as for <code>deheapSort()</code>, but retain only the
+   * nearest <code>k</code> entries of each.
+   * @param k number of entries to retain
+   * @return sorted result
+   */
+  IndexedDistances deheapSort(final int k) {
+    final int[][] indices = new int[mRows][k];
+    final float[][] weights = new float[mRows][k];
+    for (int i = 0; i < mRows; ++i) {
+      final int base = i * mSize;
+      for (int j = 0; j < mSize - 1; ++j) {
+        final int last = base + mSize - j - 1;
+        final int s = mIndices[base];
+        mIndices[base] = mIndices[last];
+        mIndices[last] = s;
+        final float t = mWeights[base];
+        mWeights[base] = mWeights[last];
+        mWeights[last] = t;
+        siftdown(mWeights, mIndices, base, mSize - j - 1, 0);
+      }
+      final int n = Math.min(k, mSize);
+      for (int j = 0; j < n; ++j) {
+        indices[i][j] = decode(mIndices[base + j]);
+      }
+      System.arraycopy(mWeights, base, weights[i], 0, n);
+    }
+    return new IndexedDistances(indices, weights, null);
+  }
 
   /**
    * Search the heap for the smallest element that is still flagged.
@@ -274,23 +249,21 @@ class Heap {
    * elements remain in the heap.
    */
   int smallestFlagged(final int row) {
-    final int[] ind = mIndices[row];
-    final float[] dist = mWeights[row];
-    final boolean[] flag = mIsNew[row];
-
+    final int base = row * mSize;
     float minDist = Float.POSITIVE_INFINITY;
     int resultIndex = -1;
 
-    for (int i = 0; i < ind.length; ++i) {
-      if (flag[i] && dist[i] < minDist) {
-        minDist = dist[i];
+    for (int i = base; i < base + mSize; ++i) {
+      if (mIndices[i] >= 0 && mWeights[i] < minDist) {
+        minDist = mWeights[i];
         resultIndex = i;
       }
     }
 
     if (resultIndex >= 0) {
-      flag[resultIndex] = false;
-      return ind[resultIndex];
+      final int index = mIndices[resultIndex];
+      mIndices[resultIndex] = encode(index, false);
+      return index;
     } else {
       return -1;
     }
@@ -310,18 +283,101 @@ class Heap {
   Heap buildCandidates(final int nVertices, final int nNeighbors, final int maxCandidates, final Random random) {
     final Heap candidateNeighbors = new Heap(nVertices, maxCandidates);
     for (int i = 0; i < nVertices; ++i) {
-      for (int j = 0; j < nNeighbors; ++j) {
-        if (mIndices[i][j] < 0) {
+      final int base = i * mSize;
+      for (int j = base; j < base + nNeighbors; ++j) {
+        final int value = mIndices[j];
+        if (value == EMPTY) {
           continue;
         }
-        final int idx = mIndices[i][j];
-        final boolean isn = mIsNew[i][j];
+        final int idx = decode(value);
+        final boolean isn = value >= 0;
         final float d = random.nextFloat();
         candidateNeighbors.push(i, d, idx, isn);
         candidateNeighbors.push(idx, d, i, isn);
-        mIsNew[i][j] = false;
+        mIndices[j] = encode(idx, false);
       }
     }
     return candidateNeighbors;
   }
+
+  /**
+   * Empty the heaps for a range of rows.
+   * @param lo first row
+   * @param hi one past last row
+   */
+  void clear(final int lo, final int hi) {
+    Arrays.fill(mIndices, lo * mSize, hi * mSize, EMPTY);
+    Arrays.fill(mWeights, lo * mSize, hi * mSize, Float.POSITIVE_INFINITY);
+  }
+
+  private boolean contains(final int row, final int index) {
+    final int base = row * mSize;
+    final int old = encode(index, false);
+    for (int j = base; j < base + mSize; ++j) {
+      final int value = mIndices[j];
+      if (value == index || value == old) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Build the candidate neighbors for a block of rows, with new and old
+   * neighbors kept in separate heaps.  The candidates of a vertex are any current
+   * neighbors and any vertices that have the vertex as one of their neighbors.
+   * Every edge of the graph is visited, but only rows in the block are updated,
+   * so blocks can be built concurrently provided the graph is not modified.
+   * The candidate heaps are emptied for the block before use, so they can be
+   * reused from one iteration to the next.
+   * Once all blocks are built, <code>flagCandidates</code> should be called.
+   * @param newCandidates heaps to receive new candidates
+   * @param oldCandidates heaps to receive old candidates
+   * @param nNeighbors The number of neighbor edges per node in the current graph.
+   * @param lo first row of the block
+   * @param hi one past last row of the block
+   * @param random Random source
+   */
+  void buildCandidates(final Heap newCandidates, final Heap oldCandidates, final int nNeighbors, final int lo, final int hi, final Random random) {
+    newCandidates.clear(lo, hi);
+    oldCandidates.clear(lo, hi);
+    for (int i = 0; i < mRows; ++i) {
+      final int base = i * mSize;
+      final boolean own = i >= lo && i < hi;
+      for (int j = base; j < base + nNeighbors; ++j) {
+        final int value = mIndices[j];
+        if (value == EMPTY) {
+          continue;
+        }
+        final int idx = decode(value);
+        final Heap candidates = value >= 0 ? newCandidates : oldCandidates;
+        final float d = random.nextFloat();
+        if (own) {
+          candidates.push(i, d, idx, true);
+        }
+        if (idx >= lo && idx < hi) {
+          candidates.push(idx, d, i, true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Mark neighbors that were selected as new candidates as no longer new,
+   * for a block of rows.  New neighbors not selected remain new.
+   * @param newCandidates new candidates from <code>buildCandidates</code>
+   * @param lo first row of the block
+   * @param hi one past last row of the block
+   */
+  void flagCandidates(final Heap newCandidates, final int lo, final int hi) {
+    for (int i = lo; i < hi; ++i) {
+      final int base = i * mSize;
+      for (int j = base; j < base + mSize; ++j) {
+        final int value = mIndices[j];
+        if (value >= 0 && newCandidates.contains(i, value)) {
+          mIndices[j] = encode(value, false);
+        }
+      }
+    }
+  }
 }
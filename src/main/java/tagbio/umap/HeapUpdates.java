@@ -0,0 +1,160 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Growable buffer of proposed (p, q, d) heap updates, where each update offers
+ * q as a neighbor of p and p as a neighbor of q at distance d.  Parallel nearest
+ * neighbor descent proceeds in two phases: workers compute distances and record
+ * updates in their own buffers without touching the heaps, then the buffers are
+ * applied with each thread owning a disjoint block of heap rows.  Thus no two
+ * threads ever push to the same row, and pushes need no locking.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+final class HeapUpdates {
+
+  /**
+   * Approximate number of rows whose updates are buffered before being applied.
+   * This bounds the memory used by the buffers independently of the number of rows.
+   */
+  static final int BLOCK_SIZE = 16384;
+
+  /** Computation of the updates for one chunk of work. */
+  interface Chunk {
+    /**
+     * Compute updates.
+     * @param chunk chunk number
+     * @param updates buffer to receive updates
+     */
+    void compute(int chunk, HeapUpdates updates);
+  }
+
+  private int[] mP = new int[16];
+  private int[] mQ = new int[16];
+  private float[] mD = new float[16];
+  private int mSize = 0;
+
+  void add(final int p, final int q, final float d) {
+    if (mSize == mP.length) {
+      final int len = 2 * mSize;
+      mP = Arrays.copyOf(mP, len);
+      mQ = Arrays.copyOf(mQ, len);
+      mD = Arrays.copyOf(mD, len);
+    }
+    mP[mSize] = p;
+    mQ[mSize] = q;
+    mD[mSize++] = d;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  void clear() {
+    mSize = 0;
+  }
+
+  static HeapUpdates[] create(final int n) {
+    final HeapUpdates[] updates = new HeapUpdates[n];
+    for (int k = 0; k < n; ++k) {
+      updates[k] = new HeapUpdates();
+    }
+    return updates;
+  }
+
+  /**
+   * Apply buffered updates to the heaps and clear the buffers.  Each thread is
+   * responsible for a disjoint block of rows and scans all the buffers in order,
+   * so every row sees its updates in the same order irrespective of the number
+   * of threads.
+   * @param executor executor to run on
+   * @param threads number of threads
+   * @param heap heaps to update
+   * @param updates buffers of updates
+   * @param n number of buffers to apply
+   * @return number of successful pushes
+   * @throws InterruptedException if interrupted
+   * @throws ExecutionException if an update fails
+   */
+  static int apply(final ExecutorService executor, final int threads, final Heap heap, final HeapUpdates[] updates, final int n) throws InterruptedException, ExecutionException {
+    final int nVertices = heap.rows();
+    final int blockSize = (nVertices + threads - 1) / threads;
+    final List<Callable<Integer>> jobs = new ArrayList<>();
+    for (int t = 0; t < threads; ++t) {
+      final int lo = t * blockSize;
+      final int hi = Math.min((t + 1) * blockSize, nVertices);
+      jobs.add(() -> {
+        int c = 0;
+        for (int k = 0; k < n; ++k) {
+          final HeapUpdates u = updates[k];
+          for (int j = 0; j < u.mSize; ++j) {
+            final int p = u.mP[j];
+            final int q = u.mQ[j];
+            if (p >= lo && p < hi && heap.push(p, u.mD[j], q, true)) {
+              ++c;
+            }
+            if (q >= lo && q < hi && heap.push(q, u.mD[j], p, true)) {
+              ++c;
+            }
+          }
+        }
+        return c;
+      });
+    }
+    int c = 0;
+    for (final Future<Integer> future : executor.invokeAll(jobs)) {
+      c += future.get();
+    }
+    for (int k = 0; k < n; ++k) {
+      updates[k].clear();
+    }
+    return c;
+  }
+
+  /**
+   * Compute and apply the updates for a number of chunks.  The chunks are
+   * processed in blocks of as many chunks as there are buffers, with the updates
+   * of each block applied, in chunk order, before the next block is computed.
+   * @param executor executor to run on
+   * @param threads number of threads
+   * @param heap heaps to update
+   * @param updates buffers of updates
+   * @param nChunks number of chunks
+   * @param chunk computation of a chunk
+   * @return number of successful pushes
+   * @throws InterruptedException if interrupted
+   * @throws ExecutionException if a computation or update fails
+   */
+  static int computeAndApply(final ExecutorService executor, final int threads, final Heap heap, final HeapUpdates[] updates, final int nChunks, final Chunk chunk) throws InterruptedException, ExecutionException {
+    int c = 0;
+    for (int lo = 0; lo < nChunks; lo += updates.length) {
+      final int hi = Math.min(lo + updates.length, nChunks);
+      final List<Callable<Void>> jobs = new ArrayList<>();
+      for (int k = lo; k < hi; ++k) {
+        final int ch = k;
+        final HeapUpdates u = updates[k - lo];
+        jobs.add(() -> {
+          chunk.compute(ch, u);
+          return null;
+        });
+      }
+      for (final Future<Void> future : executor.invokeAll(jobs)) {
+        future.get();
+      }
+      c += apply(executor, threads, heap, updates, hi - lo);
+    }
+    return c;
+  }
+}
@@ -13,12 +13,12 @@ package tagbio.umap;
  */
 class Hyperplane {
 
-  //private final int[] mInds;
+  private final int[] mInds;
   private final float[] mData;
   private final int[] mShape;
 
   Hyperplane(final int[] inds, final float[] data) {
-    //mInds = inds;
+    mInds = inds;
     mData = data;
     mShape = inds == null ? new int[] {data.length} : new int[] {inds.length, 2};
   }
@@ -27,6 +27,14 @@ class Hyperplane {
     this(null, data);
   }
 
+  /**
+   * Indices of the nonzero entries of a sparse hyperplane.
+   * @return indices, or null for a dense hyperplane
+   */
+  public int[] indices() {
+    return mInds;
+  }
+
   public float[] data() {
     return mData;
   }
@@ -0,0 +1,298 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Improve an embedding using stochastic gradient descent to minimize the
+ * fuzzy set cross entropy between the 1-skeletons of the high dimensional
+ * and low dimensional fuzzy simplicial sets. In practice this is done by
+ * sampling edges based on their membership strength (with the (1-p) terms
+ * coming from negative sampling similar to word2vec).
+ * @author Leland McInnes (Python)
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class LayoutOptimizer {
+
+  final FlatMatrix mHeadEmbedding;
+  final FlatMatrix mTailEmbedding;
+  final float[] mHeadData;
+  final float[] mTailData;
+  final int mDim;
+  final int[] mHead;
+  final int[] mTail;
+  final int mNVertices;
+  final float[] mEpochsPerSample;
+  final float mA;
+  final float mB;
+  final float mGamma;
+  final boolean mMoveOther;
+  final float[] mEpochsPerNegativeSample;
+  final float[] mEpochOfNextNegativeSample;
+  final float[] mEpochOfNextSample;
+  GradientKernel mKernel;
+  boolean mVerbose;
+  UmapProgress mProgress = UmapProgress.NONE;
+
+  /**
+   * Construct an optimizer for the given embeddings and 1-simplices.
+   * @param headEmbedding array of shape <code>(nSamples, nComponents)</code>
+   * The initial embedding to be improved by SGD.
+   * @param tailEmbedding array of shape <code>(sourceSamples, nComponents)</code>
+   * The reference embedding of embedded points. If not embedding new
+   * previously unseen points with respect to an existing embedding this
+   * is simply the <code>headEmbedding</code> (again); otherwise it provides the
+   * existing embedding to embed with respect to.
+   * @param head array of shape (n_1_simplices)
+   * The indices of the heads of 1-simplices with non-zero membership.
+   * @param tail array of shape (n_1_simplices)
+   * The indices of the tails of 1-simplices with non-zero membership.
+   * @param nVertices The number of vertices (0-simplices) in the dataset.
+   * @param epochsPerSample A float value of the number of epochs per 1-simplex. 1-simplices with
+   * weaker membership strength will have more epochs between being sampled.
+   * @param a Parameter of differentiable approximation of right adjoint functor
+   * @param b Parameter of differentiable approximation of right adjoint functor
+   * @param gamma Weight to apply to negative samples.
+   * @param negativeSampleRate Number of negative samples to use per positive sample.
+   * @param moveOther true if the tail embedding is to be updated, that is, when
+   * fitting rather than transforming
+   */
+  LayoutOptimizer(final FlatMatrix headEmbedding, final FlatMatrix tailEmbedding, final int[] head, final int[] tail, final int nVertices, final float[] epochsPerSample, final float a, final float b, final float gamma, final float negativeSampleRate, final boolean moveOther) {
+    mHeadEmbedding = headEmbedding;
+    mTailEmbedding = tailEmbedding;
+    mHeadData = headEmbedding.data();
+    mTailData = tailEmbedding.data();
+    mDim = headEmbedding.cols();
+    mHead = head;
+    mTail = tail;
+    mNVertices = nVertices;
+    mEpochsPerSample = epochsPerSample;
+    mA = a;
+    mB = b;
+    mGamma = gamma;
+    mMoveOther = moveOther;
+    mEpochsPerNegativeSample = MathUtils.divide(epochsPerSample, negativeSampleRate);
+    mEpochOfNextNegativeSample = Arrays.copyOf(mEpochsPerNegativeSample, mEpochsPerNegativeSample.length);
+    mEpochOfNextSample = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
+    mKernel = GradientKernel.getKernel(GradientKernel.AUTO, a, b, gamma);
+  }
+
+  void setVerbose(final boolean flag) {
+    mVerbose = flag;
+  }
+
+  /**
+   * Set the progress to which completed epochs are reported.
+   * @param progress progress of the current fit or transform
+   */
+  void setProgress(final UmapProgress progress) {
+    mProgress = progress;
+  }
+
+  /**
+   * Select the computation of the gradient coefficients.
+   * @param name name of the kernel
+   */
+  void setGradientKernel(final String name) {
+    mKernel = GradientKernel.getKernel(name, mA, mB, mGamma);
+  }
+
+  /**
+   * Run the optimization.
+   * @param nEpochs The number of training epochs to use in optimization.
+   * @param initialAlpha Initial learning rate for the SGD.
+   * @param random Random source
+   * @return array of shape <code>(nSamples, nComponents)</code> The optimized embedding.
+   */
+  FlatMatrix optimize(final int nEpochs, final float initialAlpha, final Random random) {
+    final EdgeSchedule schedule = new EdgeSchedule(mEpochOfNextSample, 0, mEpochsPerSample.length, nEpochs);
+    float alpha = initialAlpha;
+    for (int n = 0; n < nEpochs; ++n) {
+      optimizeEpoch(n, alpha, schedule, random);
+      alpha = initialAlpha * (1 - (float) n / (float) nEpochs);
+      epochCompleted(n, nEpochs);
+    }
+    return mHeadEmbedding;
+  }
+
+  void epochCompleted(final int n, final int nEpochs) {
+    if (mVerbose && n % (nEpochs / 10) == 0) {
+      Utils.message("Completed " + n + "/" + nEpochs);
+    }
+    mProgress.step();
+  }
+
+  /**
+   * Perform one epoch of updates for the 1-simplices due in a schedule.  Only the
+   * sampling schedule entries of the 1-simplices in the schedule are modified, so
+   * schedules of disjoint sets of 1-simplices may be processed concurrently.
+   * @param n current epoch
+   * @param alpha current learning rate
+   * @param schedule 1-simplices to consider
+   * @param random Random source
+   */
+  void optimizeEpoch(final int n, final float alpha, final EdgeSchedule schedule, final Random random) {
+    final int due = schedule.due(n);
+    for (int s = 0; s < due; ++s) {
+      sample(schedule.edge(s), n, alpha, random);
+      schedule.reschedule(s, n);
+    }
+  }
+
+  /**
+   * Apply the updates for a sample of a 1-simplex and its negative samples, and
+   * advance its sampling schedule.
+   * @param i 1-simplex
+   * @param n current epoch
+   * @param alpha current learning rate
+   * @param random Random source
+   */
+  void sample(final int i, final int n, final float alpha, final Random random) {
+    final int dim = mDim;
+    final float[] head = mHeadData;
+    final float[] tail = mTailData;
+    final int j = mHead[i];
+    final int c = j * dim;
+    final int o = mTail[i] * dim;
+
+    attract(head, c, tail, o, alpha);
+
+    mEpochOfNextSample[i] += mEpochsPerSample[i];
+
+    final int nNegSamples = (int) ((n - mEpochOfNextNegativeSample[i]) / mEpochsPerNegativeSample[i]);
+
+    for (int p = 0; p < nNegSamples; ++p) {
+      final int kr = random.nextInt(mNVertices);
+      repel(head, c, tail, kr * dim, j == kr, alpha);
+    }
+
+    mEpochOfNextNegativeSample[i] += nNegSamples * mEpochsPerNegativeSample[i];
+  }
+
+  /**
+   * Squared Euclidean distance between rows of flat embeddings, with the
+   * common low dimensional cases written out in full.  The summation order
+   * is the same as that of <code>ReducedEuclideanMetric</code>.
+   * @param x first embedding
+   * @param xo offset of the row in the first embedding
+   * @param y second embedding
+   * @param yo offset of the row in the second embedding
+   * @param dim number of components
+   * @return squared distance
+   */
+  static float distSquared(final float[] x, final int xo, final float[] y, final int yo, final int dim) {
+    switch (dim) {
+      case 2: {
+        final float d0 = x[xo] - y[yo];
+        final float d1 = x[xo + 1] - y[yo + 1];
+        return d0 * d0 + d1 * d1;
+      }
+      case 3: {
+        final float d0 = x[xo] - y[yo];
+        final float d1 = x[xo + 1] - y[yo + 1];
+        final float d2 = x[xo + 2] - y[yo + 2];
+        return d0 * d0 + d1 * d1 + d2 * d2;
+      }
+      default: {
+        float result = 0;
+        for (int d = 0; d < dim; ++d) {
+          final float diff = x[xo + d] - y[yo + d];
+          result += diff * diff;
+        }
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Move a head vertex towards the tail of a 1-simplex, and the tail towards the
+   * head if the tail embedding is being optimized.
+   * @param head head embedding
+   * @param c offset of the head vertex
+   * @param tail tail embedding
+   * @param o offset of the tail vertex
+   * @param alpha current learning rate
+   */
+  void attract(final float[] head, final int c, final float[] tail, final int o, final float alpha) {
+    final int dim = mDim;
+    final float gradCoeff = mKernel.attractive(distSquared(head, c, tail, o, dim));
+    if (dim == 2) {
+      float gradD = Umap.clip(gradCoeff * (head[c] - tail[o]));
+      head[c] += gradD * alpha;
+      if (mMoveOther) {
+        tail[o] += -gradD * alpha;
+      }
+      gradD = Umap.clip(gradCoeff * (head[c + 1] - tail[o + 1]));
+      head[c + 1] += gradD * alpha;
+      if (mMoveOther) {
+        tail[o + 1] += -gradD * alpha;
+      }
+    } else if (dim == 3) {
+      float gradD = Umap.clip(gradCoeff * (head[c] - tail[o]));
+      head[c] += gradD * alpha;
+      if (mMoveOther) {
+        tail[o] += -gradD * alpha;
+      }
+      gradD = Umap.clip(gradCoeff * (head[c + 1] - tail[o + 1]));
+      head[c + 1] += gradD * alpha;
+      if (mMoveOther) {
+        tail[o + 1] += -gradD * alpha;
+      }
+      gradD = Umap.clip(gradCoeff * (head[c + 2] - tail[o + 2]));
+      head[c + 2] += gradD * alpha;
+      if (mMoveOther) {
+        tail[o + 2] += -gradD * alpha;
+      }
+    } else {
+      for (int d = 0; d < dim; ++d) {
+        final float gradD = Umap.clip(gradCoeff * (head[c + d] - tail[o + d]));
+        head[c + d] += gradD * alpha;
+        if (mMoveOther) {
+          tail[o + d] += -gradD * alpha;
+        }
+      }
+    }
+  }
+
+  /**
+   * Move a head vertex away from a negative sample.
+   * @param head head embedding
+   * @param c offset of the head vertex
+   * @param tail tail embedding
+   * @param o offset of the negative sample
+   * @param self true if the negative sample is the head vertex itself
+   * @param alpha current learning rate
+   */
+  void repel(final float[] head, final int c, final float[] tail, final int o, final boolean self, final float alpha) {
+    final int dim = mDim;
+    final float distSquared = distSquared(head, c, tail, o, dim);
+    final float gradCoeff;
+    if (distSquared > 0) {
+      gradCoeff = mKernel.repulsive(distSquared);
+    } else if (self) {
+      return;
+    } else {
+      gradCoeff = 0;
+    }
+
+    if (dim == 2) {
+      head[c] += (gradCoeff > 0.0 ? Umap.clip(gradCoeff * (head[c] - tail[o])) : 4) * alpha;
+      head[c + 1] += (gradCoeff > 0.0 ? Umap.clip(gradCoeff * (head[c + 1] - tail[o + 1])) : 4) * alpha;
+    } else if (dim == 3) {
+      head[c] += (gradCoeff > 0.0 ? Umap.clip(gradCoeff * (head[c] - tail[o])) : 4) * alpha;
+      head[c + 1] += (gradCoeff > 0.0 ? Umap.clip(gradCoeff * (head[c + 1] - tail[o + 1])) : 4) * alpha;
+      head[c + 2] += (gradCoeff > 0.0 ? Umap.clip(gradCoeff * (head[c + 2] - tail[o + 2])) : 4) * alpha;
+    } else {
+      for (int d = 0; d < dim; ++d) {
+        final float gradD = gradCoeff > 0.0 ? Umap.clip(gradCoeff * (head[c + d] - tail[o + d])) : 4;
+        head[c + d] += gradD * alpha;
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import tagbio.umap.metric.Metric;
+
+/**
+ * Read-only dense matrix stored in row-major order in float buffers, typically
+ * views of a memory-mapped file.  The values are not copied onto the heap, so
+ * the operating system serves them from the page cache on demand, and the
+ * matrix may be larger than the heap.  A single mapping is limited to 2 GB, so
+ * the rows are divided into chunks each held in a separate buffer; a row never
+ * spans two chunks.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class MappedMatrix extends Matrix {
+
+  /** Maximum number of bytes in one chunk. */
+  private static final long CHUNK_BYTES = 1L << 30;
+
+  private final FloatBuffer[] mChunks;
+  private final int mChunkRows;
+  // Rows are read into per-thread scratch arrays for distance computations
+  private final ThreadLocal<float[][]> mScratch;
+
+  /**
+   * Construct a matrix backed by the given buffers.  Values are read from
+   * absolute positions, so the positions of the buffers are irrelevant.
+   * @param chunks matrix values in row-major order, each buffer except the last holding <code>chunkRows</code> rows
+   * @param chunkRows number of rows in each chunk
+   * @param rows number of rows
+   * @param cols number of columns
+   */
+  MappedMatrix(final FloatBuffer[] chunks, final int chunkRows, final int rows, final int cols) {
+    super(rows, cols);
+    long total = 0;
+    for (final FloatBuffer chunk : chunks) {
+      total += chunk.capacity();
+    }
+    if (total != (long) rows * cols) {
+      throw new IllegalArgumentException("Data length " + total + " does not match " + rows + "x" + cols);
+    }
+    mChunks = chunks;
+    mChunkRows = chunkRows;
+    mScratch = ThreadLocal.withInitial(() -> new float[2][cols]);
+  }
+
+  /**
+   * Map a matrix stored in a region of a file as little-endian floats in row-major order.
+   * @param channel file
+   * @param position start of the matrix in the file
+   * @param rows number of rows
+   * @param cols number of columns
+   * @return matrix
+   * @throws IOException if an I/O error occurs
+   */
+  static MappedMatrix map(final FileChannel channel, final long position, final int rows, final int cols) throws IOException {
+    final long rowBytes = (long) cols * Float.BYTES;
+    final int chunkRows = (int) Math.max(1, Math.min(rows, CHUNK_BYTES / Math.max(1, rowBytes)));
+    final FloatBuffer[] chunks = new FloatBuffer[(rows + chunkRows - 1) / chunkRows];
+    for (int k = 0; k < chunks.length; ++k) {
+      final int chunkLength = Math.min(chunkRows, rows - k * chunkRows);
+      chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, position + k * chunkRows * rowBytes, chunkLength * rowBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+    return new MappedMatrix(chunks, chunkRows, rows, cols);
+  }
+
+  /**
+   * Map a file containing a matrix as little-endian floats in row-major order.
+   * The mapping remains valid after the method returns.
+   * @param file file
+   * @param cols number of columns
+   * @return matrix
+   * @throws IOException if an I/O error occurs or the file is not a whole number of rows.
+   */
+  static MappedMatrix map(final File file, final int cols) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final long rowBytes = (long) cols * Float.BYTES;
+      final long size = channel.size();
+      if (cols <= 0 || size % rowBytes != 0 || size / rowBytes > Integer.MAX_VALUE) {
+        throw new IOException("File of " + size + " bytes does not contain rows of " + cols + " floats: " + file);
+      }
+      return map(channel, 0, (int) (size / rowBytes), cols);
+    }
+  }
+
+  @Override
+  float get(final int row, final int col) {
+    return mChunks[row / mChunkRows].get((row % mChunkRows) * cols() + col);
+  }
+
+  @Override
+  void set(final int row, final int col, final float val) {
+    throw new UnsupportedOperationException("Matrix is read-only");
+  }
+
+  @Override
+  boolean isFinite() {
+    for (final FloatBuffer chunk : mChunks) {
+      for (int k = 0; k < chunk.capacity(); ++k) {
+        if (!Float.isFinite(chunk.get(k))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  Matrix copy() {
+    final int cols = cols();
+    final float[] data = new float[rows() * cols];
+    final float[] row = new float[cols];
+    for (int r = 0; r < rows(); ++r) {
+      System.arraycopy(row(r, row), 0, data, r * cols, cols);
+    }
+    return new FlatMatrix(data, rows(), cols);
+  }
+
+  @Override
+  float[] row(final int row) {
+    return row(row, new float[cols()]);
+  }
+
+  @Override
+  float[] row(final int row, final float[] scratch) {
+    final FloatBuffer chunk = mChunks[row / mChunkRows];
+    final int offset = (row % mChunkRows) * scratch.length;
+    for (int c = 0; c < scratch.length; ++c) {
+      scratch[c] = chunk.get(offset + c);
+    }
+    return scratch;
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final int j) {
+    final float[][] scratch = mScratch.get();
+    return metric.distance(row(i, scratch[0]), row(j, scratch[1]));
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y) {
+    return metric.distance(row(i, mScratch.get()[0]), y);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final int j, final double[] jPrepared, final int jPreparedOffset) {
+    final float[][] scratch = mScratch.get();
+    return metric.distance(row(i, scratch[0]), iPrepared, iPreparedOffset, row(j, scratch[1]), jPrepared, jPreparedOffset);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    return metric.distance(row(i, mScratch.get()[0]), iPrepared, iPreparedOffset, y, yPrepared, yPreparedOffset);
+  }
+
+  @Override
+  Matrix eliminateZeros() {
+    // There is nothing to be done in this implementation (zeros cannot be removed)
+    return this;
+  }
+}
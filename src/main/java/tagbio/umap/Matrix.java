@@ -7,6 +7,8 @@ package tagbio.umap;
 
 import java.util.Arrays;
 
+import tagbio.umap.metric.Metric;
+
 /**
  * Base class for matrices.
  * @author Sean A. Irvine
@@ -299,6 +301,101 @@ abstract class Matrix {
     return data;
   }
 
+  /**
+   * Return a 1-dimensional row slice from the matrix, avoiding allocation.  The result
+   * is either the given scratch array filled with the row, or an array internal to the
+   * matrix; in either case it must not be modified.  This allows rows to be read
+   * repeatedly into a per-thread scratch array.
+   * @param row row number to get
+   * @param scratch array of length <code>cols()</code>
+   * @return row
+   */
+  float[] row(final int row, final float[] scratch) {
+    for (int k = 0; k < scratch.length; ++k) {
+      scratch[k] = get(row, k);
+    }
+    return scratch;
+  }
+
+  /**
+   * Distance between two rows of this matrix.  Implementations avoid copying
+   * the rows where their storage allows.
+   * @param metric distance function
+   * @param i first row
+   * @param j second row
+   * @return distance between the rows
+   */
+  float distance(final Metric metric, final int i, final int j) {
+    return metric.distance(row(i), row(j));
+  }
+
+  /**
+   * Distance between a row of this matrix and another point.
+   * @param metric distance function
+   * @param i row
+   * @param y other point
+   * @return distance between the row and the point
+   */
+  float distance(final Metric metric, final int i, final float[] y) {
+    return metric.distance(row(i), y);
+  }
+
+  /**
+   * Distance between two rows of this matrix using values prepared for them by
+   * the metric.  Implementations avoid copying the rows where their storage allows.
+   * @param metric distance function
+   * @param i first row
+   * @param iPrepared values prepared for the first row
+   * @param iPreparedOffset position of the values in <code>iPrepared</code>
+   * @param j second row
+   * @param jPrepared values prepared for the second row
+   * @param jPreparedOffset position of the values in <code>jPrepared</code>
+   * @return distance between the rows
+   */
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final int j, final double[] jPrepared, final int jPreparedOffset) {
+    return metric.distance(row(i), iPrepared, iPreparedOffset, row(j), jPrepared, jPreparedOffset);
+  }
+
+  /**
+   * Distance between a row of this matrix and another point using values
+   * prepared for them by the metric.
+   * @param metric distance function
+   * @param i row
+   * @param iPrepared values prepared for the row
+   * @param iPreparedOffset position of the values in <code>iPrepared</code>
+   * @param y other point
+   * @param yPrepared values prepared for the point
+   * @param yPreparedOffset position of the values in <code>yPrepared</code>
+   * @return distance between the row and the point
+   */
+  float distance(final Metric metric, final int i, final double[] iPrepared, final int iPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    return metric.distance(row(i), iPrepared, iPreparedOffset, y, yPrepared, yPreparedOffset);
+  }
+
+  /**
+   * Values of another point prepared for its distances to rows of this matrix,
+   * so that they are computed once per point rather than once per distance.
+   * @param metric distance function
+   * @param y other point
+   * @return prepared values, or null if this matrix does not use any
+   */
+  double[] prepareQuery(final Metric metric, final float[] y) {
+    return null;
+  }
+
+  /**
+   * Distance between a row of this matrix and another point, given values
+   * prepared for the point by <code>prepareQuery</code> with the same metric.
+   * @param metric distance function
+   * @param i row
+   * @param y other point
+   * @param yPrepared prepared values of the point, possibly null
+   * @return distance between the row and the point
+   */
+  float distance(final Metric metric, final int i, final float[] y, final double[] yPrepared) {
+    return distance(metric, i, y);
+  }
+
   Matrix max(final Matrix other) {
     if (!isShapeSame(other)) {
       throw new IllegalArgumentException("Incompatible sizes");
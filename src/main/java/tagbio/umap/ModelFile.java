@@ -0,0 +1,264 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Low level reading and writing of the binary model file format.  The file
+ * consists of a magic number and version, followed by little-endian 32-bit
+ * values (and 64-bit for longs and doubles).  Strings are stored as their UTF-8 length
+ * and bytes, padded to a multiple of four bytes, so that arrays of values
+ * are always aligned.  Arrays are read through a memory mapping of the file.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+final class ModelFile {
+
+  /** Magic number, the bytes "UMAP" in the file. */
+  static final int MAGIC = 0x50414D55;
+  /** Current version of the format. */
+  static final int VERSION = 2;
+
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+  /** Number of values in each write of an array. */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private ModelFile() { }
+
+  /**
+   * Writes values to a model file.
+   */
+  static final class Writer implements Closeable {
+
+    private final FileChannel mChannel;
+
+    Writer(final File file) throws IOException {
+      mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      writeInt(MAGIC);
+      writeInt(VERSION);
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        mChannel.write(buffer);
+      }
+    }
+
+    void writeInt(final int v) throws IOException {
+      write(ByteBuffer.allocate(Integer.BYTES).order(ORDER).putInt(0, v));
+    }
+
+    void writeLong(final long v) throws IOException {
+      write(ByteBuffer.allocate(Long.BYTES).order(ORDER).putLong(0, v));
+    }
+
+    void writeFloat(final float v) throws IOException {
+      write(ByteBuffer.allocate(Float.BYTES).order(ORDER).putFloat(0, v));
+    }
+
+    void writeBoolean(final boolean v) throws IOException {
+      writeInt(v ? 1 : 0);
+    }
+
+    void writeString(final String s) throws IOException {
+      final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      writeInt(bytes.length);
+      write(ByteBuffer.wrap(bytes));
+      write(ByteBuffer.allocate(-bytes.length & 3));
+    }
+
+    void writeInts(final int[] values) throws IOException {
+      for (int lo = 0; lo < values.length; lo += CHUNK_SIZE) {
+        final int len = Math.min(CHUNK_SIZE, values.length - lo);
+        final ByteBuffer buffer = ByteBuffer.allocate(len * Integer.BYTES).order(ORDER);
+        buffer.asIntBuffer().put(values, lo, len);
+        write(buffer);
+      }
+    }
+
+    void writeFloats(final float[] values) throws IOException {
+      for (int lo = 0; lo < values.length; lo += CHUNK_SIZE) {
+        final int len = Math.min(CHUNK_SIZE, values.length - lo);
+        final ByteBuffer buffer = ByteBuffer.allocate(len * Float.BYTES).order(ORDER);
+        buffer.asFloatBuffer().put(values, lo, len);
+        write(buffer);
+      }
+    }
+
+    void writeDoubles(final double[] values) throws IOException {
+      for (int lo = 0; lo < values.length; lo += CHUNK_SIZE) {
+        final int len = Math.min(CHUNK_SIZE, values.length - lo);
+        final ByteBuffer buffer = ByteBuffer.allocate(len * Double.BYTES).order(ORDER);
+        buffer.asDoubleBuffer().put(values, lo, len);
+        write(buffer);
+      }
+    }
+
+    /**
+     * Write the dimensions and values of a dense matrix.
+     * @param matrix matrix
+     * @throws IOException if an I/O error occurs
+     */
+    void writeMatrix(final Matrix matrix) throws IOException {
+      final int rows = matrix.rows();
+      final int cols = matrix.cols();
+      writeInt(rows);
+      writeInt(cols);
+      final int chunkRows = Math.max(1, CHUNK_SIZE / Math.max(1, cols));
+      final float[] scratch = new float[cols];
+      for (int lo = 0; lo < rows; lo += chunkRows) {
+        final int hi = Math.min(lo + chunkRows, rows);
+        final ByteBuffer buffer = ByteBuffer.allocate((hi - lo) * cols * Float.BYTES).order(ORDER);
+        final FloatBuffer floats = buffer.asFloatBuffer();
+        for (int r = lo; r < hi; ++r) {
+          floats.put(matrix.row(r, scratch));
+        }
+        write(buffer);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      mChannel.close();
+    }
+  }
+
+  /**
+   * Reads values from a model file.  Arrays are served from a read-only memory
+   * mapping, which remains valid after the reader is closed.
+   */
+  static final class Reader implements Closeable {
+
+    private final FileChannel mChannel;
+    private long mPosition = 0;
+
+    Reader(final File file) throws IOException {
+      mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      if (readInt() != MAGIC) {
+        close();
+        throw new IOException("Not a UMAP model file: " + file);
+      }
+      final int version = readInt();
+      if (version != VERSION) {
+        close();
+        throw new IOException("Unsupported UMAP model file version " + version + ": " + file);
+      }
+    }
+
+    private ByteBuffer read(final int bytes) throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ORDER);
+      while (buffer.hasRemaining()) {
+        if (mChannel.read(buffer, mPosition + buffer.position()) < 0) {
+          throw new EOFException("Truncated UMAP model file");
+        }
+      }
+      mPosition += bytes;
+      return buffer;
+    }
+
+    private ByteBuffer map(final long bytes) throws IOException {
+      if (bytes > Integer.MAX_VALUE) {
+        throw new IOException("Section of " + bytes + " bytes is too large to map");
+      }
+      if (mPosition + bytes > mChannel.size()) {
+        throw new EOFException("Truncated UMAP model file");
+      }
+      final ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, mPosition, bytes).order(ORDER);
+      mPosition += bytes;
+      return buffer;
+    }
+
+    int readInt() throws IOException {
+      return read(Integer.BYTES).getInt(0);
+    }
+
+    long readLong() throws IOException {
+      return read(Long.BYTES).getLong(0);
+    }
+
+    float readFloat() throws IOException {
+      return read(Float.BYTES).getFloat(0);
+    }
+
+    boolean readBoolean() throws IOException {
+      return readInt() != 0;
+    }
+
+    String readString() throws IOException {
+      final int len = readInt();
+      final ByteBuffer buffer = read(len);
+      read(-len & 3);
+      return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    int[] readInts(final int n) throws IOException {
+      final int[] res = new int[n];
+      if (n > 0) {
+        map((long) n * Integer.BYTES).asIntBuffer().get(res);
+      }
+      return res;
+    }
+
+    float[] readFloats(final int n) throws IOException {
+      final float[] res = new float[n];
+      if (n > 0) {
+        map((long) n * Float.BYTES).asFloatBuffer().get(res);
+      }
+      return res;
+    }
+
+    double[] readDoubles(final int n) throws IOException {
+      final double[] res = new double[n];
+      if (n > 0) {
+        map((long) n * Double.BYTES).asDoubleBuffer().get(res);
+      }
+      return res;
+    }
+
+    /**
+     * Read a dense matrix, copying it onto the heap.
+     * @return matrix
+     * @throws IOException if an I/O error occurs
+     */
+    FlatMatrix readFlatMatrix() throws IOException {
+      final int rows = readInt();
+      final int cols = readInt();
+      return new FlatMatrix(readFloats(rows * cols), rows, cols);
+    }
+
+    /**
+     * Read a dense matrix without copying, the values remain in the mapped file.
+     * @return matrix
+     * @throws IOException if an I/O error occurs
+     */
+    MappedMatrix readMappedMatrix() throws IOException {
+      final int rows = readInt();
+      final int cols = readInt();
+      final long bytes = (long) rows * cols * Float.BYTES;
+      if (mPosition + bytes > mChannel.size()) {
+        throw new EOFException("Truncated UMAP model file");
+      }
+      final MappedMatrix matrix = MappedMatrix.map(mChannel, mPosition, rows, cols);
+      mPosition += bytes;
+      return matrix;
+    }
+
+    @Override
+    public void close() throws IOException {
+      mChannel.close();
+    }
+  }
+}
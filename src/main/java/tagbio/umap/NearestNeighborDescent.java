@@ -20,6 +20,7 @@ class NearestNeighborDescent {
 
   final Metric mMetric;
   boolean mVerbose;
+  UmapProgress mProgress = UmapProgress.NONE;
 
   /**
    * Construct a nearest neighbor descent object for the given metric.
@@ -33,30 +34,36 @@ class NearestNeighborDescent {
     mVerbose = flag;
   }
 
-  Heap descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest) {
+  /**
+   * Set the progress to which completed iterations are reported.
+   * @param progress progress of the current fit
+   */
+  void setProgress(final UmapProgress progress) {
+    mProgress = progress;
+  }
+
+  IndexedDistances descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest) {
     return descent(data, nNeighbors, random, maxCandidates, rpTreeInit, nIters, forest, 0.001F, 0.5F);
   }
 
-  Heap descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest, final float delta, final float rho) {
+  IndexedDistances descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest, final float delta, final float rho) {
     final int nVertices = data.rows();
     final Heap currentGraph = new Heap(data.rows(), nNeighbors);
     for (int i = 0; i < data.rows(); ++i) {
-      final float[] iRow = data.row(i);
       for (final int index : Utils.rejectionSample(nNeighbors, data.rows(), random)) {
-        final float d = mMetric.distance(iRow, data.row(index));
+        final float d = data.distance(mMetric, i, index);
         currentGraph.push(i, d, index, true);
         currentGraph.push(index, d, i, true);
       }
     }
-    UmapProgress.update();
+    mProgress.step();
 
     if (rpTreeInit) {
       for (final FlatTree tree : forest) {
         for (final int[] leaf : tree.getIndices()) {
           for (int i = 0; i < leaf.length; ++i) {
-            final float[] iRow = data.row(leaf[i]);
             for (int j = i + 1; j < leaf.length; ++j) {
-              final float d = mMetric.distance(iRow, data.row(leaf[j]));
+              final float d = data.distance(mMetric, leaf[i], leaf[j]);
               currentGraph.push(leaf[i], d, leaf[j], true);
               currentGraph.push(leaf[j], d, leaf[i], true);
             }
@@ -64,7 +71,7 @@ class NearestNeighborDescent {
         }
       }
     }
-    UmapProgress.update();
+    mProgress.step();
 
     final boolean[] rejectStatus = new boolean[maxCandidates];
     for (int n = 0; n < nIters; ++n) {
@@ -91,7 +98,7 @@ class NearestNeighborDescent {
               continue;
             }
 
-            final float d = mMetric.distance(data.row(p), data.row(q));
+            final float d = data.distance(mMetric, p, q);
             if (currentGraph.push(p, d, q, true)) {
               ++c;
             }
@@ -103,23 +110,21 @@ class NearestNeighborDescent {
       }
 
       if (c <= delta * nNeighbors * data.rows()) {
-        UmapProgress.update(nIters - n);
+        mProgress.step(nIters - n);
         break;
       }
-      UmapProgress.update();
+      mProgress.step();
     }
     return currentGraph.deheapSort();
   }
 
 
-  static Heap initialiseSearch(final List<FlatTree> forest, final Matrix data, final Matrix queryPoints, final int nNeighbors, final NearestNeighborSearch nn, final Random random) {
-    final Heap results = new Heap(queryPoints.rows(), nNeighbors);
-    nn.randomInit(nNeighbors, data, queryPoints, results, random);
+  static void initialiseSearch(final List<FlatTree> forest, final Matrix data, final Matrix queryPoints, final int lo, final int hi, final int nNeighbors, final NearestNeighborSearch nn, final Heap results, final Random random) {
+    nn.randomInit(nNeighbors, data, queryPoints, lo, hi, results, random);
     if (forest != null) {
       for (final FlatTree tree : forest) {
-        nn.treeInit(tree, data, queryPoints, results, random);
+        nn.treeInit(tree, data, queryPoints, lo, hi, results, random);
       }
     }
-    return results;
   }
 }
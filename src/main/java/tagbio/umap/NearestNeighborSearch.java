@@ -5,9 +5,8 @@
  */
 package tagbio.umap;
 
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
 
 import tagbio.umap.metric.Metric;
 
@@ -25,35 +24,58 @@ class NearestNeighborSearch {
     mDist = dist;
   }
 
-  void treeInit(final FlatTree tree, final Matrix data, final Matrix queryPoints, final Heap heap, final Random random) {
-    for (int i = 0; i < queryPoints.rows(); ++i) {
-      final int[] indices = tree.searchFlatTree(queryPoints.row(i), random);
+  void treeInit(final FlatTree tree, final Matrix data, final Matrix queryPoints, final int lo, final int hi, final Heap heap, final Random random) {
+    for (int i = lo; i < hi; ++i) {
+      final float[] query = queryPoints.row(i);
+      final double[] prepared = data.prepareQuery(mDist, query);
+      final int[] indices = tree.searchFlatTree(query, random);
       for (final int index : indices) {
         if (index < 0) {
           continue;
         }
-        final float d = mDist.distance(data.row(index), queryPoints.row(i));
+        final float d = data.distance(mDist, index, query, prepared);
         heap.push(i, d, index, true);
       }
     }
   }
 
-  void randomInit(final int nNeighbors, final Matrix data, final Matrix queryPoints, final Heap heap, final Random random) {
-    for (int i = 0; i < queryPoints.rows(); ++i) {
+  void randomInit(final int nNeighbors, final Matrix data, final Matrix queryPoints, final int lo, final int hi, final Heap heap, final Random random) {
+    for (int i = lo; i < hi; ++i) {
+      final float[] query = queryPoints.row(i);
+      final double[] prepared = data.prepareQuery(mDist, query);
       final int[] indices = Utils.rejectionSample(nNeighbors, data.rows(), random);
       for (final int index : indices) {
-        final float d = mDist.distance(data.row(index), queryPoints.row(i));
+        final float d = data.distance(mDist, index, query, prepared);
         heap.push(i, d, index, true);
       }
     }
   }
 
-  Heap initializedNndSearch(final Matrix data, final SearchGraph searchGraph, Heap initialization, final Matrix queryPoints) {
-    for (int i = 0; i < queryPoints.rows(); ++i) {
+  /**
+   * Improve the initial neighbors of the query points in the given range by
+   * searching the neighbors of their neighbors in the search graph.  Different
+   * ranges of query points may be searched concurrently.
+   * @param data training instances
+   * @param searchGraph neighbors of each training instance
+   * @param initialization initial neighbors of each query point, updated in place
+   * @param queryPoints query points
+   * @param lo first query point to search
+   * @param hi upper bound (exclusive) on query points to search
+   * @return the updated neighbors
+   */
+  Heap initializedNndSearch(final Matrix data, final SearchGraph searchGraph, final Heap initialization, final Matrix queryPoints, final int lo, final int hi) {
+    // Reused for every query in the range, grows with the largest search frontier
+    final VisitedSet tried = new VisitedSet(4 * initialization.size());
+    for (int i = lo; i < hi; ++i) {
 
-      final Set<Integer> tried = new TreeSet<>();
-      for (final int t : initialization.indices()[i]) {
-        tried.add(t);
+      final float[] query = queryPoints.row(i);
+      final double[] prepared = data.prepareQuery(mDist, query);
+      tried.clear();
+      for (int j = 0; j < initialization.size(); ++j) {
+        final int t = initialization.index(i, j);
+        if (t >= 0) {
+          tried.add(t);
+        }
       }
 
       while (true) {
@@ -64,17 +86,77 @@ class NearestNeighborSearch {
         if (vertex == -1) {
           break;
         }
-        for (final int candidate : searchGraph.row(vertex)) {
-          if (candidate == vertex || candidate == -1 || tried.contains(candidate)) {
+        for (int p = searchGraph.start(vertex); p < searchGraph.end(vertex); ++p) {
+          final int candidate = searchGraph.neighbor(p);
+          if (candidate == vertex || candidate == -1 || !tried.add(candidate)) {
             continue;
           }
-          final float d = mDist.distance(data.row(candidate), queryPoints.row(i));
+          final float d = data.distance(mDist, candidate, query, prepared);
           initialization.uncheckedHeapPush(i, d, candidate, true);
-          tried.add(candidate);
         }
       }
     }
 
     return initialization;
   }
+
+  /**
+   * Set of instances visited during a query.  Open addressing with linear
+   * probing, so its size depends on the number of instances visited by a
+   * query rather than the number of training instances.
+   */
+  private static final class VisitedSet {
+    private static final int EMPTY = -1;
+    private int[] mKeys;
+    private int mShift;
+    private int mSize = 0;
+
+    VisitedSet(final int expected) {
+      int bits = 4;
+      while ((1 << bits) < 2 * expected) {
+        ++bits;
+      }
+      allocate(bits);
+    }
+
+    private void allocate(final int bits) {
+      mKeys = new int[1 << bits];
+      Arrays.fill(mKeys, EMPTY);
+      mShift = 32 - bits;
+    }
+
+    void clear() {
+      if (mSize > 0) {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+      }
+    }
+
+    boolean add(final int instance) {
+      final int mask = mKeys.length - 1;
+      int h = (instance * 0x9E3779B9) >>> mShift;
+      while (mKeys[h] != EMPTY) {
+        if (mKeys[h] == instance) {
+          return false;
+        }
+        h = (h + 1) & mask;
+      }
+      mKeys[h] = instance;
+      if (++mSize > mKeys.length >>> 1) {
+        grow();
+      }
+      return true;
+    }
+
+    private void grow() {
+      final int[] old = mKeys;
+      allocate(33 - mShift);
+      mSize = 0;
+      for (final int instance : old) {
+        if (instance != EMPTY) {
+          add(instance);
+        }
+      }
+    }
+  }
 }
@@ -5,11 +5,21 @@
  */
 package tagbio.umap;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import tagbio.umap.metric.Metric;
 import tagbio.umap.metric.PrecomputedMetric;
 
 /**
  * Compute pairwise distances between instances using a specified metric.
+ * The computation proceeds in square tiles of rows so that the instances of a
+ * tile remain in cache while all their pairs are considered.  Metrics are
+ * assumed to be symmetric, so only the upper triangle of a square distance
+ * matrix is computed.
  * @author Sean A. Irvine
  * @author Richard Littin
  */
@@ -17,37 +27,126 @@ final class PairwiseDistances {
 
   // replacement for sklearn.pairwise_distances
 
+  /** Number of rows in a tile. */
+  private static final int BLOCK_SIZE = 64;
+
   private PairwiseDistances() { }
 
+  private interface Block {
+    void compute(int block);
+  }
+
+  // Compute the given number of blocks, in parallel if more than one thread is requested
+  private static void computeBlocks(final int blocks, final int threads, final Block block) {
+    if (threads <= 1 || blocks <= 1) {
+      for (int b = 0; b < blocks; ++b) {
+        block.compute(b);
+      }
+      return;
+    }
+    final ExecutorService executor = SharedExecutor.acquire(threads);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int b = 0; b < blocks; ++b) {
+        final int blk = b;
+        futures.add(executor.submit(() -> block.compute(blk)));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } catch (final InterruptedException | ExecutionException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      SharedExecutor.release(executor);
+    }
+  }
+
+  private static float[][] rows(final Matrix x) {
+    final float[][] rows = new float[x.rows()][];
+    for (int k = 0; k < rows.length; ++k) {
+      rows[k] = x.row(k);
+    }
+    return rows;
+  }
+
   static Matrix pairwiseDistances(final Matrix x, final Metric metric) {
+    return pairwiseDistances(x, metric, 1);
+  }
+
+  /**
+   * Compute the square matrix of distances between all pairs of rows of a matrix.
+   * @param x instances
+   * @param metric symmetric distance function
+   * @param threads number of threads
+   * @return distance matrix
+   */
+  static Matrix pairwiseDistances(final Matrix x, final Metric metric, final int threads) {
     if (PrecomputedMetric.SINGLETON.equals(metric)) {
       return x;
     }
     final int n = x.rows();
     final float[][] distances = new float[n][n];
-    for (int k = 0; k < n; ++k) {
-      final float[] xk = x.row(k);
-      for (int j = 0; j < n; ++j) {
-        distances[k][j] = metric.distance(xk, x.row(j));
+    // Each job handles the tiles on and to the right of the diagonal in one band
+    // of rows, writing both the tile and its mirror image.  Jobs are submitted
+    // in order of decreasing size.
+    computeBlocks((n + BLOCK_SIZE - 1) / BLOCK_SIZE, threads, block -> {
+      final int lo = block * BLOCK_SIZE;
+      final int hi = Math.min(lo + BLOCK_SIZE, n);
+      for (int jlo = lo; jlo < n; jlo += BLOCK_SIZE) {
+        final int jhi = Math.min(jlo + BLOCK_SIZE, n);
+        for (int k = lo; k < hi; ++k) {
+          final float[] dk = distances[k];
+          for (int j = Math.max(jlo, k); j < jhi; ++j) {
+            final float d = x.distance(metric, k, j);
+            dk[j] = d;
+            distances[j][k] = d;
+          }
+        }
       }
-    }
+    });
     return new DefaultMatrix(distances);
   }
 
   static Matrix pairwiseDistances(final Matrix x, final Matrix y, final Metric metric) {
+    return pairwiseDistances(x, y, metric, 1);
+  }
+
+  /**
+   * Compute the matrix of distances between each row of one matrix and each row
+   * of another matrix.
+   * @param x instances
+   * @param y other instances
+   * @param metric distance function
+   * @param threads number of threads
+   * @return distance matrix with a row for each instance of <code>x</code>
+   */
+  static Matrix pairwiseDistances(final Matrix x, final Matrix y, final Metric metric, final int threads) {
     if (PrecomputedMetric.SINGLETON.equals(metric)) {
       throw new IllegalArgumentException("Cannot use this method with precomputed");
     }
     final int xn = x.rows();
     final int yn = y.rows();
+    final float[][] xRows = rows(x);
     final float[][] distances = new float[xn][yn];
-    for (int k = 0; k < xn; ++k) {
-      final float[] xk = x.row(k);
-      for (int j = 0; j < yn; ++j) {
-        distances[k][j] = metric.distance(xk, y.row(j));
+    computeBlocks((xn + BLOCK_SIZE - 1) / BLOCK_SIZE, threads, block -> {
+      final int lo = block * BLOCK_SIZE;
+      final int hi = Math.min(lo + BLOCK_SIZE, xn);
+      final double[][] prepared = new double[hi - lo][];
+      for (int k = lo; k < hi; ++k) {
+        prepared[k - lo] = y.prepareQuery(metric, xRows[k]);
       }
-    }
+      for (int jlo = 0; jlo < yn; jlo += BLOCK_SIZE) {
+        final int jhi = Math.min(jlo + BLOCK_SIZE, yn);
+        for (int k = lo; k < hi; ++k) {
+          final float[] xk = xRows[k];
+          final double[] xkPrepared = prepared[k - lo];
+          final float[] dk = distances[k];
+          for (int j = jlo; j < jhi; ++j) {
+            dk[j] = y.distance(metric, j, xk, xkPrepared);
+          }
+        }
+      }
+    });
     return new DefaultMatrix(distances);
   }
-
 }
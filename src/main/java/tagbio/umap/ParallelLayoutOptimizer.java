@@ -0,0 +1,87 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Stochastic gradient descent optimization of an embedding.
+ * Nondeterministic parallel version in the style of Hogwild: the 1-simplices
+ * are partitioned across the threads and all threads update the shared
+ * embedding without any locking.  When only the head embedding moves and the
+ * 1-simplices are ordered by head, the threads update disjoint points.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class ParallelLayoutOptimizer extends LayoutOptimizer {
+
+  private final int mThreads;
+
+  /**
+   * Construct a parallel optimizer for the given embeddings and 1-simplices.
+   * See <code>LayoutOptimizer</code> for a description of the parameters.
+   * @param threads number of threads
+   */
+  ParallelLayoutOptimizer(final FlatMatrix headEmbedding, final FlatMatrix tailEmbedding, final int[] head, final int[] tail, final int nVertices, final float[] epochsPerSample, final float a, final float b, final float gamma, final float negativeSampleRate, final boolean moveOther, final int threads) {
+    super(headEmbedding, tailEmbedding, head, tail, nVertices, epochsPerSample, a, b, gamma, negativeSampleRate, moveOther);
+    if (threads < 1) {
+      throw new IllegalArgumentException();
+    }
+    mThreads = threads;
+  }
+
+  @Override
+  FlatMatrix optimize(final int nEpochs, final float initialAlpha, final Random random) {
+    final ExecutorService executor = SharedExecutor.acquire(mThreads);
+    try {
+      final Random[] randoms = Utils.splitRandom(random, mThreads);
+      final int nEdges = mEpochsPerSample.length;
+      final int chunkSize = (nEdges + mThreads - 1) / mThreads;
+      // Ranges do not split the consecutive 1-simplices of a head, so that when the
+      // tail embedding is not moved different threads never update the same point
+      final int[] bounds = new int[mThreads + 1];
+      for (int t = 1; t < mThreads; ++t) {
+        int b = Math.max(bounds[t - 1], Math.min(t * chunkSize, nEdges));
+        while (b > 0 && b < nEdges && mHead[b] == mHead[b - 1]) {
+          ++b;
+        }
+        bounds[t] = b;
+      }
+      bounds[mThreads] = nEdges;
+      final EdgeSchedule[] schedules = new EdgeSchedule[mThreads];
+      for (int t = 0; t < mThreads; ++t) {
+        schedules[t] = new EdgeSchedule(mEpochOfNextSample, bounds[t], bounds[t + 1], nEpochs);
+      }
+      final List<Future<?>> futures = new ArrayList<>();
+      float alpha = initialAlpha;
+      for (int n = 0; n < nEpochs; ++n) {
+        final int epoch = n;
+        final float epochAlpha = alpha;
+        for (int t = 0; t < mThreads; ++t) {
+          final EdgeSchedule schedule = schedules[t];
+          final Random rand = randoms[t];
+          futures.add(executor.submit(() -> optimizeEpoch(epoch, epochAlpha, schedule, rand)));
+        }
+        for (final Future<?> future : futures) {
+          future.get();
+        }
+        futures.clear();
+        alpha = initialAlpha * (1 - (float) n / (float) nEpochs);
+        epochCompleted(n, nEpochs);
+      }
+      return mHeadEmbedding;
+    } catch (final InterruptedException | ExecutionException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      SharedExecutor.release(executor);
+    }
+  }
+}
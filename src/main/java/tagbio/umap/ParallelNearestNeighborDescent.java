@@ -10,14 +10,19 @@ import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import tagbio.umap.metric.Metric;
 
 /**
  * Nearest neighbor descent for a specified distance metric.
- * Nondeterministic parallel version.
+ * Nondeterministic parallel version.  Work is divided into a number of jobs
+ * depending on the number of threads.  Distances computed by the jobs are
+ * buffered and then merged into the heaps, with each thread owning a
+ * disjoint set of rows, so no locking is required.  Updates are merged after
+ * each block of rows, so the buffers do not grow with the number of rows.  Candidates are built in
+ * parallel in the same way, with new and old candidates kept separately as
+ * in pynndescent, so pairs of old candidates are never considered.
  * @author Leland McInnes (Python)
  * @author Sean A. Irvine
  * @author Richard Littin
@@ -40,134 +45,164 @@ class ParallelNearestNeighborDescent extends  NearestNeighborDescent {
   }
 
   @Override
-  Heap descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest) {
+  IndexedDistances descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest) {
     return descent(data, nNeighbors, random, maxCandidates, rpTreeInit, nIters, forest, 0.001F, 0.5F);
   }
 
   @Override
-  Heap descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest, final float delta, final float rho) {
-    final ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+  IndexedDistances descent(final Matrix data, final int nNeighbors, final Random random, final int maxCandidates, final boolean rpTreeInit, final int nIters, final List<FlatTree> forest, final float delta, final float rho) {
+    final ExecutorService executor = SharedExecutor.acquire(mThreads);
     try {
-      UmapProgress.incTotal(nIters);
-
-      final List<Future<Integer>> futures = new ArrayList<>();
+      mProgress.addTotal(nIters);
 
       final int nVertices = data.rows();
       final Heap currentGraph = new Heap(data.rows(), nNeighbors);
 
+      // Each job buffers its proposed updates, which are then applied with each
+      // thread owning a block of rows, so the heaps are never pushed concurrently.
+      // Updates are applied after each block of rows to bound the buffer memory.
       final int jobs = (int)(mThreads * (1 + MathUtils.log2(mThreads)));
-      final int chunkSize = (nVertices + jobs - 1) / jobs;
-
-      for (int t = 0; t < jobs; ++t) {
-        final int lo = t * chunkSize;
-        final int hi = Math.min((t + 1) * chunkSize, nVertices);
-        futures.add(executor.submit(() -> {
-          for (int i = lo; i < hi; ++i) {
-            final float[] iRow = data.row(i);
-            for (final int index : Utils.rejectionSample(nNeighbors, data.rows(), random)) {
-              final float d = mMetric.distance(iRow, data.row(index));
-              currentGraph.push(i, d, index, true);
-              currentGraph.push(index, d, i, true);
-            }
+      final int chunkSize = Math.max(1, HeapUpdates.BLOCK_SIZE / jobs);
+      final int nChunks = (nVertices + chunkSize - 1) / chunkSize;
+      final HeapUpdates[] updates = HeapUpdates.create(jobs);
+
+      final Random[] initRandoms = Utils.splitRandom(random, nChunks);
+      HeapUpdates.computeAndApply(executor, mThreads, currentGraph, updates, nChunks, (chunk, u) -> {
+        final Random rand = initRandoms[chunk];
+        final int hi = Math.min((chunk + 1) * chunkSize, nVertices);
+        for (int i = chunk * chunkSize; i < hi; ++i) {
+          for (final int index : Utils.rejectionSample(nNeighbors, data.rows(), rand)) {
+            u.add(i, index, data.distance(mMetric, i, index));
           }
-          return 0;
-        }));
-      }
-      waitForFutures(futures);
+        }
+      });
 
       if (rpTreeInit) {
-        final int cs = (forest.size() + jobs - 1) / jobs;
-        for (int t = 0; t < jobs; ++t) {
-          final int lo = t * cs;
-          final int hi = Math.min((t + 1) * cs, forest.size());
-          futures.add(executor.submit(() -> {
-            //System.out.println("T: " + lo + ":" + hi + " : " + leafArray.length);
-            for (int l = lo; l < hi; ++l) {
-              for (final int[] leaf : forest.get(l).getIndices()) {
-                for (int i = 0; i < leaf.length; ++i) {
-                  final float[] iRow = data.row(leaf[i]);
-                  for (int j = i + 1; j < leaf.length; ++j) {
-                    final float d = mMetric.distance(iRow, data.row(leaf[j]));
-                    currentGraph.push(leaf[i], d, leaf[j], true);
-                    currentGraph.push(leaf[j], d, leaf[i], true);
+        for (final FlatTree tree : forest) {
+          final int[][] leaves = tree.getIndices();
+          final int leafChunkSize = Math.max(1, (leaves.length + jobs - 1) / jobs);
+          final int nLeafChunks = (leaves.length + leafChunkSize - 1) / leafChunkSize;
+          HeapUpdates.computeAndApply(executor, mThreads, currentGraph, updates, nLeafChunks, (chunk, u) -> {
+            final int hi = Math.min((chunk + 1) * leafChunkSize, leaves.length);
+            for (int l = chunk * leafChunkSize; l < hi; ++l) {
+              final int[] leaf = leaves[l];
+              for (int i = 0; i < leaf.length; ++i) {
+                for (int j = i + 1; j < leaf.length; ++j) {
+                  final float d = data.distance(mMetric, leaf[i], leaf[j]);
+                  if (d < currentGraph.weight(leaf[i], 0) || d < currentGraph.weight(leaf[j], 0)) {
+                    u.add(leaf[i], leaf[j], d);
                   }
                 }
               }
             }
-            return 0;
-          }));
+          });
         }
-        waitForFutures(futures);
       }
 
-      for (int n = 0; n < nIters; ++n) {
-        if (mVerbose) {
-          Utils.message("NearestNeighborDescent: " + (n + 1) + " / " + nIters);
-        }
+      iterate(executor, data, currentGraph, updates, chunkSize, nChunks, nNeighbors, random, maxCandidates, nIters, delta, rho);
 
-        final Heap candidateNeighbors = currentGraph.buildCandidates(nVertices, nNeighbors, maxCandidates, random);
-
-        for (int t = 0; t < jobs; ++t) {
-          final int lo = t * chunkSize;
-          final int hi = Math.min((t + 1) * chunkSize, nVertices);
-          futures.add(executor.submit(() -> {
-            final boolean[] rejectStatus = new boolean[maxCandidates];
-            int c = 0;
-            for (int i = lo; i < hi; ++i) {
-              for (int j = 0; j < maxCandidates; ++j) {
-                rejectStatus[j] = random.nextFloat() < rho;
-              }
+      return currentGraph.deheapSort();
+    } catch (InterruptedException | ExecutionException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      SharedExecutor.release(executor);
+    }
+  }
 
-              for (int j = 0; j < maxCandidates; ++j) {
-                final int p = candidateNeighbors.index(i, j);
-                if (p < 0) {
-                  continue;
-                }
+  // The candidate heaps are local to this method, so they can be collected
+  // before the final sort
+  private void iterate(final ExecutorService executor, final Matrix data, final Heap currentGraph, final HeapUpdates[] updates, final int chunkSize, final int nChunks, final int nNeighbors, final Random random, final int maxCandidates, final int nIters, final float delta, final float rho) throws InterruptedException, ExecutionException {
+    final List<Future<Integer>> futures = new ArrayList<>();
+    final int nVertices = data.rows();
+    // Candidate heaps are reused across iterations
+    final Heap newCandidates = new Heap(nVertices, maxCandidates);
+    final Heap oldCandidates = new Heap(nVertices, maxCandidates);
+    final int blockSize = (nVertices + mThreads - 1) / mThreads;
+
+    for (int n = 0; n < nIters; ++n) {
+      if (mVerbose) {
+        Utils.message("NearestNeighborDescent: " + (n + 1) + " / " + nIters);
+      }
 
-                for (int k = 0; k <= j; ++k) {
-                  final int q = candidateNeighbors.index(i, k);
-                  if (q < 0 || (rejectStatus[j] && rejectStatus[k]) || (!candidateNeighbors.isNew(i, j) && !candidateNeighbors.isNew(i, k))) {
-                    continue;
-                  }
+      // Build candidates with each thread owning a block of rows, then
+      // mark the selected neighbors as old once all blocks are complete
+      final Random[] blockRandoms = Utils.splitRandom(random, mThreads);
+      for (int t = 0; t < mThreads; ++t) {
+        final int lo = t * blockSize;
+        final int hi = Math.min((t + 1) * blockSize, nVertices);
+        final Random rand = blockRandoms[t];
+        futures.add(executor.submit(() -> {
+          currentGraph.buildCandidates(newCandidates, oldCandidates, nNeighbors, lo, hi, rand);
+          return 0;
+        }));
+      }
+      waitForFutures(futures);
+      for (int t = 0; t < mThreads; ++t) {
+        final int lo = t * blockSize;
+        final int hi = Math.min((t + 1) * blockSize, nVertices);
+        futures.add(executor.submit(() -> {
+          currentGraph.flagCandidates(newCandidates, lo, hi);
+          return 0;
+        }));
+      }
+      waitForFutures(futures);
 
-                  final float d = mMetric.distance(data.row(p), data.row(q));
-                  if (currentGraph.push(p, d, q, true)) {
-                    ++c;
-                  }
-                  if (currentGraph.push(q, d, p, true)) {
-                    ++c;
-                  }
-                }
+      final Random[] randoms = Utils.splitRandom(random, nChunks);
+      final int c = HeapUpdates.computeAndApply(executor, mThreads, currentGraph, updates, nChunks, (chunk, u) -> {
+        final Random rand = randoms[chunk];
+        final boolean[] rejectNew = new boolean[maxCandidates];
+        final boolean[] rejectOld = new boolean[maxCandidates];
+        final int hi = Math.min((chunk + 1) * chunkSize, nVertices);
+        for (int i = chunk * chunkSize; i < hi; ++i) {
+          for (int j = 0; j < maxCandidates; ++j) {
+            rejectNew[j] = rand.nextFloat() < rho;
+            rejectOld[j] = rand.nextFloat() < rho;
+          }
+
+          for (int j = 0; j < maxCandidates; ++j) {
+            final int p = newCandidates.index(i, j);
+            if (p < 0) {
+              continue;
+            }
+            // New candidates are compared to each other and to the old candidates
+            for (int k = j; k < maxCandidates; ++k) {
+              final int q = newCandidates.index(i, k);
+              if (q < 0 || (rejectNew[j] && rejectNew[k])) {
+                continue;
+              }
+              final float d = data.distance(mMetric, p, q);
+              if (d < currentGraph.weight(p, 0) || d < currentGraph.weight(q, 0)) {
+                u.add(p, q, d);
+              }
+            }
+            for (int k = 0; k < maxCandidates; ++k) {
+              final int q = oldCandidates.index(i, k);
+              if (q < 0 || (rejectNew[j] && rejectOld[k])) {
+                continue;
+              }
+              final float d = data.distance(mMetric, p, q);
+              if (d < currentGraph.weight(p, 0) || d < currentGraph.weight(q, 0)) {
+                u.add(p, q, d);
               }
             }
-            return c;
-          }));
+          }
         }
-        final int c = waitForFutures(futures);
+      });
 
-        if (c <= delta * nNeighbors * data.rows()) {
-          UmapProgress.update(nIters - n);
-          break;
-        }
-        UmapProgress.update();
+      if (c <= delta * nNeighbors * data.rows()) {
+        mProgress.step(nIters - n);
+        break;
       }
-
-      return currentGraph.deheapSort();
-    } catch (InterruptedException | ExecutionException ex) {
-      throw new RuntimeException(ex);
-    } finally {
-      executor.shutdown();
+      mProgress.step();
     }
   }
 
   private static int waitForFutures(List<Future<Integer>> futures) throws InterruptedException, ExecutionException {
-    //System.out.println("WAITING " + futures.size());
     int c = 0;
     for (Future<Integer> future : futures) {
       c += future.get();
     }
     futures.clear();
-    //System.out.println("DONE " + futures.size() + " : " + c);
     return c;
   }
 }
@@ -0,0 +1,49 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Random;
+
+/**
+ * Stochastic gradient descent placement of a few new points relative to a
+ * fixed existing embedding.  The tail embedding is only read, so it need not
+ * be copied.  Each new point is optimized on its own through all the epochs,
+ * scanning its few 1-simplices directly rather than maintaining a schedule
+ * of all the 1-simplices.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class PointLayoutOptimizer extends LayoutOptimizer {
+
+  /**
+   * Construct an optimizer for new points.  The 1-simplices must be ordered by head.
+   * See <code>LayoutOptimizer</code> for a description of the parameters.
+   */
+  PointLayoutOptimizer(final FlatMatrix headEmbedding, final FlatMatrix tailEmbedding, final int[] head, final int[] tail, final int nVertices, final float[] epochsPerSample, final float a, final float b, final float gamma, final float negativeSampleRate) {
+    super(headEmbedding, tailEmbedding, head, tail, nVertices, epochsPerSample, a, b, gamma, negativeSampleRate, false);
+  }
+
+  @Override
+  FlatMatrix optimize(final int nEpochs, final float initialAlpha, final Random random) {
+    final int nEdges = mEpochsPerSample.length;
+    for (int lo = 0, hi; lo < nEdges; lo = hi) {
+      hi = lo + 1;
+      while (hi < nEdges && mHead[hi] == mHead[lo]) {
+        ++hi;
+      }
+      float alpha = initialAlpha;
+      for (int n = 0; n < nEpochs; ++n) {
+        for (int i = lo; i < hi; ++i) {
+          if (mEpochOfNextSample[i] <= n) {
+            sample(i, n, alpha, random);
+          }
+        }
+        alpha = initialAlpha * (1 - (float) n / (float) nEpochs);
+      }
+    }
+    return mHeadEmbedding;
+  }
+}
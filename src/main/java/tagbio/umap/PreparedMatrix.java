@@ -0,0 +1,155 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import tagbio.umap.metric.Metric;
+
+/**
+ * Read-only view of a dense matrix together with values prepared by a metric
+ * for each row (for example, norms for cosine distance).  Distances under that
+ * metric use the prepared values rather than recomputing them on every call.
+ * Distances under other metrics are delegated to the underlying matrix.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+class PreparedMatrix extends Matrix {
+
+  private final Matrix mMatrix;
+  private final Metric mMetric;
+  private final int mLength;
+  private final double[] mPrepared;
+  // Prepared values of an external point are computed into per-thread scratch
+  private final ThreadLocal<double[]> mPreparedScratch;
+
+  PreparedMatrix(final Matrix matrix, final Metric metric) {
+    this(matrix, metric, prepareRows(matrix, metric));
+  }
+
+  /**
+   * View a matrix with values previously prepared for it, for example, as
+   * read from a model file.
+   * @param matrix matrix
+   * @param metric metric
+   * @param prepared prepared values for each row, as returned by <code>prepared</code>
+   */
+  PreparedMatrix(final Matrix matrix, final Metric metric, final double[] prepared) {
+    super(matrix.rows(), matrix.cols());
+    if (prepared.length != matrix.rows() * metric.preparedLength()) {
+      throw new IllegalArgumentException("Expected " + matrix.rows() * metric.preparedLength() + " prepared values, got " + prepared.length);
+    }
+    mMatrix = matrix;
+    mMetric = metric;
+    mLength = metric.preparedLength();
+    mPrepared = prepared;
+    mPreparedScratch = ThreadLocal.withInitial(() -> new double[mLength]);
+  }
+
+  private static double[] prepareRows(final Matrix matrix, final Metric metric) {
+    final int length = metric.preparedLength();
+    final double[] prepared = new double[matrix.rows() * length];
+    final float[] scratch = new float[matrix.cols()];
+    for (int r = 0; r < matrix.rows(); ++r) {
+      metric.prepare(matrix.row(r, scratch), prepared, r * length);
+    }
+    return prepared;
+  }
+
+  /**
+   * Return the prepared values of all rows, consecutively.  The array is not
+   * copied and must not be modified.
+   * @return prepared values
+   */
+  double[] prepared() {
+    return mPrepared;
+  }
+
+  /**
+   * Return a view of the matrix with prepared values for the given metric if
+   * the metric supports preparation, otherwise the matrix itself.  Sparse
+   * matrices are not prepared, they have their own distance implementations.
+   * @param matrix matrix
+   * @param metric metric
+   * @return matrix for distance computations
+   */
+  static Matrix prepare(final Matrix matrix, final Metric metric) {
+    if (metric.preparedLength() == 0 || matrix instanceof CsrMatrix || matrix instanceof PreparedMatrix) {
+      return matrix;
+    }
+    return new PreparedMatrix(matrix, metric);
+  }
+
+  @Override
+  float get(final int row, final int col) {
+    return mMatrix.get(row, col);
+  }
+
+  @Override
+  void set(final int row, final int col, final float val) {
+    throw new UnsupportedOperationException("Matrix is read-only");
+  }
+
+  @Override
+  boolean isFinite() {
+    return mMatrix.isFinite();
+  }
+
+  @Override
+  Matrix copy() {
+    // The prepared values are never modified, so can be shared with the copy
+    return new PreparedMatrix(mMatrix.copy(), mMetric, mPrepared);
+  }
+
+  @Override
+  float[] row(final int row) {
+    return mMatrix.row(row);
+  }
+
+  @Override
+  float[] row(final int row, final float[] scratch) {
+    return mMatrix.row(row, scratch);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final int j) {
+    if (metric != mMetric) {
+      return mMatrix.distance(metric, i, j);
+    }
+    return mMatrix.distance(metric, i, mPrepared, i * mLength, j, mPrepared, j * mLength);
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y) {
+    if (metric != mMetric) {
+      return mMatrix.distance(metric, i, y);
+    }
+    final double[] yPrepared = mPreparedScratch.get();
+    metric.prepare(y, yPrepared, 0);
+    return mMatrix.distance(metric, i, mPrepared, i * mLength, y, yPrepared, 0);
+  }
+
+  @Override
+  double[] prepareQuery(final Metric metric, final float[] y) {
+    if (metric != mMetric) {
+      return null;
+    }
+    final double[] yPrepared = new double[mLength];
+    metric.prepare(y, yPrepared, 0);
+    return yPrepared;
+  }
+
+  @Override
+  float distance(final Metric metric, final int i, final float[] y, final double[] yPrepared) {
+    if (metric != mMetric || yPrepared == null) {
+      return distance(metric, i, y);
+    }
+    return mMatrix.distance(metric, i, mPrepared, i * mLength, y, yPrepared, 0);
+  }
+
+  @Override
+  Matrix eliminateZeros() {
+    return this;
+  }
+}
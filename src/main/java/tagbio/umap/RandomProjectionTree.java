@@ -10,7 +10,6 @@ import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -53,8 +52,10 @@ final class RandomProjectionTree {
     final int left = indices[leftIndex];
     final int right = indices[rightIndex];
 
-    float leftNorm = Utils.norm(data.row(left));
-    float rightNorm = Utils.norm(data.row(right));
+    final float[] leftRow = data.row(left, new float[dim]);
+    final float[] rightRow = data.row(right, new float[dim]);
+    float leftNorm = Utils.norm(leftRow);
+    float rightNorm = Utils.norm(rightRow);
 
     if (Math.abs(leftNorm) < EPS) {
       leftNorm = 1;
@@ -68,7 +69,7 @@ final class RandomProjectionTree {
     final float[] hyperplaneVector = new float[dim];
 
     for (int d = 0; d < dim; ++d) {
-      hyperplaneVector[d] = (data.get(left, d) / leftNorm) - (data.get(right, d) / rightNorm);
+      hyperplaneVector[d] = (leftRow[d] / leftNorm) - (rightRow[d] / rightNorm);
     }
 
     float hyperplaneNorm = Utils.norm(hyperplaneVector);
@@ -86,10 +87,12 @@ final class RandomProjectionTree {
     int nLeft = 0;
     int nRight = 0;
     final boolean[] side = new boolean[indices.length];
+    final float[] scratch = new float[dim];
     for (int i = 0; i < indices.length; ++i) {
+      final float[] row = data.row(indices[i], scratch);
       float margin = 0;
       for (int d = 0; d < dim; ++d) {
-        margin += hyperplaneVector[d] * data.get(indices[i], d);
+        margin += hyperplaneVector[d] * row[d];
       }
 
       if (Math.abs(margin) < EPS) {
@@ -123,7 +126,7 @@ final class RandomProjectionTree {
       }
     }
 
-    return new Object[]{indicesLeft, indicesRight, hyperplaneVector, null};
+    return new Object[]{indicesLeft, indicesRight, hyperplaneVector, 0F};
   }
 
 
@@ -158,10 +161,11 @@ final class RandomProjectionTree {
     float hyperplaneOffset = 0;
     final float[] hyperplaneVector = new float[dim];
 
-    // todo what is the matrix type here?  Getting multiple values from same row ...
+    final float[] leftRow = data.row(left, new float[dim]);
+    final float[] rightRow = data.row(right, new float[dim]);
     for (int d = 0; d < dim; ++d) {
-      final float ld = data.get(left, d);
-      final float rd = data.get(right, d);
+      final float ld = leftRow[d];
+      final float rd = rightRow[d];
       final float delta = ld - rd;
       hyperplaneVector[d] = delta;
       hyperplaneOffset -= delta * (ld + rd);
@@ -174,10 +178,12 @@ final class RandomProjectionTree {
     int nLeft = 0;
     int nRight = 0;
     final boolean[] side = new boolean[indices.length];
+    final float[] scratch = new float[dim];
     for (int i = 0; i < indices.length; ++i) {
+      final float[] row = data.row(indices[i], scratch);
       float margin = hyperplaneOffset;
       for (int d = 0; d < dim; ++d) {
-        margin += hyperplaneVector[d] * data.get(indices[i], d);
+        margin += hyperplaneVector[d] * row[d];
       }
       if (margin >= EPS) {
         //side[i] = false;
@@ -302,7 +308,7 @@ final class RandomProjectionTree {
 
     final Hyperplane hyperplane = new Hyperplane(sd.getIndices(), sd.getData());
 
-    return new Object[]{indicesLeft, indicesRight, hyperplane, null};
+    return new Object[]{indicesLeft, indicesRight, hyperplane, 0F};
   }
 
   /**
@@ -497,9 +503,10 @@ final class RandomProjectionTree {
    * @param nTrees number of trees
    * @param random randomness source
    * @param angular true for cosine metric, otherwise Euclidean
+   * @param progress progress to which completed trees are reported
    * @return list of random projection trees
    */
-  static List<FlatTree> makeForest(final Matrix data, final int nNeighbors, final int nTrees, final Random random, final boolean angular) {
+  static List<FlatTree> makeForest(final Matrix data, final int nNeighbors, final int nTrees, final Random random, final boolean angular, final UmapProgress progress) {
     final Random[] randoms = Utils.splitRandom(random, nTrees);  // insure same set of random numbers for 1 and multiple threads
 
     final ArrayList<FlatTree> result = new ArrayList<>();
@@ -507,7 +514,7 @@ final class RandomProjectionTree {
     try {
       for (int i = 0; i < nTrees; ++i) {
         result.add(makeTree(data, randoms[i], leafSize, angular).flatten());
-        UmapProgress.update();
+        progress.step();
       }
     } catch (RuntimeException e) {
       Utils.message("Random Projection forest initialisation failed due to recursion limit being reached. Something is a little strange with your data, and this may take longer than normal to compute.");
@@ -516,26 +523,29 @@ final class RandomProjectionTree {
     return result;
   }
 
-  static List<FlatTree> makeForest(final Matrix data, final int nNeighbors, final int nTrees, final Random random, final boolean angular, int threads) {
+  static List<FlatTree> makeForest(final Matrix data, final int nNeighbors, final int nTrees, final Random random, final boolean angular, final int threads, final UmapProgress progress) {
     if (threads == 1) {
-      return makeForest(data, nNeighbors, nTrees, random, angular);
+      return makeForest(data, nNeighbors, nTrees, random, angular, progress);
     }
     final Random[] randoms = Utils.splitRandom(random, nTrees);  // insure same set of random numbers for 1 and multiple threads
 
-    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final ExecutorService executor = SharedExecutor.acquire(threads);
     try {
       final List<Future<FlatTree>> futures = new ArrayList<>();
 
       final int leafSize = Math.max(10, nNeighbors);
       for (final Random rand : randoms) {  // randoms.length == nTrees
-        futures.add(executor.submit(() -> makeTree(data, rand, leafSize, angular).flatten()));
+        futures.add(executor.submit(() -> {
+          final FlatTree tree = makeTree(data, rand, leafSize, angular).flatten();
+          progress.step();
+          return tree;
+        }));
       }
 
       final ArrayList<FlatTree> result = new ArrayList<>();
       try {
         for (final Future<FlatTree> future : futures) {
           result.add(future.get());
-          UmapProgress.update();
         }
       } catch (final InterruptedException | ExecutionException ex) {
         Utils.message("Random Projection forest initialisation failed due to recursion limit being reached. Something is a little strange with your data, and this may take longer than normal to compute.");
@@ -543,7 +553,7 @@ final class RandomProjectionTree {
       }
       return result;
     } finally {
-      executor.shutdown();
+      SharedExecutor.release(executor);
     }
   }
 }
@@ -45,10 +45,9 @@ class RandomProjectionTreeNode {
       indices[leafNum] = mIndices;
       return new int[]{nodeNum, leafNum + 1};
     } else {
-      if (mHyperplane.shape().length > 1) {
-        // sparse case
-        ((float[][][]) hyperplanes)[nodeNum] = new float[][] {mHyperplane.data()}; // todo dubious
-        //hyperplanes[nodeNum][:, :tree.getHyperplane().shape[1]] =tree.getHyperplane();
+      if (mHyperplane.indices() != null) {
+        // sparse case, retain only the nonzero entries of the hyperplane
+        ((SparseVector[]) hyperplanes)[nodeNum] = new SparseVector(mHyperplane.indices(), mHyperplane.data());
       } else {
         ((float[][]) hyperplanes)[nodeNum] = mHyperplane.data();
       }
@@ -59,26 +58,16 @@ class RandomProjectionTreeNode {
     }
   }
 
-  // Determine the most number on non zeros in a hyperplane entry.
-  private int maxSparseHyperplaneSize() {
-    if (isLeaf()) {
-      return 0;
-    } else {
-      return Math.max(mHyperplane.shape()[1], Math.max(mLeftChild.maxSparseHyperplaneSize(), mRightChild.maxSparseHyperplaneSize()));
-    }
-  }
-
   FlatTree flatten() {
     final int nNodes = numNodes();
     final int numLeaves = numLeaves();
 
     final Object hyperplanes;
-    if (mHyperplane.shape().length > 1) {
-      // sparse case
-      final int maxHyperplaneNnz = maxSparseHyperplaneSize();
-      hyperplanes = new float[nNodes][mHyperplane.shape()[0]][maxHyperplaneNnz];
+    if (mHyperplane != null && mHyperplane.indices() != null) {
+      // sparse case, hyperplanes vary in length and leaves have none
+      hyperplanes = new SparseVector[nNodes];
     } else {
-      hyperplanes = new float[nNodes][mHyperplane.shape()[0]];
+      hyperplanes = new float[nNodes][mHyperplane == null ? 0 : mHyperplane.shape()[0]];
     }
     final float[] offsets = new float[nNodes];
     final int[][] children = new int[nNodes][];
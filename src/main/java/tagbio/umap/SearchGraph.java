@@ -5,42 +5,159 @@
  */
 package tagbio.umap;
 
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Arrays;
 
 /**
- * Stores unordered pairs.
+ * Undirected graph on instances, stored in compressed sparse row form.
+ * The neighbors of instance <code>x</code> are at positions <code>start(x)</code>
+ * (inclusive) to <code>end(x)</code> (exclusive), in increasing order and
+ * without repeats.
  * @author Sean A. Irvine
  * @author Richard Littin
  */
 class SearchGraph {
 
-  private final TreeSet<Integer>[] mRows;
+  private final int[] mIndptr;
+  private final int[] mIndices;
 
-  @SuppressWarnings("unchecked")
-  SearchGraph(final int rows) {
-    mRows = (TreeSet<Integer>[]) new TreeSet[rows];
-    for (int k = 0; k < rows; ++k) {
-      mRows[k] = new TreeSet<>();
+  /**
+   * Construct the graph connecting each instance to its nearest neighbors.
+   * Neighbors at distance zero and missing neighbors (<code>-1</code>) are excluded.
+   * @param knnIndices nearest neighbors of each instance
+   * @param knnDists distances to the nearest neighbors
+   * @param threads number of threads
+   */
+  SearchGraph(final int[][] knnIndices, final float[][] knnDists, final int threads) {
+    final int n = knnIndices.length;
+    // Incoming edges of each instance by a counting sort, these come out in increasing order
+    final int[] inPtr = new int[n + 1];
+    for (int k = 0; k < n; ++k) {
+      for (int j = 0; j < knnIndices[k].length; ++j) {
+        if (isEdge(knnIndices, knnDists, k, j)) {
+          ++inPtr[knnIndices[k][j] + 1];
+        }
+      }
+    }
+    for (int k = 0; k < n; ++k) {
+      inPtr[k + 1] += inPtr[k];
+    }
+    final int[] in = new int[inPtr[n]];
+    final int[] fill = Arrays.copyOf(inPtr, n);
+    for (int k = 0; k < n; ++k) {
+      for (int j = 0; j < knnIndices[k].length; ++j) {
+        if (isEdge(knnIndices, knnDists, k, j)) {
+          in[fill[knnIndices[k][j]]++] = k;
+        }
+      }
+    }
+    // Merge the outgoing and incoming edges of each instance, counting then filling
+    final int[][] out = new int[n][];
+    mIndptr = new int[n + 1];
+    Utils.parallelFor(n, threads, (lo, hi) -> {
+      for (int k = lo; k < hi; ++k) {
+        out[k] = outgoing(knnIndices, knnDists, k);
+        mIndptr[k + 1] = merge(out[k], in, inPtr[k], inPtr[k + 1], null, 0);
+      }
+    });
+    for (int k = 0; k < n; ++k) {
+      mIndptr[k + 1] += mIndptr[k];
+    }
+    mIndices = new int[mIndptr[n]];
+    Utils.parallelFor(n, threads, (lo, hi) -> {
+      for (int k = lo; k < hi; ++k) {
+        merge(out[k], in, inPtr[k], inPtr[k + 1], mIndices, mIndptr[k]);
+        out[k] = null;
+      }
+    });
+  }
+
+  /**
+   * Construct the graph from its compressed sparse row form.
+   * @param indptr start position of the neighbors of each instance, followed by the total number of neighbors
+   * @param indices neighbors of each instance, increasing for each instance
+   */
+  SearchGraph(final int[] indptr, final int[] indices) {
+    mIndptr = indptr;
+    mIndices = indices;
+  }
+
+  private static boolean isEdge(final int[][] knnIndices, final float[][] knnDists, final int k, final int j) {
+    return knnIndices[k][j] >= 0 && knnDists[k][j] != 0;
+  }
+
+  // Outgoing edges of an instance in increasing order
+  private static int[] outgoing(final int[][] knnIndices, final float[][] knnDists, final int k) {
+    final int[] res = new int[knnIndices[k].length];
+    int len = 0;
+    for (int j = 0; j < res.length; ++j) {
+      if (isEdge(knnIndices, knnDists, k, j)) {
+        res[len++] = knnIndices[k][j];
+      }
+    }
+    Arrays.sort(res, 0, len);
+    return len == res.length ? res : Arrays.copyOf(res, len);
+  }
+
+  // Merge two increasing lists removing repeats, storing the result from position
+  // pos if res is not null, and return the length of the result
+  private static int merge(final int[] a, final int[] b, final int bStart, final int bEnd, final int[] res, final int pos) {
+    int i = 0;
+    int j = bStart;
+    int k = pos;
+    int last = -1;
+    while (i < a.length || j < bEnd) {
+      final int v = j >= bEnd || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+      if (v != last) {
+        if (res != null) {
+          res[k] = v;
+        }
+        ++k;
+        last = v;
+      }
     }
+    return k - pos;
   }
 
   /**
-   * Set the unordered pair of instances.
-   * @param x instance index
-   * @param y instance index
+   * Position of the first neighbor of an instance.
+   * @param row instance number
+   * @return position
    */
-  void set(final int x, final int y) {
-    mRows[x].add(y);
-    mRows[y].add(x);
+  int start(final int row) {
+    return mIndptr[row];
   }
 
   /**
-   * Set of indices for an instance.
+   * Position after the last neighbor of an instance.
    * @param row instance number
-   * @return set of instance numbers
+   * @return position
+   */
+  int end(final int row) {
+    return mIndptr[row + 1];
+  }
+
+  /**
+   * Neighbor at the given position.
+   * @param position position in the range given by <code>start</code> and <code>end</code>
+   * @return instance number
    */
-  Set<Integer> row(final int row) {
-    return mRows[row];
+  int neighbor(final int position) {
+    return mIndices[position];
+  }
+
+  /**
+   * Number of instances in the graph.
+   * @return number of instances
+   */
+  int size() {
+    return mIndptr.length - 1;
+  }
+
+  int[] indptr() {
+    return mIndptr;
+  }
+
+  int[] indices() {
+    return mIndices;
   }
 }
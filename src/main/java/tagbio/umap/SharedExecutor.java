@@ -0,0 +1,86 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor shared by the parallel stages of a fit or transform.  Creating the
+ * scope on a thread makes its executor available to every stage subsequently
+ * run on that thread, until the scope is closed.  The executor is either one
+ * supplied by the caller, which is never shut down here, or a pool created on
+ * first use and shut down when the scope is closed.  Stages run outside any
+ * scope, or on other threads, get a pool of their own as before.
+ * The number of threads requested by a stage still determines how its work is
+ * divided, so results do not depend on the executor.
+ * @author Sean A. Irvine
+ */
+final class SharedExecutor implements AutoCloseable {
+
+  private static final ThreadLocal<SharedExecutor> CURRENT = new ThreadLocal<>();
+
+  private final SharedExecutor mPrevious;
+  private final ExecutorService mProvided;
+  private final int mThreads;
+  private ExecutorService mOwned = null;
+
+  /**
+   * Open a scope on the current thread.
+   * @param executor caller supplied executor, or null to create a pool when needed
+   * @param threads number of threads in a created pool
+   */
+  SharedExecutor(final ExecutorService executor, final int threads) {
+    mPrevious = CURRENT.get();
+    mProvided = executor;
+    mThreads = threads;
+    CURRENT.set(this);
+  }
+
+  /**
+   * Get an executor for a parallel stage.  The executor must be returned with
+   * <code>release</code>.
+   * @param threads number of threads wanted by the stage
+   * @return executor
+   */
+  static ExecutorService acquire(final int threads) {
+    final SharedExecutor scope = CURRENT.get();
+    if (scope == null) {
+      return Executors.newFixedThreadPool(threads);
+    }
+    if (scope.mProvided != null) {
+      return scope.mProvided;
+    }
+    if (scope.mOwned == null) {
+      scope.mOwned = Executors.newFixedThreadPool(Math.max(threads, scope.mThreads));
+    }
+    return scope.mOwned;
+  }
+
+  /**
+   * Return an executor obtained from <code>acquire</code>.  It is shut down
+   * unless it belongs to the current scope.
+   * @param executor executor
+   */
+  static void release(final ExecutorService executor) {
+    final SharedExecutor scope = CURRENT.get();
+    if (scope == null || (executor != scope.mProvided && executor != scope.mOwned)) {
+      executor.shutdown();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (mOwned != null) {
+      mOwned.shutdown();
+    }
+    if (mPrevious == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(mPrevious);
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import tagbio.umap.metric.CosineMetric;
+import tagbio.umap.metric.EuclideanMetric;
+import tagbio.umap.metric.JaccardMetric;
+import tagbio.umap.metric.ManhattanMetric;
+import tagbio.umap.metric.Metric;
+
+/**
+ * Distances between sparse vectors stored as ranges of parallel index and
+ * value arrays, as found in a <code>CsrMatrix</code>.  The work is proportional
+ * to the number of nonzero entries rather than the dimension.  Indices within
+ * each range must be strictly increasing.  Distances from a sparse vector to a
+ * dense vector are also proportional to the number of nonzero entries, given a
+ * summary of the dense vector computed once by <code>prepare</code>.
+ * @author Sean A. Irvine
+ * @author Richard Littin
+ */
+final class Sparse {
+
+  private Sparse() { }
+
+  /**
+   * Test if there is a sparse implementation of the given metric.
+   * @param metric metric
+   * @return true if <code>distance</code> supports the metric
+   */
+  static boolean isSupported(final Metric metric) {
+    return metric == EuclideanMetric.SINGLETON
+      || metric == ManhattanMetric.SINGLETON
+      || metric == CosineMetric.SINGLETON
+      || metric == JaccardMetric.SINGLETON;
+  }
+
+  /**
+   * Compute the distance between two sparse vectors under a supported metric.
+   * @param metric metric
+   * @param xInd indices of the first vector
+   * @param xData values of the first vector
+   * @param xLo start of the first vector
+   * @param xHi end of the first vector (exclusive)
+   * @param yInd indices of the second vector
+   * @param yData values of the second vector
+   * @param yLo start of the second vector
+   * @param yHi end of the second vector (exclusive)
+   * @return distance
+   * @throws IllegalArgumentException if the metric does not have a sparse implementation.
+   */
+  static float distance(final Metric metric,
+                        final int[] xInd, final float[] xData, final int xLo, final int xHi,
+                        final int[] yInd, final float[] yData, final int yLo, final int yHi) {
+    if (metric == EuclideanMetric.SINGLETON) {
+      return euclidean(xInd, xData, xLo, xHi, yInd, yData, yLo, yHi);
+    } else if (metric == ManhattanMetric.SINGLETON) {
+      return manhattan(xInd, xData, xLo, xHi, yInd, yData, yLo, yHi);
+    } else if (metric == CosineMetric.SINGLETON) {
+      return cosine(xInd, xData, xLo, xHi, yInd, yData, yLo, yHi);
+    } else if (metric == JaccardMetric.SINGLETON) {
+      return jaccard(xInd, xData, xLo, xHi, yInd, yData, yLo, yHi);
+    }
+    throw new IllegalArgumentException("Metric " + metric + " not supported for sparse data");
+  }
+
+  /**
+   * Summary of a dense vector needed for its distances to sparse vectors under
+   * a supported metric: the squared norm for Euclidean and cosine, the sum of
+   * absolute values for Manhattan, and the number of nonzero values for Jaccard.
+   * @param metric metric
+   * @param y dense vector
+   * @return summary
+   * @throws IllegalArgumentException if the metric does not have a sparse implementation.
+   */
+  static double prepare(final Metric metric, final float[] y) {
+    double result = 0;
+    if (metric == EuclideanMetric.SINGLETON || metric == CosineMetric.SINGLETON) {
+      for (final float v : y) {
+        result += (double) v * v;
+      }
+    } else if (metric == ManhattanMetric.SINGLETON) {
+      for (final float v : y) {
+        result += Math.abs(v);
+      }
+    } else if (metric == JaccardMetric.SINGLETON) {
+      for (final float v : y) {
+        result += v != 0 ? 1 : 0;
+      }
+    } else {
+      throw new IllegalArgumentException("Metric " + metric + " not supported for sparse data");
+    }
+    return result;
+  }
+
+  /**
+   * Compute the distance between a sparse vector and a dense vector under a
+   * supported metric.
+   * @param metric metric
+   * @param xInd indices of the sparse vector
+   * @param xData values of the sparse vector
+   * @param xLo start of the sparse vector
+   * @param xHi end of the sparse vector (exclusive)
+   * @param y dense vector
+   * @param ySummary summary of the dense vector from <code>prepare</code>
+   * @return distance
+   * @throws IllegalArgumentException if the metric does not have a sparse implementation.
+   */
+  static float distance(final Metric metric, final int[] xInd, final float[] xData, final int xLo, final int xHi, final float[] y, final double ySummary) {
+    if (metric == EuclideanMetric.SINGLETON) {
+      return euclidean(xInd, xData, xLo, xHi, y, ySummary);
+    } else if (metric == ManhattanMetric.SINGLETON) {
+      return manhattan(xInd, xData, xLo, xHi, y, ySummary);
+    } else if (metric == CosineMetric.SINGLETON) {
+      return cosine(xInd, xData, xLo, xHi, y, ySummary);
+    } else if (metric == JaccardMetric.SINGLETON) {
+      return jaccard(xInd, xData, xLo, xHi, y, ySummary);
+    }
+    throw new IllegalArgumentException("Metric " + metric + " not supported for sparse data");
+  }
+
+  static float euclidean(final int[] xInd, final float[] xData, int i, final int xHi,
+                         final int[] yInd, final float[] yData, int j, final int yHi) {
+    float result = 0;
+    while (i < xHi && j < yHi) {
+      final float d;
+      if (xInd[i] == yInd[j]) {
+        d = xData[i++] - yData[j++];
+      } else if (xInd[i] < yInd[j]) {
+        d = xData[i++];
+      } else {
+        d = yData[j++];
+      }
+      result += d * d;
+    }
+    for (; i < xHi; ++i) {
+      result += xData[i] * xData[i];
+    }
+    for (; j < yHi; ++j) {
+      result += yData[j] * yData[j];
+    }
+    return (float) Math.sqrt(result);
+  }
+
+  static float manhattan(final int[] xInd, final float[] xData, int i, final int xHi,
+                         final int[] yInd, final float[] yData, int j, final int yHi) {
+    float result = 0;
+    while (i < xHi && j < yHi) {
+      if (xInd[i] == yInd[j]) {
+        result += Math.abs(xData[i++] - yData[j++]);
+      } else if (xInd[i] < yInd[j]) {
+        result += Math.abs(xData[i++]);
+      } else {
+        result += Math.abs(yData[j++]);
+      }
+    }
+    for (; i < xHi; ++i) {
+      result += Math.abs(xData[i]);
+    }
+    for (; j < yHi; ++j) {
+      result += Math.abs(yData[j]);
+    }
+    return result;
+  }
+
+  static float cosine(final int[] xInd, final float[] xData, final int xLo, final int xHi,
+                      final int[] yInd, final float[] yData, final int yLo, final int yHi) {
+    double result = 0.0;
+    for (int i = xLo, j = yLo; i < xHi && j < yHi;) {
+      if (xInd[i] == yInd[j]) {
+        result += xData[i++] * yData[j++];
+      } else if (xInd[i] < yInd[j]) {
+        ++i;
+      } else {
+        ++j;
+      }
+    }
+    double normX = 0.0;
+    for (int i = xLo; i < xHi; ++i) {
+      normX += xData[i] * xData[i];
+    }
+    double normY = 0.0;
+    for (int j = yLo; j < yHi; ++j) {
+      normY += yData[j] * yData[j];
+    }
+    if (normX == 0.0 && normY == 0.0) {
+      return 0;
+    } else if (normX == 0.0 || normY == 0.0) {
+      return 1;
+    } else {
+      return (float) (1 - (result / Math.sqrt(normX * normY)));
+    }
+  }
+
+  static float jaccard(final int[] xInd, final float[] xData, int i, final int xHi,
+                       final int[] yInd, final float[] yData, int j, final int yHi) {
+    // Explicitly stored zeros do not count as present
+    int numNonZero = 0;
+    int numEqual = 0;
+    while (i < xHi && j < yHi) {
+      final boolean xTrue;
+      final boolean yTrue;
+      if (xInd[i] == yInd[j]) {
+        xTrue = xData[i++] != 0;
+        yTrue = yData[j++] != 0;
+      } else if (xInd[i] < yInd[j]) {
+        xTrue = xData[i++] != 0;
+        yTrue = false;
+      } else {
+        xTrue = false;
+        yTrue = yData[j++] != 0;
+      }
+      numNonZero += xTrue || yTrue ? 1 : 0;
+      numEqual += xTrue && yTrue ? 1 : 0;
+    }
+    for (; i < xHi; ++i) {
+      numNonZero += xData[i] != 0 ? 1 : 0;
+    }
+    for (; j < yHi; ++j) {
+      numNonZero += yData[j] != 0 ? 1 : 0;
+    }
+    if (numNonZero == 0) {
+      return 0;
+    } else {
+      return (numNonZero - numEqual) / (float) numNonZero;
+    }
+  }
+
+  // The dense vector contributes its squared norm, corrected at the nonzero
+  // entries of the sparse vector
+  static float euclidean(final int[] xInd, final float[] xData, final int xLo, final int xHi, final float[] y, final double normY) {
+    double result = normY;
+    for (int i = xLo; i < xHi; ++i) {
+      final double yi = y[xInd[i]];
+      final double d = xData[i] - yi;
+      result += d * d - yi * yi;
+    }
+    return (float) Math.sqrt(Math.max(0, result));
+  }
+
+  static float manhattan(final int[] xInd, final float[] xData, final int xLo, final int xHi, final float[] y, final double sumY) {
+    double result = sumY;
+    for (int i = xLo; i < xHi; ++i) {
+      final double yi = y[xInd[i]];
+      result += Math.abs(xData[i] - yi) - Math.abs(yi);
+    }
+    return (float) Math.max(0, result);
+  }
+
+  static float cosine(final int[] xInd, final float[] xData, final int xLo, final int xHi, final float[] y, final double normY) {
+    double result = 0.0;
+    double normX = 0.0;
+    for (int i = xLo; i < xHi; ++i) {
+      result += xData[i] * y[xInd[i]];
+      normX += xData[i] * xData[i];
+    }
+    if (normX == 0.0 && normY == 0.0) {
+      return 0;
+    } else if (normX == 0.0 || normY == 0.0) {
+      return 1;
+    } else {
+      return (float) (1 - (result / Math.sqrt(normX * normY)));
+    }
+  }
+
+  static float jaccard(final int[] xInd, final float[] xData, final int xLo, final int xHi, final float[] y, final double nonZeroY) {
+    int numNonZero = (int) nonZeroY;
+    int numEqual = 0;
+    for (int i = xLo; i < xHi; ++i) {
+      if (xData[i] != 0) {
+        if (y[xInd[i]] != 0) {
+          ++numEqual;
+        } else {
+          ++numNonZero;
+        }
+      }
+    }
+    if (numNonZero == 0) {
+      return 0;
+    } else {
+      return (numNonZero - numEqual) / (float) numNonZero;
+    }
+  }
+}
@@ -5,16 +5,19 @@
  */
 package tagbio.umap;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
 import tagbio.umap.metric.CategoricalMetric;
 import tagbio.umap.metric.EuclideanMetric;
 import tagbio.umap.metric.Metric;
 import tagbio.umap.metric.PrecomputedMetric;
-import tagbio.umap.metric.ReducedEuclideanMetric;
 
 /**
  * Uniform Manifold Approximation and Projection.
@@ -51,82 +54,108 @@ public class Umap {
    * dimension of the manifold.
    * @param bandwidth The target bandwidth of the kernel, larger values will produce
    * larger return values.
+   * @param threads number of threads
    * @return two arrays knnDist array of shape <code>(nSamples)</code>
    * The distance to kth nearest neighbor, as suitably approximated.
    * nnDist: array of shape <code>(nSamples)</code>
    * The distance to the first nearest neighbor for each point.
    */
-  private static float[][] smoothKnnDist(final float[][] distances, final float k, final int nIter, final int localConnectivity, final float bandwidth) {
+  private static float[][] smoothKnnDist(final float[][] distances, final float k, final int nIter, final int localConnectivity, final float bandwidth, final int threads) {
     final float target = (float) (MathUtils.log2(k) * bandwidth);
     final float[] rho = new float[distances.length];
     final float[] result = new float[distances.length];
 
     final float meanDistances = MathUtils.mean(distances);
 
-    for (int i = 0; i < distances.length; ++i) {
-      float lo = 0;
-      float hi = Float.POSITIVE_INFINITY;
-      float mid = 1;
-
-      final float[] ithDistances = distances[i];
-      final float[] nonZeroDists = MathUtils.filterPositive(ithDistances);
-      if (nonZeroDists.length >= localConnectivity) {
-        final int index = (int) Math.floor(localConnectivity);
-        final float interpolation = localConnectivity - index;
-        if (index > 0) {
-          rho[i] = nonZeroDists[index - 1];
-          if (interpolation > SMOOTH_K_TOLERANCE) {
-            rho[i] += interpolation * (nonZeroDists[index] - nonZeroDists[index - 1]);
-          }
-        } else {
-          rho[i] = interpolation * nonZeroDists[0];
-        }
-      } else if (nonZeroDists.length > 0) {
-        rho[i] = MathUtils.max(nonZeroDists);
+    // Each row is independent of the others
+    Utils.parallelFor(distances.length, threads, (lo, hi) -> {
+      for (int i = lo; i < hi; ++i) {
+        rho[i] = rho(distances[i], localConnectivity);
+        result[i] = sigma(distances[i], rho[i], target, nIter, distances[0].length, meanDistances);
       }
+    });
+    return new float[][]{result, rho};
+  }
 
-      for (int n = 0; n < nIter; ++n) {
-        double pSum = 0.0;
-        for (int j = 1; j < distances[0].length; ++j) {
-          final double d = distances[i][j] - rho[i];
-          pSum += d > 0 ? Math.exp(-(d / mid)) : 1;
+  // Distance to the nearest neighbors corresponding to the local connectivity, this
+  // scans the positive distances in place rather than collecting them into a new array
+  private static float rho(final float[] ithDistances, final int localConnectivity) {
+    final int index = (int) Math.floor(localConnectivity);
+    final float interpolation = localConnectivity - index;
+    int nonZero = 0;
+    float prev = 0; // the (index-1)th positive distance
+    float curr = 0; // the index-th positive distance
+    float max = Float.NEGATIVE_INFINITY;
+    for (final float d : ithDistances) {
+      if (d > 0) {
+        if (nonZero == index - 1) {
+          prev = d;
+        } else if (nonZero == index) {
+          curr = d;
         }
-
-        if (Math.abs(pSum - target) < SMOOTH_K_TOLERANCE) {
-          break;
+        ++nonZero;
+        if (d > max) {
+          max = d;
         }
-
-        if (pSum > target) {
-          hi = mid;
-          mid = (lo + hi) / 2.0F;
-        } else {
-          lo = mid;
-          if (hi == Float.POSITIVE_INFINITY) {
-            mid *= 2;
-          } else {
-            mid = (lo + hi) / 2.0F;
-          }
+      }
+    }
+    if (nonZero >= localConnectivity) {
+      if (index > 0) {
+        float rho = prev;
+        if (interpolation > SMOOTH_K_TOLERANCE) {
+          rho += interpolation * (curr - prev);
         }
+        return rho;
+      } else {
+        // Here curr is the first positive distance
+        return interpolation * curr;
       }
+    } else if (nonZero > 0) {
+      return max;
+    }
+    return 0;
+  }
 
-      result[i] = mid;
+  // Binary search for the normalization factor giving the target cardinality
+  private static float sigma(final float[] ithDistances, final float rho, final float target, final int nIter, final int cols, final float meanDistances) {
+    float lo = 0;
+    float hi = Float.POSITIVE_INFINITY;
+    float mid = 1;
+
+    for (int n = 0; n < nIter; ++n) {
+      double pSum = 0.0;
+      for (int j = 1; j < cols; ++j) {
+        final double d = ithDistances[j] - rho;
+        pSum += d > 0 ? Math.exp(-(d / mid)) : 1;
+      }
 
-      if (rho[i] > 0) {
-        final float meanIthDistances = MathUtils.mean(ithDistances);
-        if (result[i] < MIN_K_DIST_SCALE * meanIthDistances) {
-          result[i] = MIN_K_DIST_SCALE * meanIthDistances;
-        }
+      if (Math.abs(pSum - target) < SMOOTH_K_TOLERANCE) {
+        break;
+      }
+
+      if (pSum > target) {
+        hi = mid;
+        mid = (lo + hi) / 2.0F;
       } else {
-        if (result[i] < MIN_K_DIST_SCALE * meanDistances) {
-          result[i] = MIN_K_DIST_SCALE * meanDistances;
+        lo = mid;
+        if (hi == Float.POSITIVE_INFINITY) {
+          mid *= 2;
+        } else {
+          mid = (lo + hi) / 2.0F;
         }
       }
     }
-    return new float[][]{result, rho};
+
+    final float mean = rho > 0 ? MathUtils.mean(ithDistances) : meanDistances;
+    return mid < MIN_K_DIST_SCALE * mean ? MIN_K_DIST_SCALE * mean : mid;
   }
 
   static float[][] smoothKnnDist(final float[][] distances, final float k, final int localConnectivity) {
-    return smoothKnnDist(distances, k, 64, localConnectivity, 1.0F);
+    return smoothKnnDist(distances, k, localConnectivity, 1);
+  }
+
+  static float[][] smoothKnnDist(final float[][] distances, final float k, final int localConnectivity, final int threads) {
+    return smoothKnnDist(distances, k, 64, localConnectivity, 1.0F, threads);
   }
 
   /**
@@ -145,6 +174,28 @@ public class Umap {
    *   The distances to the <code>nNeighbors</code> closest points in the dataset.
    */
   static IndexedDistances nearestNeighbors(final Matrix instances, final int nNeighbors, final Metric metric, boolean angular, final Random random, final int threads, final boolean verbose) {
+    return nearestNeighbors(instances, nNeighbors, metric, angular, random, threads, false, UmapProgress.NONE, verbose);
+  }
+
+  /**
+   * Compute the <code>nNeighbors</code> nearest points for each data point in <code>instances</code>
+   * under <code>metric</code>. This may be exact, but more likely is approximated via
+   * nearest neighbor descent.
+   * @param instances The input data to compute the k-neighbor graph of.
+   * @param nNeighbors The number of nearest neighbors to compute for each sample in <code>instances</code>.
+   * @param metric The metric to use for the computation.
+   * @param angular Whether to use angular rp trees in NN approximation.
+   * @param random The random state to use for approximate NN computations.
+   * @param threads Number of threads
+   * @param deterministic Whether the result must be independent of the number of threads.
+   * @param progress Progress to which the completed stages are reported.
+   * @param verbose Whether to print status data during the computation.
+   * @return knnIndices: array of shape <code>(nSamples, nNeighbors)</code>
+   *   The indices on the <code>nNeighbors</code> closest points in the dataset.
+   *   knnDists: array of shape <code>(nSamples, nNeighbors)</code>
+   *   The distances to the <code>nNeighbors</code> closest points in the dataset.
+   */
+  static IndexedDistances nearestNeighbors(final Matrix instances, final int nNeighbors, final Metric metric, boolean angular, final Random random, final int threads, final boolean deterministic, final UmapProgress progress, final boolean verbose) {
     if (verbose) {
       Utils.message("Finding nearest neighbors");
     }
@@ -153,77 +204,45 @@ public class Umap {
     final List<FlatTree> rpForest;
     if (metric.equals(PrecomputedMetric.SINGLETON)) {
       // Note that this does not support sparse distance matrices yet ...
-      // Compute indices of n nearest neighbors
-      knnIndices = Utils.fastKnnIndices(instances, nNeighbors);
-      // Compute the nearest neighbor distances
-      knnDists = new float[knnIndices.length][nNeighbors];
-      for (int i = 0; i < knnDists.length; ++i) {
-        for (int j = 0; j < nNeighbors; ++j) {
-          knnDists[i][j] = instances.get(i, knnIndices[i][j]);
-        }
-      }
+      // Compute indices and distances of n nearest neighbors
+      final IndexedDistances knn = Utils.fastKnn(instances, nNeighbors, threads);
+      knnIndices = knn.getIndices();
+      knnDists = knn.getDistances();
       rpForest = Collections.emptyList();
     } else {
       boolean isAngular = metric.isAngular();
 
-      if (instances instanceof CsrMatrix) {
-//        final CsrMatrix csrInstances = instances.toCsr();
-//        // todo this is nonsense now, since metric cannot be a string at this point
-//        if (Sparse.SPARSE_NAMED_DISTANCES.containsKey(metric)) {
-//          distanceFunc = Sparse.SPARSE_NAMED_DISTANCES.get(metric);
-////          if (Sparse.sparse_need_n_features.contains(metric)) {
-////            metricKwds.put("n_features", instances.cols());
-////          }
-//        } else {
-//          throw new IllegalArgumentException("Metric " + metric + " not supported for sparse data");
-//        }
-        throw new UnsupportedOperationException();
-//        metric_nn_descent = Sparse.make_sparse_nn_descent(distanceFunc, tuple(metricKwds.values()));
-//
-//        int n_trees = 5 + (int) (Math.round(Math.pow(Y.rows(), 0.5) / 20.0));
-//        int n_iters = Math.max(5, (int) (Math.round(MathUtils.log2(Y.rows()))));
-//        if (verbose) {
-//          Utils.message("Building RP forest with " + n_trees + " trees");
-//        }
-//
-//        rpForest = RpTree.make_forest(X, nNeighbors, n_trees, random, angular);
-//        final int[][] leaf_array = RpTree.rptree_leaf_array(rpForest);
-//
-//        if (verbose) {
-//          Utils.message("NN descent for " + n_iters + " iterations");
-//        }
-//        final Object[] nn = NearestNeighborDescent.metric_nn_descent(Y.indices, Y.indptr, Y.data, Y.rows(), nNeighbors, random, /*max_candidates=*/60, /*rp_tree_init=*/true,     /*leaf_array=*/leaf_array,  /*n_iters=*/n_iters, verbose);
-//        knnIndices = (int[][]) nn[0];
-//        knnDists = (float[][]) nn[1];
-      } else {
-        final NearestNeighborDescent metricNearestNeighborsDescent = threads == 1 ? new NearestNeighborDescent(metric) :  new ParallelNearestNeighborDescent(metric, threads);
-        final int nTrees = 5 + (int) (Math.round(Math.pow(instances.rows(), 0.5) / 20.0));
-        final int nIters = Math.max(5, (int) (Math.round(MathUtils.log2(instances.rows()))));
-        UmapProgress.incTotal(nIters + nTrees + 2);
+      // Sparse instances are handled by the same code, the matrix supplies sparse distances
+      final NearestNeighborDescent metricNearestNeighborsDescent = deterministic
+        ? new DeterministicNearestNeighborDescent(metric, threads)
+        : threads == 1 ? new NearestNeighborDescent(metric) : new ParallelNearestNeighborDescent(metric, threads);
+      final int nTrees = 5 + (int) (Math.round(Math.pow(instances.rows(), 0.5) / 20.0));
+      final int nIters = Math.max(5, (int) (Math.round(MathUtils.log2(instances.rows()))));
+      progress.addTotal(nIters + nTrees + 2);
 
-        if (verbose) {
-          Utils.message("Building random projection forest with " + nTrees + " trees");
-        }
-        rpForest = RandomProjectionTree.makeForest(instances, nNeighbors, nTrees, random, isAngular, threads);
-        if (verbose) {
-          long nodeCount = 0;
-          for (final FlatTree tree : rpForest) {
-            for (final int[] a : tree.getIndices()) {
-              for (final int b : a) {
-                if (b >= 0) {
-                  ++nodeCount;
-                }
+      if (verbose) {
+        Utils.message("Building random projection forest with " + nTrees + " trees");
+      }
+      rpForest = RandomProjectionTree.makeForest(instances, nNeighbors, nTrees, random, isAngular, threads, progress);
+      if (verbose) {
+        long nodeCount = 0;
+        for (final FlatTree tree : rpForest) {
+          for (final int[] a : tree.getIndices()) {
+            for (final int b : a) {
+              if (b >= 0) {
+                ++nodeCount;
               }
             }
           }
-          Utils.message("Total number of values in forest: " + nodeCount);
-          Utils.message("NN descent for " + nIters + " iterations");
         }
-        metricNearestNeighborsDescent.setVerbose(verbose);
-        final Heap nn = metricNearestNeighborsDescent.descent(instances, nNeighbors, random, 60, true, nIters, rpForest);
-        knnIndices = nn.indices();
-        knnDists = nn.weights();
+        Utils.message("Total number of values in forest: " + nodeCount);
+        Utils.message("NN descent for " + nIters + " iterations");
       }
+      metricNearestNeighborsDescent.setVerbose(verbose);
+      metricNearestNeighborsDescent.setProgress(progress);
+      final IndexedDistances nn = metricNearestNeighborsDescent.descent(instances, nNeighbors, random, 60, true, nIters, rpForest);
+      knnIndices = nn.getIndices();
+      knnDists = nn.getDistances();
 
       if (MathUtils.containsNegative(knnIndices)) {
         Utils.message("Failed to correctly find nearest neighbors for some samples. Results may be less than ideal. Try re-running with different parameters.");
@@ -235,6 +254,21 @@ public class Umap {
     return new IndexedDistances(knnIndices, knnDists, rpForest);
   }
 
+  // Membership strength of the 1-simplex from instance i to a neighbor
+  static float membershipStrength(final int i, final int neighbor, final float dist, final float sigma, final float rho) {
+    if (neighbor == i) {
+      return 0;
+    } else if (dist - rho <= 0) {
+      return 1;
+    } else {
+      return (float) Math.exp(-((dist - rho) / sigma));
+    }
+  }
+
+  static CooMatrix computeMembershipStrengths(final int[][] knnIndices, final float[][] knnDists, final float[] sigmas, final float[] rhos, final int rowCount, final int colCount) {
+    return computeMembershipStrengths(knnIndices, knnDists, sigmas, rhos, rowCount, colCount, 1);
+  }
+
   /**
    * Construct the membership strength data for the 1-skeleton of each local
    * fuzzy simplicial set -- this is formed as a sparse matrix where each row is
@@ -250,9 +284,10 @@ public class Umap {
    * The local connectivity adjustment.
    * @param rowCount number or rows in the result
    * @param colCount number or columns in the result
+   * @param threads number of threads
    * @return sparse matrix of shape <code>(nSamples, nNeighbors)</code>
    */
-  static CooMatrix computeMembershipStrengths(final int[][] knnIndices, final float[][] knnDists, final float[] sigmas, final float[] rhos, final int rowCount, final int colCount) {
+  static CooMatrix computeMembershipStrengths(final int[][] knnIndices, final float[][] knnDists, final float[] sigmas, final float[] rhos, final int rowCount, final int colCount, final int threads) {
     final int nSamples = knnIndices.length;
     final int nNeighbors = knnIndices[0].length;
     final int size = nSamples * nNeighbors;
@@ -261,24 +296,19 @@ public class Umap {
     final int[] cols = new int[size];
     final float[] vals = new float[size];
 
-    for (int i = 0; i < nSamples; ++i) {
-      for (int j = 0; j < nNeighbors; ++j) {
-        if (knnIndices[i][j] == -1) {
-          continue;  // We didn't get the full knn for i
-        }
-        final float val;
-        if (knnIndices[i][j] == i) {
-          val = 0;
-        } else if (knnDists[i][j] - rhos[i] <= 0) {
-          val = 1;
-        } else {
-          val = (float) Math.exp(-((knnDists[i][j] - rhos[i]) / (sigmas[i])));
+    // Each row writes its own section of the arrays
+    Utils.parallelFor(nSamples, threads, (lo, hi) -> {
+      for (int i = lo; i < hi; ++i) {
+        for (int j = 0; j < nNeighbors; ++j) {
+          if (knnIndices[i][j] == -1) {
+            continue;  // We didn't get the full knn for i
+          }
+          rows[i * nNeighbors + j] = i;
+          cols[i * nNeighbors + j] = knnIndices[i][j];
+          vals[i * nNeighbors + j] = membershipStrength(i, knnIndices[i][j], knnDists[i][j], sigmas[i], rhos[i]);
         }
-        rows[i * nNeighbors + j] = i;
-        cols[i * nNeighbors + j] = knnIndices[i][j];
-        vals[i * nNeighbors + j] = val;
       }
-    }
+    });
     return new CooMatrix(vals, rows, cols, rowCount, colCount);
   }
 
@@ -327,21 +357,23 @@ public class Umap {
    * 1-simplex between the ith and jth sample points.
    */
   static Matrix fuzzySimplicialSet(final Matrix instances, final int nNeighbors, final Random random, final Metric metric, int[][] knnIndices, float[][] knnDists, final boolean angular, final float setOpMixRatio, final int localConnectivity, final int threads, final boolean verbose) {
+    return fuzzySimplicialSet(instances, nNeighbors, random, metric, knnIndices, knnDists, angular, setOpMixRatio, localConnectivity, threads, false, verbose);
+  }
+
+  private static Matrix fuzzySimplicialSet(final Matrix instances, final int nNeighbors, final Random random, final Metric metric, int[][] knnIndices, float[][] knnDists, final boolean angular, final float setOpMixRatio, final int localConnectivity, final int threads, final boolean deterministic, final boolean verbose) {
 
     if (knnIndices == null || knnDists == null) {
-      final IndexedDistances nn = nearestNeighbors(instances, nNeighbors, metric, angular, random, threads, verbose);
+      final IndexedDistances nn = nearestNeighbors(instances, nNeighbors, metric, angular, random, threads, deterministic, UmapProgress.NONE, verbose);
       knnIndices = nn.getIndices();
       knnDists = nn.getDistances();
     }
 
-    final float[][] sigmasRhos = smoothKnnDist(knnDists, nNeighbors, localConnectivity);
+    final float[][] sigmasRhos = smoothKnnDist(knnDists, nNeighbors, localConnectivity, threads);
     final float[] sigmas = sigmasRhos[0];
     final float[] rhos = sigmasRhos[1];
 
-    final Matrix result = computeMembershipStrengths(knnIndices, knnDists, sigmas, rhos, instances.rows(), instances.rows()).eliminateZeros();
-    final Matrix prodMatrix = result.hadamardMultiplyTranspose();
-
-    return result.addTranspose().subtract(prodMatrix).multiply(setOpMixRatio).add(prodMatrix.multiply(1.0F - setOpMixRatio)).eliminateZeros();
+    final CooMatrix result = (CooMatrix) computeMembershipStrengths(knnIndices, knnDists, sigmas, rhos, instances.rows(), instances.rows(), threads).eliminateZeros();
+    return result.fuzzyUnion(setOpMixRatio, threads);
   }
 
   /**
@@ -375,7 +407,7 @@ public class Umap {
   }
 
   private static Matrix generalSimplicialSetIntersection(final Matrix simplicialSet1, final Matrix simplicialSet2, final float weight) {
-    final CooMatrix result = simplicialSet1.add(simplicialSet2).toCoo();
+    final CooMatrix result = simplicialSet1.toCoo().add(simplicialSet2.toCoo()).toCoo();
     final CsrMatrix left = simplicialSet1.toCsr();
     final CsrMatrix right = simplicialSet2.toCsr();
     left.intersect(right, result, weight);
@@ -437,85 +469,30 @@ public class Umap {
    * @param gamma Weight to apply to negative samples.
    * @param initialAlpha Initial learning rate for the SGD.
    * @param negativeSampleRate Number of negative samples to use per positive sample.
+   * @param moveOther Whether the tail embedding is also updated, that is, when fitting rather than transforming.
+   * @param threads Number of threads available.
+   * @param parallelLayout Whether the layout may use multiple threads.
+   * @param deterministic Whether to use the deterministic optimizer.
+   * @param gradientKernel Name of the gradient kernel.
+   * @param progress Progress to which completed epochs are reported.
    * @param verbose Whether to report information on the current progress of the algorithm.
    * @return array of shape <code>(nSamples, nComponents)</code> The optimized embedding.
    */
-  private Matrix optimizeLayout(final Matrix headEmbedding, final Matrix tailEmbedding, final int[] head, final int[] tail, final int nEpochs, final int nVertices, final float[] epochsPerSample, final float a, final float b, final Random random, final float gamma, final float initialAlpha, final float negativeSampleRate, final boolean verbose) {
-
-    if (!(headEmbedding instanceof DefaultMatrix)) {
-      throw new UnsupportedOperationException("Require matrix we can set entries on");
-    }
-
-    final int dim = headEmbedding.cols();
-    final boolean moveOther = headEmbedding.rows() == tailEmbedding.rows();
-    float alpha = initialAlpha;
-
-    final float[] epochsPerNegativeSample = MathUtils.divide(epochsPerSample, negativeSampleRate);
-    final float[] epochOfNextNegativeSample = Arrays.copyOf(epochsPerNegativeSample, epochsPerNegativeSample.length);
-    final float[] epochOfNextSample = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
-
-    for (int n = 0; n < nEpochs; ++n) {
-      for (int i = 0; i < epochsPerSample.length; ++i) {
-        if (epochOfNextSample[i] <= n) {
-          final int j = head[i];
-          final int k = tail[i];
-          // Note this assumes that "current" is a pointer to the internal matrix data,
-          // not ideal from a data encapsulation point of view.
-          final float[] current = headEmbedding.row(j);
-          float[] other = tailEmbedding.row(k);
-
-          float distSquared = ReducedEuclideanMetric.SINGLETON.distance(current, other);
-
-          float gradCoeff;
-          if (distSquared > 0.0) {
-            gradCoeff = (float) ((-2.0 * a * b * Math.pow(distSquared, b - 1.0)) / (a * Math.pow(distSquared, b) + 1.0));
-          } else {
-            gradCoeff = 0;
-          }
-
-          for (int d = 0; d < dim; ++d) {
-            final float gradD = clip(gradCoeff * (current[d] - other[d]));
-            current[d] += gradD * alpha;
-            if (moveOther) {
-              other[d] += -gradD * alpha;
-            }
-          }
-
-          epochOfNextSample[i] += epochsPerSample[i];
-
-          final int nNegSamples = (int) ((n - epochOfNextNegativeSample[i]) / epochsPerNegativeSample[i]);
-
-          for (int p = 0; p < nNegSamples; ++p) {
-            final int kr = random.nextInt(nVertices);
-            other = tailEmbedding.row(kr);
-            distSquared = ReducedEuclideanMetric.SINGLETON.distance(current, other);
-
-            if (distSquared > 0) {
-              gradCoeff = 2.0F * gamma * b / (float) ((0.001 + distSquared) * (a * Math.pow(distSquared, b) + 1));
-            } else if (j == kr) {
-              continue;
-            } else {
-              gradCoeff = 0;
-            }
-
-            for (int d = 0; d < dim; ++d) {
-              final float gradD = gradCoeff > 0.0 ? clip(gradCoeff * (current[d] - other[d])) : 4;
-              current[d] += gradD * alpha;
-            }
-          }
-
-          epochOfNextNegativeSample[i] += nNegSamples * epochsPerNegativeSample[i];
-        }
-      }
-
-      alpha = initialAlpha * (1 - (float) n / (float) nEpochs);
-
-      if (verbose && n % (nEpochs / 10) == 0) {
-        Utils.message("Completed " + n + "/" + nEpochs);
-      }
-      UmapProgress.update();
+  static FlatMatrix optimizeLayout(final FlatMatrix headEmbedding, final FlatMatrix tailEmbedding, final int[] head, final int[] tail, final int nEpochs, final int nVertices, final float[] epochsPerSample, final float a, final float b, final Random random, final float gamma, final float initialAlpha, final float negativeSampleRate,
+                               final boolean moveOther, final int threads, final boolean parallelLayout, final boolean deterministic, final String gradientKernel, final UmapProgress progress, final boolean verbose) {
+    final int layoutThreads = parallelLayout ? threads : 1;
+    final LayoutOptimizer optimizer;
+    if (deterministic) {
+      optimizer = new DeterministicLayoutOptimizer(headEmbedding, tailEmbedding, head, tail, nVertices, epochsPerSample, a, b, gamma, negativeSampleRate, moveOther, layoutThreads);
+    } else if (layoutThreads == 1) {
+      optimizer = new LayoutOptimizer(headEmbedding, tailEmbedding, head, tail, nVertices, epochsPerSample, a, b, gamma, negativeSampleRate, moveOther);
+    } else {
+      optimizer = new ParallelLayoutOptimizer(headEmbedding, tailEmbedding, head, tail, nVertices, epochsPerSample, a, b, gamma, negativeSampleRate, moveOther, layoutThreads);
     }
-    return headEmbedding;
+    optimizer.setVerbose(verbose);
+    optimizer.setProgress(progress);
+    optimizer.setGradientKernel(gradientKernel);
+    return optimizer.optimize(nEpochs, initialAlpha, random);
   }
 
   /**
@@ -553,7 +530,7 @@ public class Umap {
    * The optimized of <code>graph</code> into an <code>nComponents</code> dimensional
    * Euclidean space.
    */
-  private Matrix simplicialSetEmbedding(Matrix data, Matrix graphIn, int nComponents, float initialAlpha, float a, float b, float gamma, int negativeSampleRate, int nEpochs, String init, Random random, Metric metric, boolean verbose) {
+  private FlatMatrix simplicialSetEmbedding(Matrix data, Matrix graphIn, int nComponents, float initialAlpha, float a, float b, float gamma, int negativeSampleRate, int nEpochs, String init, Random random, Metric metric, boolean verbose) {
 
     CooMatrix graph = graphIn.toCoo();
     final int nVertices = graph.cols();
@@ -571,10 +548,10 @@ public class Umap {
     MathUtils.zeroEntriesBelowLimit(graphData, MathUtils.max(graphData) / (float) nEpochs);
     graph = (CooMatrix) graph.eliminateZeros();
 
-    final Matrix embedding;
+    final FlatMatrix embedding;
     if ("random".equals(init)) {
       //embedding = random.uniform(low = -10.0, high = 10.0, size = (graph.rows(), nComponents)).astype(np.float32);
-      embedding = new DefaultMatrix(MathUtils.uniform(random, -10, 10, graph.rows(), nComponents));
+      embedding = new FlatMatrix(MathUtils.uniform(random, -10, 10, graph.rows(), nComponents));
     } else if ("spectral".equals(init)) {
       throw new UnsupportedOperationException();
 //      // We add a little noise to avoid local minima for optimization to come
@@ -603,34 +580,9 @@ public class Umap {
 
     // so (head, tail, epochsPerSample) is like a CooMatrix
 
-    return optimizeLayout(embedding, embedding, head, tail, nEpochs, nVertices, epochsPerSample, a, b, random, gamma, initialAlpha, negativeSampleRate, verbose);
+    return optimizeLayout(embedding, embedding, head, tail, nEpochs, nVertices, epochsPerSample, a, b, random, gamma, initialAlpha, negativeSampleRate, true, mThreads, mParallelLayout, mDeterministic, mGradientKernel, mProgress, verbose);
   }
 
-  /**
-   * Given indices and weights and an original embeddings
-   * initialize the positions of new points relative to the
-   * indices and weights (of their neighbors in the source data).
-   * @param indices array of shape <code>(nNewSamples, nNeighbors)</code>
-   * The indices of the neighbors of each new sample
-   * @param weights array of shape <code>(nNewSamples, nNeighbors)</code>
-   * The membership strengths of associated 1-simplices
-   * for each of the new samples.
-   * @param embedding array of shape <code>(nSamples, dim)</code>
-   * The original embedding of the source data.
-   * @return array of shape <code>(nNewSamples, dim)</code>
-   * An initial embedding of the new sample points.
-   */
-  private static Matrix initTransform(final int[][] indices, final float[][] weights, final Matrix embedding) {
-    final float[][] result = new float[indices.length][embedding.cols()];
-    for (int i = 0; i < indices.length; ++i) {
-      for (int j = 0; j < indices[i].length; ++j) {
-        for (int d = 0; d < embedding.cols(); ++d) {
-          result[i][d] += weights[i][j] * embedding.get(indices[i][j], d);
-        }
-      }
-    }
-    return new DefaultMatrix(result);
-  }
   
   // Fit a, b params for the differentiable curve used in lower
   // dimensional fuzzy simplicial complex construction. We want the
@@ -673,26 +625,29 @@ public class Umap {
   private Metric mTargetMetric = CategoricalMetric.SINGLETON;
   private int mTargetNNeighbors = -1;
   private float mTargetWeight = 0.5F;
-//  private int mTransformSeed = 42;
+  private int mTransformSeed = 42;
   private boolean mVerbose = false;
 //  private final Float mA = null;
 //  private final Float mB = null;
   private Random mRandom = new Random(42);
   private int mThreads = 1;
+  private ExecutorService mExecutor = null;
+  private final CopyOnWriteArrayList<ProgressListener> mProgressListeners = new CopyOnWriteArrayList<>();
+  private volatile UmapProgress mProgress = null;
+  private boolean mParallelLayout = true;
+  private boolean mDeterministic = false;
+  private String mGradientKernel = GradientKernel.AUTO;
 
   private float mInitialAlpha;
   private int mRunNNeighbors;
   private float mRunA;
   private float mRunB;
   private Matrix mRawData;
-  private SearchGraph mSearchGraph = null;
   private int[][] mKnnIndices;
   private float[][] mKnnDists;
-  private List<FlatTree> mRpForest;
-  private boolean mSmallData;
   private Matrix mGraph;
-  private Matrix mEmbedding;
-  private NearestNeighborSearch mSearch;
+  private FlatMatrix mEmbedding;
+  private FittedUmapModel mModel = null;
 
   /**
    * Set the size local neighborhood (in terms of number of neighboring
@@ -969,14 +924,15 @@ public class Umap {
     mTargetWeight = targetWeight;
   }
 
-//  /**
-//   * Random seed used for the stochastic aspects of the transform operation.
-//   * This ensures consistency in transform operations. Default: 42.
-//   * @param transformSeed random number generator seed
-//   */
-//  public void setTransformSeed(final int transformSeed) {
-//    mTransformSeed = transformSeed;
-//  }
+  /**
+   * Random seed used for the stochastic aspects of transforms performed
+   * through the fitted model. This ensures consistency in transform operations.
+   * Default: 42.
+   * @param transformSeed random number generator seed
+   */
+  public void setTransformSeed(final int transformSeed) {
+    mTransformSeed = transformSeed;
+  }
 
   /**
    * Set the maximum number of threads to use (default 1).
@@ -989,6 +945,93 @@ public class Umap {
     mThreads = threads;
   }
 
+  /**
+   * Set an executor on which to run the parallel stages of fitting and
+   * transforming, for example, to share one pool between many models.  The
+   * executor is not shut down by this object, and is also used by the fitted
+   * model.  The number of threads still determines how work is divided between
+   * tasks, and should usually match the parallelism of the executor.  By default,
+   * each fit or transform creates a pool of threads for its duration.
+   * A fixed size executor must not be used from one of its own tasks.
+   * @param executor executor, or null for a pool per fit or transform
+   */
+  public void setExecutor(final ExecutorService executor) {
+    mExecutor = executor;
+  }
+
+  /**
+   * Whether the embedding optimization should use all the available threads.
+   * When true (the default) and more than one thread is available, the threads
+   * update the embedding concurrently without locking, and the result is not
+   * deterministic.  When false the optimization runs on a single thread, exactly
+   * as if only one thread had been requested.  This applies both to fitting and
+   * to transforming new instances.
+   * @param parallelLayout true to optimize the embedding in parallel
+   */
+  public void setParallelLayout(final boolean parallelLayout) {
+    mParallelLayout = parallelLayout;
+  }
+
+  /**
+   * Select a deterministic execution mode.  In this mode the nearest neighbor
+   * descent and the embedding optimization use algorithms whose results depend
+   * only on the random number generator, so that a given seed produces identical
+   * output for any number of threads.  The results are not the same as those
+   * produced when this mode is not selected.  Default false.
+   * @param deterministic true for results independent of the number of threads
+   */
+  public void setDeterministic(final boolean deterministic) {
+    mDeterministic = deterministic;
+  }
+
+  /**
+   * Select the computation of the gradient coefficients during the embedding
+   * optimization.  Valid values are:
+   * <code>exact</code>, computing the required powers in double precision;
+   * <code>fast</code>, using a single precision approximation to the powers,
+   * which is faster but gives slightly different embeddings; and
+   * <code>auto</code>, which chooses from the curve parameters, avoiding the
+   * powers entirely when <code>b</code> is 1, and otherwise using
+   * <code>fast</code> where its error bound holds and <code>exact</code> elsewhere.
+   * Default <code>auto</code>.
+   * @param kernel name of the kernel
+   */
+  public void setGradientKernel(final String kernel) {
+    if (!GradientKernel.isKernel(kernel)) {
+      throw new IllegalArgumentException("Unknown gradient kernel: " + kernel);
+    }
+    mGradientKernel = kernel;
+  }
+
+  /**
+   * Add a listener to be notified of the progress of fits and transforms
+   * performed by this object.  Listeners are called on the thread performing
+   * the fit or transform.
+   * @param listener listener
+   */
+  public void addProgressListener(final ProgressListener listener) {
+    mProgressListeners.addIfAbsent(listener);
+  }
+
+  /**
+   * Remove a listener added with <code>addProgressListener</code>.
+   * @param listener listener
+   * @return true if the listener was present
+   */
+  public boolean removeProgressListener(final ProgressListener listener) {
+    return mProgressListeners.remove(listener);
+  }
+
+  /**
+   * Return the progress of the current, or most recent, fit or transform
+   * performed by this object.  This can be called from any thread.
+   * @return progress
+   */
+  public ProgressState getProgress() {
+    final UmapProgress progress = mProgress;
+    return progress == null ? new ProgressState(0, 0) : progress.getState();
+  }
+
   private void validateParameters() {
     if (mMinDist > mSpread) {
       throw new IllegalArgumentException("minDist must be less than or equal to spread");
@@ -1014,19 +1057,33 @@ public class Umap {
    * The relevant metric is <code>mTargetMetric</code>.
    * @throws IllegalArgumentException if the matrix contains non-finite elements.
    */
-  private void fit(Matrix instances, float[] y) {
+  private void fit(final Matrix instances, final float[] y) {
+    final SharedExecutor scope = new SharedExecutor(mExecutor, mThreads);
+    mProgress = new UmapProgress(mProgressListeners);
+    try {
+      fitInScope(instances, y);
+    } finally {
+      scope.close();
+    }
+  }
+
+  private void fitInScope(Matrix instances, float[] y) {
 
     if (!instances.isFinite()) {
       throw new IllegalArgumentException("Supplied matrix of instances contains non-finite elements");
     }
 
-    UmapProgress.reset(5);
+    final UmapProgress progress = mProgress;
+    progress.start(5);
 
     if (mVerbose) {
       Utils.message("Starting fitting for " + instances.rows() + " instances with " + instances.cols() + " attributes");
     }
 
+    // Let the metric precompute per-instance values such as norms
+    instances = PreparedMatrix.prepare(instances, mMetric);
     mRawData = instances;
+    mModel = null;
 
     // Handle all the optional arguments, setting default
     //if (mA == null || mB == null) {
@@ -1042,12 +1099,13 @@ public class Umap {
 
     validateParameters();
 
-    UmapProgress.update();
+    progress.step();
 
     // Error check n_neighbors based on data size
     if (instances.rows() <= mNNeighbors) {
       if (instances.rows() == 1) {
-        mEmbedding = new DefaultMatrix(new float[1][mNComponents]);
+        mEmbedding = new FlatMatrix(1, mNComponents);
+        mModel = createModel(false, null, null, null);
         return;
       }
 
@@ -1060,20 +1118,22 @@ public class Umap {
     if (mVerbose) {
       Utils.message("Construct fuzzy simplicial set: " + instances.rows());
     }
-    UmapProgress.update();
+    progress.step();
 
     // Handle small cases efficiently by computing all distances
-    if (instances.rows() < SMALL_PROBLEM_THRESHOLD) {
-      mSmallData = true;
-      final Matrix dmat = PairwiseDistances.pairwiseDistances(instances, mMetric);
+    final boolean smallData = instances.rows() < SMALL_PROBLEM_THRESHOLD;
+    List<FlatTree> rpForest = null;
+    NearestNeighborSearch search = null;
+    SearchGraph searchGraph = null;
+    if (smallData) {
+      final Matrix dmat = PairwiseDistances.pairwiseDistances(instances, mMetric, mThreads);
       mGraph = fuzzySimplicialSet(dmat, mRunNNeighbors, mRandom, PrecomputedMetric.SINGLETON, null, null, mAngularRpForest, mSetOpMixRatio, mLocalConnectivity, mThreads, mVerbose);
     } else {
-      mSmallData = false;
       // Standard case
-      final IndexedDistances nn = nearestNeighbors(instances, mRunNNeighbors, mMetric, mAngularRpForest, mRandom, mThreads, mVerbose);
+      final IndexedDistances nn = nearestNeighbors(instances, mRunNNeighbors, mMetric, mAngularRpForest, mRandom, mThreads, mDeterministic, progress, mVerbose);
       mKnnIndices = nn.getIndices();
       mKnnDists = nn.getDistances();
-      mRpForest = nn.getForest();
+      rpForest = nn.getForest();
 
       mGraph = fuzzySimplicialSet(instances, mNNeighbors, mRandom, mMetric, mKnnIndices, mKnnDists, mAngularRpForest, mSetOpMixRatio, mLocalConnectivity, mThreads, mVerbose);
 
@@ -1081,35 +1141,36 @@ public class Umap {
       if (mMetric == PrecomputedMetric.SINGLETON) {
         Utils.message("Using precomputed metric; transform will be unavailable for new data");
       } else {
-        mSearch = new NearestNeighborSearch(distanceFunc);
+        search = new NearestNeighborSearch(distanceFunc);
+        searchGraph = new SearchGraph(mKnnIndices, mKnnDists, mThreads);
       }
     }
-    UmapProgress.update();
+    progress.step();
     if (y != null) {
       if (instances.length() != y.length) {
         throw new IllegalArgumentException("Length of x =  " + instances.length() + ", length of y = " + y.length + ", while it must be equal.");
       }
       if (CategoricalMetric.SINGLETON.equals(mTargetMetric)) {
         final float farDist = mTargetWeight < 1 ? 2.5F * (1.0F / (1.0F - mTargetWeight)) : 1.0e12F;
-        mGraph = categoricalSimplicialSetIntersection((CooMatrix) mGraph, y, 1, farDist);
+        mGraph = categoricalSimplicialSetIntersection(mGraph.toCoo(), y, 1, farDist);
       } else {
         final int targetNNeighbors = mTargetNNeighbors == -1 ? mRunNNeighbors : mTargetNNeighbors;
 
         final Matrix targetGraph;
         // Handle the small case as precomputed as before
         if (y.length < SMALL_PROBLEM_THRESHOLD) {
-          final Matrix ydmat = PairwiseDistances.pairwiseDistances(MathUtils.promoteTranspose(y), mTargetMetric);
+          final Matrix ydmat = PairwiseDistances.pairwiseDistances(MathUtils.promoteTranspose(y), mTargetMetric, mThreads);
           targetGraph = fuzzySimplicialSet(ydmat, targetNNeighbors, mRandom, PrecomputedMetric.SINGLETON, null, null, false, 1, 1, mThreads, false);
         } else {
           // Standard case
-          targetGraph = fuzzySimplicialSet(MathUtils.promoteTranspose(y), targetNNeighbors, mRandom, mTargetMetric, null, null, false, 1, 1, mThreads, false);
+          targetGraph = fuzzySimplicialSet(MathUtils.promoteTranspose(y), targetNNeighbors, mRandom, mTargetMetric, null, null, false, 1, 1, mThreads, mDeterministic, false);
         }
         mGraph = generalSimplicialSetIntersection(mGraph, targetGraph, mTargetWeight);
         mGraph = resetLocalConnectivity(mGraph);
       }
     }
-    UmapProgress.incTotal(mNEpochs == null ? (mGraph.rows() <= 10000 ? 500 : 200) : mNEpochs);
-    UmapProgress.update();
+    progress.addTotal(mNEpochs == null ? (mGraph.rows() <= 10000 ? 500 : 200) : mNEpochs);
+    progress.step();
 
     final int nEpochs = mNEpochs == null ? 0 : mNEpochs;
 
@@ -1118,11 +1179,34 @@ public class Umap {
     }
 
     mEmbedding = simplicialSetEmbedding(mRawData, mGraph, mNComponents, mInitialAlpha, mRunA, mRunB, mRepulsionStrength, mNegativeSampleRate, nEpochs, "random", mRandom, mMetric, mVerbose);
+    mModel = createModel(smallData, rpForest, search, searchGraph);
 
     if (mVerbose) {
       Utils.message("Finished embedding");
     }
-    UmapProgress.finished();
+    progress.finish();
+  }
+
+  private FittedUmapModel createModel(final boolean smallData, final List<FlatTree> rpForest, final NearestNeighborSearch search, final SearchGraph searchGraph) {
+    final FittedUmapModel model = new FittedUmapModel(mRawData, mEmbedding, mMetric, smallData, rpForest, search, searchGraph,
+      mRunNNeighbors, mLocalConnectivity, mTransformQueueSize, mNEpochs, mRunA, mRunB, mRepulsionStrength, mInitialAlpha, mNegativeSampleRate,
+      mGradientKernel, mThreads, mParallelLayout, mDeterministic, mVerbose, mTransformSeed);
+    model.setExecutor(mExecutor);
+    return model;
+  }
+
+  /**
+   * Return the model resulting from the most recent fit.  The model is not
+   * affected by subsequent changes to the parameters or refitting of this object,
+   * and can transform new instances concurrently from multiple threads.
+   * @return fitted model
+   * @throws IllegalStateException if no fit has been performed.
+   */
+  public FittedUmapModel getModel() {
+    if (mModel == null) {
+      throw new IllegalStateException("Model has not been fit");
+    }
+    return mModel;
   }
 
   /**
@@ -1172,6 +1256,41 @@ public class Umap {
     return fitTransform(new DefaultMatrix(instances), null).toArray();
   }
 
+  /**
+   * Fit instances stored in a file into an embedded space and return that
+   * transformed output.  The file contains a sample per row, as little-endian
+   * 32-bit floats in row-major order.  The file is memory mapped rather than
+   * read onto the heap, so the instances can exceed the available memory.
+   * The file must not be modified while this object or its model is in use.
+   * @param instances file of instances
+   * @param cols number of features in each sample
+   * @return array of shape <code>(nSamples, nComponents)</code>
+   * Embedding of the training data in low-dimensional space.
+   * @throws IOException if an I/O error occurs or the file is not a whole number of rows.
+   */
+  public float[][] fitTransform(final File instances, final int cols) throws IOException {
+    return fitTransform(MappedMatrix.map(instances, cols), null).toArray();
+  }
+
+  /**
+   * Fit sparse instances into an embedded space and return that transformed output.
+   * The instances are given in compressed sparse row format, that is, the nonzero
+   * values of row <code>r</code> are <code>data[indptr[r]]</code> to
+   * <code>data[indptr[r + 1] - 1]</code> with the corresponding columns in
+   * <code>indices</code>.  Column indices must be increasing within each row.
+   * Distances are computed from the nonzero values only for the Euclidean,
+   * Manhattan, cosine, and Jaccard metrics.
+   * @param indptr start of each row in <code>indices</code> and <code>data</code>, of length <code>nSamples + 1</code>
+   * @param indices column of each nonzero value
+   * @param data nonzero values
+   * @param cols number of features in each sample
+   * @return array of shape <code>(nSamples, nComponents)</code>
+   * Embedding of the training data in low-dimensional space.
+   */
+  public float[][] fitTransform(final int[] indptr, final int[] indices, final float[] data, final int cols) {
+    return fitTransform(CsrMatrix.fromArrays(indptr, indices, data, cols), null).toArray();
+  }
+
   /**
    * Fit instances into an embedded space and return that transformed output.
    * This version internally converts all the doubles to floats.
@@ -1210,91 +1329,14 @@ public class Umap {
    * Embedding of the new data in low-dimensional space.
    * @throws IllegalArgumentException If we fit just a single instance then error.
    */
-  public Matrix transform(Matrix instances) {
-    if (mEmbedding.rows() == 1) {
-      throw new IllegalArgumentException("Transform unavailable when model was fit with only a single data sample.");
-    }
-    if (mRawData instanceof CsrMatrix) {
-      throw new IllegalArgumentException("Transform not available for sparse input.");
-    } else if (mMetric instanceof PrecomputedMetric) {
-      throw new IllegalArgumentException("Transform of new data not available for precomputed metric.");
-    }
-    UmapProgress.reset(4);
-
-    int[][] indices;
-    final float[][] dists;
-    if (mSmallData) {
-      final Matrix distanceMatrix = PairwiseDistances.pairwiseDistances(instances, mRawData, mMetric);
-      indices = new int[distanceMatrix.rows()][];
-      for (int k = 0; k < distanceMatrix.rows(); ++k) {
-        indices[k] = MathUtils.argsort(Arrays.copyOf(distanceMatrix.row(k), distanceMatrix.cols()));
-      }
-      indices = MathUtils.subarray(indices, mRunNNeighbors);
-      dists = Utils.submatrix(distanceMatrix, indices, mRunNNeighbors);
-    } else {
-      final Heap init = NearestNeighborDescent.initialiseSearch(mRpForest, mRawData, instances, (int) (mRunNNeighbors * mTransformQueueSize), mSearch, mRandom);
-      if (mSearchGraph == null) {
-        mSearchGraph = new SearchGraph(mRawData.rows());
-        for (int k = 0; k < mKnnIndices.length; ++k) {
-          for (int j = 0; j < mKnnIndices[k].length; ++j) {
-            if (mKnnDists[k][j] != 0) {
-              mSearchGraph.set(k, mKnnIndices[k][j]);
-            }
-          }
-        }
-      }
-      final Heap result = mSearch.initializedNndSearch(mRawData, mSearchGraph, init, instances).deheapSort();
-      indices = MathUtils.subarray(result.indices(), mRunNNeighbors);
-      dists = MathUtils.subarray(result.weights(), mRunNNeighbors);
-    }
-
-    UmapProgress.update();
-
-    final int adjustedLocalConnectivity = Math.max(0, mLocalConnectivity - 1);
-    final float[][] sigmasRhos = smoothKnnDist(dists, mRunNNeighbors, adjustedLocalConnectivity);
-    final float[] sigmas = sigmasRhos[0];
-    final float[] rhos = sigmasRhos[1];
-    CooMatrix graph = computeMembershipStrengths(indices, dists, sigmas, rhos, instances.rows(), mRawData.rows());
-
-    UmapProgress.update();
-
-    // This was a very specially constructed graph with constant degree.
-    // That lets us do fancy unpacking by reshaping the Csr matrix indices
-    // and data. Doing so relies on the constant degree assumption!
-    final CsrMatrix csrGraph = graph.toCsr().l1Normalize().toCsr();
-    final int[][] inds = csrGraph.reshapeIndicies(instances.rows(), mRunNNeighbors);
-    final float[][] weights = csrGraph.reshapeWeights(instances.rows(), mRunNNeighbors);
-    final Matrix embedding = initTransform(inds, weights, mEmbedding);
-
-    final int nEpochs;
-    if (mNEpochs == null) {
-      // For smaller datasets we can use more epochs
-      if (graph.rows() <= 10000) {
-        nEpochs = 100;
-      } else {
-        nEpochs = 30;
-      }
-    } else {
-      nEpochs = mNEpochs; // 3.0
-    }
-
-    MathUtils.zeroEntriesBelowLimit(graph.data(), MathUtils.max(graph.data()) / (float) nEpochs);
-    graph = graph.eliminateZeros().toCoo();
-
-    final float[] epochsPerSample = makeEpochsPerSample(graph.data(), nEpochs);
-
-    final int[] head = graph.row();
-    final int[] tail = graph.col();
-
-    UmapProgress.update();
-    UmapProgress.incTotal(nEpochs);
-    final Matrix matrix = optimizeLayout(embedding, mEmbedding.copy(), head, tail, nEpochs, graph.cols(), epochsPerSample, mRunA, mRunB, mRandom, mRepulsionStrength, mInitialAlpha, mNegativeSampleRate, mVerbose);
-
-    UmapProgress.finished();
-
-    return matrix;
+  public Matrix transform(final Matrix instances) {
+    final FittedUmapModel model = getModel();
+    final UmapProgress progress = new UmapProgress(mProgressListeners);
+    mProgress = progress;
+    return model.transform(instances, mRandom, progress);
   }
 
+
   /**
    * Transform instances into the existing embedded space and return that
    * transformed output.
@@ -1307,4 +1349,31 @@ public class Umap {
   public float[][] transform(final float[][] instances) {
     return transform(new DefaultMatrix(instances)).toArray();
   }
+
+  /**
+   * Transform sparse instances into the existing embedded space and return that
+   * transformed output.  The instances are given in the compressed sparse row
+   * format of <code>fitTransform(int[], int[], float[], int)</code>.
+   * @param indptr start of each row in <code>indices</code> and <code>data</code>, of length <code>nSamples + 1</code>
+   * @param indices column of each nonzero value
+   * @param data nonzero values
+   * @param cols number of features in each sample
+   * @return array, shape <code>(nSamples, nComponents)</code>
+   * Embedding of the new data in low-dimensional space.
+   * @throws IllegalArgumentException If we fit just a single instance then error.
+   */
+  public float[][] transform(final int[] indptr, final int[] indices, final float[] data, final int cols) {
+    return transform(CsrMatrix.fromArrays(indptr, indices, data, cols)).toArray();
+  }
+
+  /**
+   * Transform a single instance into the existing embedded space.  Transforms
+   * of a few instances are performed on the calling thread without any progress
+   * reporting, and are intended for low latency use.
+   * @param instance new instance
+   * @return embedding of the instance
+   */
+  public float[] transform(final float[] instance) {
+    return transform(new DefaultMatrix(new float[][] {instance})).row(0);
+  }
 }
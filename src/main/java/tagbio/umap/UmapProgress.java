@@ -1,73 +1,216 @@
 package tagbio.umap;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-
+/**
+ * Progress of a fit or transform.  Each fit or transform has its own progress,
+ * which is passed explicitly to the stages that report to it, so concurrent
+ * fits do not share counts, and stages running on worker threads report to
+ * the right fit.  Listeners should be registered with a particular
+ * <code>Umap</code>, whose progress is polled with <code>Umap.getProgress()</code>.
+ */
 public final class UmapProgress {
-  private static final UmapProgress PROGRESS = new UmapProgress();
+
+  private static final CopyOnWriteArrayList<ProgressListener> GLOBAL_LISTENERS = new CopyOnWriteArrayList<>();
   private static final long MIN_UPDATE_PERIOD = 500; // milliseconds
 
-  private final List<ProgressListener> mProgressListeners = new ArrayList<>();
+  /** Progress for stages that are not reported, such as micro-batch transforms. */
+  static final UmapProgress NONE = new UmapProgress(Collections.emptyList(), false);
+
+  // Most recently started progress on any thread
+  private static volatile UmapProgress sLatest = null;
+
+  private final List<ProgressListener> mProgressListeners;
+  private final boolean mEnabled;
   private int mTotal = 0;
   private int mCounter = 0;
   private long mLastNotificationTime = 0L;
 
-  private UmapProgress() {
+  private UmapProgress(final List<ProgressListener> listeners, final boolean enabled) {
+    mProgressListeners = listeners;
+    mEnabled = enabled;
   }
 
-  public static synchronized void addProgressListener(final ProgressListener listener) {
-    if (!PROGRESS.mProgressListeners.contains(listener)) {
-      PROGRESS.mProgressListeners.add(listener);
-    }
+  /**
+   * Make a new progress for a fit or transform.
+   * @param listeners listeners to notify of updates
+   */
+  UmapProgress(final List<ProgressListener> listeners) {
+    this(listeners, true);
+    sLatest = this;
+  }
+
+  /**
+   * Register a listener notified of the progress of every fit and transform.
+   * @param listener listener
+   * @deprecated updates from concurrent fits are interleaved; use <code>Umap.addProgressListener</code>
+   */
+  @Deprecated
+  public static void addProgressListener(final ProgressListener listener) {
+    GLOBAL_LISTENERS.addIfAbsent(listener);
   }
 
-  public static synchronized boolean removeProgressListener(final ProgressListener listener) {
-    return PROGRESS.mProgressListeners.remove(listener);
+  /**
+   * Remove a listener registered with <code>addProgressListener</code>.
+   * @param listener listener
+   * @return true if the listener was registered
+   * @deprecated use <code>Umap.removeProgressListener</code>
+   */
+  @Deprecated
+  public static boolean removeProgressListener(final ProgressListener listener) {
+    return GLOBAL_LISTENERS.remove(listener);
   }
 
-  protected void notifyListeners(ProgressState state) {
+  private void notifyListeners(final ProgressState state) {
     // limit calls to notify if occurring too often
     final long now = System.currentTimeMillis();
     if (now - mLastNotificationTime > MIN_UPDATE_PERIOD) {
       for (final ProgressListener listener : mProgressListeners) {
         listener.updated(state);
       }
+      for (final ProgressListener listener : GLOBAL_LISTENERS) {
+        listener.updated(state);
+      }
       mLastNotificationTime = now;
     }
   }
 
-  public static synchronized void reset(final int total) {
-    PROGRESS.mTotal = total;
-    PROGRESS.mCounter = 0;
-    PROGRESS.mLastNotificationTime = 0L;
-    update(0);
+  synchronized ProgressState getState() {
+    return new ProgressState(mTotal, mCounter);
+  }
+
+  private void add(final int n) {
+    mCounter += n;
+    if (mCounter > mTotal) {
+      Utils.message("Update counter exceeded total: " + mCounter + " : " + mTotal);
+    }
+    notifyListeners(getState());
+  }
+
+  /**
+   * Restart counting towards the given total.
+   * @param total number of steps expected
+   */
+  synchronized void start(final int total) {
+    if (mEnabled) {
+      mTotal = total;
+      mCounter = 0;
+      mLastNotificationTime = 0L;
+      add(0);
+    }
   }
 
-  public static synchronized void incTotal(final int inc) {
-    PROGRESS.mTotal += inc;
-    update(0);
+  /**
+   * Increase the number of steps expected.
+   * @param inc additional steps
+   */
+  synchronized void addTotal(final int inc) {
+    if (mEnabled) {
+      mTotal += inc;
+      add(0);
+    }
   }
 
-  public static synchronized void finished() {
-    PROGRESS.mCounter = PROGRESS.mTotal;
-    PROGRESS.mLastNotificationTime = 0L;
-    update(0);
+  /**
+   * Record the completion of all the expected steps.
+   */
+  synchronized void finish() {
+    if (mEnabled) {
+      mCounter = mTotal;
+      mLastNotificationTime = 0L;
+      add(0);
+    }
+  }
+
+  /**
+   * Record the completion of a step.  May be called from any thread.
+   */
+  void step() {
+    step(1);
+  }
+
+  /**
+   * Record the completion of some steps.  May be called from any thread.
+   * @param n number of steps completed
+   */
+  synchronized void step(final int n) {
+    if (mEnabled) {
+      add(n);
+    }
+  }
+
+  /**
+   * Restart the most recently started progress.
+   * @param total number of steps expected
+   * @deprecated progress is maintained by each fit or transform
+   */
+  @Deprecated
+  public static void reset(final int total) {
+    final UmapProgress progress = sLatest;
+    if (progress != null) {
+      progress.start(total);
+    }
+  }
+
+  /**
+   * Increase the number of steps expected by the most recently started progress.
+   * @param inc additional steps
+   * @deprecated progress is maintained by each fit or transform
+   */
+  @Deprecated
+  public static void incTotal(final int inc) {
+    final UmapProgress progress = sLatest;
+    if (progress != null) {
+      progress.addTotal(inc);
+    }
+  }
+
+  /**
+   * Complete the most recently started progress.
+   * @deprecated progress is maintained by each fit or transform
+   */
+  @Deprecated
+  public static void finished() {
+    final UmapProgress progress = sLatest;
+    if (progress != null) {
+      progress.finish();
+    }
   }
 
+  /**
+   * Advance the most recently started progress by one step.
+   * @deprecated progress is maintained by each fit or transform
+   */
+  @Deprecated
   public static void update() {
     update(1);
   }
 
-  public static synchronized void update(int n) {
-    PROGRESS.mCounter += n;
-    if (PROGRESS.mCounter > PROGRESS.mTotal) {
-      Utils.message("Update counter exceeded total: " + PROGRESS.mCounter + " : " + PROGRESS.mTotal);
+  /**
+   * Advance the most recently started progress.
+   * @param n number of steps completed
+   * @deprecated progress is maintained by each fit or transform
+   */
+  @Deprecated
+  public static void update(final int n) {
+    final UmapProgress progress = sLatest;
+    if (progress != null) {
+      progress.step(n);
     }
-    PROGRESS.notifyListeners(getProgress());
   }
 
+  /**
+   * Return the progress of the most recently started fit or transform, which
+   * may be running on any thread.  When several run concurrently, this is
+   * only one of them.
+   * @return progress
+   * @deprecated use <code>Umap.getProgress()</code> to follow a particular fit
+   */
+  @Deprecated
   public static ProgressState getProgress() {
-    return new ProgressState(PROGRESS.mTotal, PROGRESS.mCounter);
+    final UmapProgress progress = sLatest;
+    return progress == null ? new ProgressState(0, 0) : progress.getState();
   }
 }
@@ -5,10 +5,15 @@
  */
 package tagbio.umap;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Utility functions.
@@ -66,6 +71,47 @@ final class Utils {
     System.out.println(now() + message);
   }
 
+  /** An operation on a range of integers. */
+  interface Range {
+    /**
+     * Perform the operation.
+     * @param lo first integer
+     * @param hi upper bound (exclusive) on integers
+     */
+    void run(int lo, int hi);
+  }
+
+  /**
+   * Perform an operation over the integers from 0 to <code>size - 1</code>.  The integers
+   * are divided into a contiguous range per thread and the ranges processed concurrently.
+   * @param size number of integers
+   * @param threads number of threads
+   * @param range operation
+   */
+  static void parallelFor(final int size, final int threads, final Range range) {
+    if (threads <= 1) {
+      range.run(0, size);
+      return;
+    }
+    final ExecutorService executor = SharedExecutor.acquire(threads);
+    try {
+      final int chunkSize = (size + threads - 1) / threads;
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; ++t) {
+        final int lo = Math.min(t * chunkSize, size);
+        final int hi = Math.min(lo + chunkSize, size);
+        futures.add(executor.submit(() -> range.run(lo, hi)));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } catch (final InterruptedException | ExecutionException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      SharedExecutor.release(executor);
+    }
+  }
+
   /**
    * A fast computation of knn indices.
    * @param instances array of shape <code>(nSamples, nFeatures)</code>
@@ -74,12 +120,98 @@ final class Utils {
    * closest points in the dataset.
    */
   static int[][] fastKnnIndices(final Matrix instances, final int nNeighbors) {
-    final int[][] knnIndices = new int[instances.rows()][nNeighbors];
-    for (int row = 0; row < instances.rows(); ++row) {
-      final int[] v = MathUtils.argsort(Arrays.copyOf(instances.row(row), instances.cols())); // copy to avoid changing original instances
-      knnIndices[row] = Arrays.copyOf(v, nNeighbors); // todo Math.min(nNeighbors, v.length) ???
+    return fastKnn(instances, nNeighbors, 1).getIndices();
+  }
+
+  /**
+   * A fast computation of knn indices and distances from a matrix of distances.
+   * Each row is treated independently and the smallest <code>nNeighbors</code>
+   * entries selected without sorting the whole row.  Equal distances are ordered
+   * by column index.
+   * @param instances array of shape <code>(nSamples, nFeatures)</code>
+   * @param nNeighbors the number of nearest neighbors to compute for each sample in <code>instances</code>
+   * @param threads number of threads
+   * @return arrays of shape <code>(nSamples, nNeighbors)</code> containing the indices of the <code>nNeighbours</code>
+   * closest points in the dataset and the corresponding distances.
+   */
+  static IndexedDistances fastKnn(final Matrix instances, final int nNeighbors, final int threads) {
+    final int rows = instances.rows();
+    final int[][] knnIndices = new int[rows][nNeighbors];
+    final float[][] knnDists = new float[rows][nNeighbors];
+    parallelFor(rows, threads, (lo, hi) -> {
+      for (int row = lo; row < hi; ++row) {
+        smallest(instances.row(row), knnIndices[row], knnDists[row]);
+      }
+    });
+    return new IndexedDistances(knnIndices, knnDists, null);
+  }
+
+  // Is (d, i) after (e, j) in order of distance then index
+  private static boolean after(final float d, final int i, final float e, final int j) {
+    return d > e || (d == e && i > j);
+  }
+
+  private static void siftDown(final int[] indices, final float[] dists, final int size, int pos) {
+    final int index = indices[pos];
+    final float dist = dists[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && after(dists[child + 1], indices[child + 1], dists[child], indices[child])) {
+        ++child;
+      }
+      if (!after(dists[child], indices[child], dist, index)) {
+        break;
+      }
+      indices[pos] = indices[child];
+      dists[pos] = dists[child];
+      pos = child;
+    }
+    indices[pos] = index;
+    dists[pos] = dist;
+  }
+
+  /**
+   * Select the smallest entries of a row in order of increasing value.  Ties are
+   * ordered by increasing column index.  The number of entries selected is the
+   * length of <code>indices</code>; if the row is shorter than this the remaining
+   * indices are set to -1 and the distances to infinity.
+   * @param row values
+   * @param indices output column indices of the smallest values
+   * @param dists output smallest values
+   */
+  static void smallest(final float[] row, final int[] indices, final float[] dists) {
+    final int k = Math.min(indices.length, row.length);
+    // Bounded max-heap of the k smallest values seen so far
+    for (int j = 0; j < k; ++j) {
+      indices[j] = j;
+      dists[j] = row[j];
+    }
+    for (int j = k / 2 - 1; j >= 0; --j) {
+      siftDown(indices, dists, k, j);
+    }
+    for (int j = k; j < row.length; ++j) {
+      // Later columns lose ties, so only a strictly smaller value can enter
+      if (row[j] < dists[0]) {
+        indices[0] = j;
+        dists[0] = row[j];
+        siftDown(indices, dists, k, 0);
+      }
+    }
+    // Heap sort into increasing order
+    for (int size = k - 1; size > 0; --size) {
+      final int index = indices[size];
+      final float dist = dists[size];
+      indices[size] = indices[0];
+      dists[size] = dists[0];
+      indices[0] = index;
+      dists[0] = dist;
+      siftDown(indices, dists, size, 0);
     }
-    return knnIndices;
+    Arrays.fill(indices, k, indices.length, -1);
+    Arrays.fill(dists, k, dists.length, Float.POSITIVE_INFINITY);
   }
 
   /**
@@ -19,34 +19,41 @@ public final class CorrelationMetric extends Metric {
 
   @Override
   public float distance(final float[] x, final float[] y) {
-     float muX = 0.0F;
-     float muY = 0.0F;
-     float normX = 0.0F;
-     float normY = 0.0F;
-     float dotProduct = 0.0F;
-
-    for (int i = 0; i < x.length; ++i) {
-       muX += x[i];
-       muY += y[i];
-     }
-
-     muX /= x.length;
-     muY /= x.length;
-
-    for (int i = 0; i < x.length; ++i) {
-      final float shiftedX = x[i] - muX;
-      final float shiftedY = y[i] - muY;
-      normX += shiftedX * shiftedX;
-      normY += shiftedY * shiftedY;
-      dotProduct += shiftedX * shiftedY;
+    return distance(x, 0, y, 0, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    return DistanceKernels.SINGLETON.correlation(x, xOffset, y, yOffset, length);
+  }
+
+  @Override
+  public int preparedLength() {
+    return 2;
+  }
+
+  @Override
+  public void prepare(final float[] x, final double[] prepared, final int preparedOffset) {
+    // Mean and squared norm of the centred point
+    float mu = 0.0F;
+    for (final float xi : x) {
+      mu += xi;
     }
+    mu /= x.length;
+    // Same kernel as the distance, so that the distance of a point to itself is 0
+    prepared[preparedOffset] = mu;
+    prepared[preparedOffset + 1] = DistanceKernels.SINGLETON.centredDot(x, 0, mu, x, 0, mu, x.length);
+  }
 
-     if (normX == 0.0 && normY == 0.0) {
-       return 0;
-     } else if (dotProduct == 0.0) {
-       return 1;
-     } else {
-       return (float) (1 - (dotProduct / Math.sqrt(normX * normY)));
-     }
+  @Override
+  public float distance(final float[] x, final double[] xPrepared, final int xPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    return distance(x, 0, xPrepared, xPreparedOffset, y, 0, yPrepared, yPreparedOffset, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final int xOffset, final double[] xPrepared, final int xPreparedOffset, final float[] y, final int yOffset, final double[] yPrepared, final int yPreparedOffset, final int length) {
+    // With the means and centred norms known this is a single centred dot product
+    final float dotProduct = DistanceKernels.SINGLETON.centredDot(x, xOffset, (float) xPrepared[xPreparedOffset], y, yOffset, (float) yPrepared[yPreparedOffset], length);
+    return DistanceKernels.preparedCorrelation(dotProduct, (float) xPrepared[xPreparedOffset + 1], (float) yPrepared[yPreparedOffset + 1]);
   }
 }
@@ -20,20 +20,33 @@ public final class CosineMetric extends Metric {
 
   @Override
   public float distance(final float[] x, final float[] y) {
-    double result = 0.0;
-    double normX = 0.0;
-    double normY = 0.0;
-    for (int i = 0; i < x.length; ++i) {
-      result += x[i] * y[i];
-      normX += x[i] * x[i];
-      normY += y[i] * y[i];
-    }
-    if (normX == 0.0 && normY == 0.0) {
-      return 0;
-    } else if (normX == 0.0 || normY == 0.0) {
-      return 1;
-    } else {
-      return (float) (1 - (result / Math.sqrt(normX * normY)));
-    }
+    return distance(x, 0, y, 0, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    return DistanceKernels.SINGLETON.cosine(x, xOffset, y, yOffset, length);
+  }
+
+  @Override
+  public int preparedLength() {
+    return 1;
+  }
+
+  @Override
+  public void prepare(final float[] x, final double[] prepared, final int preparedOffset) {
+    // Same kernel as the distance, so that the distance of a point to itself is 0
+    prepared[preparedOffset] = DistanceKernels.SINGLETON.dot(x, 0, x, 0, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final double[] xPrepared, final int xPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    return distance(x, 0, xPrepared, xPreparedOffset, y, 0, yPrepared, yPreparedOffset, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final int xOffset, final double[] xPrepared, final int xPreparedOffset, final float[] y, final int yOffset, final double[] yPrepared, final int yPreparedOffset, final int length) {
+    // With the squared norms known this is a single dot product
+    return DistanceKernels.preparedCosine(DistanceKernels.SINGLETON.dot(x, xOffset, y, yOffset, length), xPrepared[xPreparedOffset], yPrepared[yPreparedOffset]);
   }
 }
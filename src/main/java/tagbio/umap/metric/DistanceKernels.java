@@ -0,0 +1,157 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap.metric;
+
+/**
+ * Inner loops of the most frequently evaluated metrics.  This class contains
+ * the portable scalar implementations, which are used by default.  SIMD
+ * implementations are used instead when the system property
+ * <code>umap.vector</code> is <code>true</code>, the JVM has the
+ * <code>jdk.incubator.vector</code> module (for example, when run with
+ * <code>--add-modules jdk.incubator.vector</code>), and the optional
+ * <code>VectorDistanceKernels</code> class was built (the <code>vector</code>
+ * Maven profile on JDK 17 or later, which places it in the multi-release part
+ * of the jar).  The SIMD versions use a fixed vector width and reduction
+ * order, so their results do not depend on the host, but they sum in a
+ * different order to the scalar versions and can differ from them in the last
+ * bits.  Seeded and deterministic results are therefore only reproducible
+ * between runs using the same kernels.
+ */
+class DistanceKernels {
+
+  private static final String VECTOR_KERNELS = "tagbio.umap.metric.VectorDistanceKernels";
+
+  /** Kernels used by the metrics. */
+  static final DistanceKernels SINGLETON = select();
+
+  private static DistanceKernels select() {
+    if (Boolean.getBoolean("umap.vector")) {
+      try {
+        return (DistanceKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+      } catch (final ReflectiveOperationException | LinkageError e) {
+        // Not built, pre-JDK 17, or the incubator module is not present
+      }
+    }
+    return new DistanceKernels();
+  }
+
+  /**
+   * Name of these kernels, for diagnostics.
+   * @return name
+   */
+  String name() {
+    return "scalar";
+  }
+
+  float squaredEuclidean(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    float result = 0;
+    for (int i = 0; i < length; ++i) {
+      final float d = x[xOffset + i] - y[yOffset + i];
+      result += d * d;
+    }
+    return result;
+  }
+
+  float manhattan(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    float result = 0;
+    for (int i = 0; i < length; ++i) {
+      result += Math.abs(x[xOffset + i] - y[yOffset + i]);
+    }
+    return result;
+  }
+
+  float cosine(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    double result = 0.0;
+    double normX = 0.0;
+    double normY = 0.0;
+    for (int i = 0; i < length; ++i) {
+      final float xi = x[xOffset + i];
+      final float yi = y[yOffset + i];
+      result += xi * yi;
+      normX += xi * xi;
+      normY += yi * yi;
+    }
+    return cosine(result, normX, normY);
+  }
+
+  double dot(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    double result = 0.0;
+    for (int i = 0; i < length; ++i) {
+      result += x[xOffset + i] * y[yOffset + i];
+    }
+    return result;
+  }
+
+  static float cosine(final double dotProduct, final double normX, final double normY) {
+    if (normX == 0.0 && normY == 0.0) {
+      return 0;
+    } else if (normX == 0.0 || normY == 0.0) {
+      return 1;
+    } else {
+      return (float) (1 - (dotProduct / Math.sqrt(normX * normY)));
+    }
+  }
+
+  // Cosine distance from prepared squared norms.  The norms and dot product are
+  // summed separately, so rounding could otherwise give a small negative distance.
+  static float preparedCosine(final double dotProduct, final double normX, final double normY) {
+    return Math.max(0, cosine(dotProduct, normX, normY));
+  }
+
+  float correlation(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    float muX = 0.0F;
+    float muY = 0.0F;
+    for (int i = 0; i < length; ++i) {
+      muX += x[xOffset + i];
+      muY += y[yOffset + i];
+    }
+    muX /= length;
+    muY /= length;
+
+    float normX = 0.0F;
+    float normY = 0.0F;
+    float dotProduct = 0.0F;
+    for (int i = 0; i < length; ++i) {
+      final float shiftedX = x[xOffset + i] - muX;
+      final float shiftedY = y[yOffset + i] - muY;
+      normX += shiftedX * shiftedX;
+      normY += shiftedY * shiftedY;
+      dotProduct += shiftedX * shiftedY;
+    }
+    return correlation(dotProduct, normX, normY);
+  }
+
+  float centredDot(final float[] x, final int xOffset, final float muX, final float[] y, final int yOffset, final float muY, final int length) {
+    float dotProduct = 0.0F;
+    for (int i = 0; i < length; ++i) {
+      dotProduct += (x[xOffset + i] - muX) * (y[yOffset + i] - muY);
+    }
+    return dotProduct;
+  }
+
+  static float correlation(final float dotProduct, final float normX, final float normY) {
+    if (normX == 0.0 && normY == 0.0) {
+      return 0;
+    } else if (dotProduct == 0.0) {
+      return 1;
+    } else {
+      return (float) (1 - (dotProduct / Math.sqrt(normX * normY)));
+    }
+  }
+
+  // Correlation distance from prepared centred norms.  The product of the norms is
+  // formed in double precision, where it is exact, so identical points give zero,
+  // and the result is clamped as for cosine.
+  static float preparedCorrelation(final float dotProduct, final float normX, final float normY) {
+    if (normX == 0.0 && normY == 0.0) {
+      return 0;
+    } else if (dotProduct == 0.0) {
+      return 1;
+    } else {
+      return (float) Math.max(0, 1 - (dotProduct / Math.sqrt((double) normX * normY)));
+    }
+  }
+}
@@ -19,12 +19,12 @@ public final class EuclideanMetric extends Metric {
 
   @Override
   public float distance(final float[] x, final float[] y) {
+    return distance(x, 0, y, 0, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
     //  D(x, y) = \sqrt{\sum_i (x_i - y_i)^2}
-    float result = 0;
-    for (int i = 0; i < x.length; ++i) {
-      final float d = x[i] - y[i];
-      result += d * d;
-    }
-    return (float) Math.sqrt(result);
+    return (float) Math.sqrt(DistanceKernels.SINGLETON.squaredEuclidean(x, xOffset, y, yOffset, length));
   }
 }
@@ -19,11 +19,12 @@ public final class ManhattanMetric extends Metric {
 
   @Override
   public float distance(final float[] x, final float[] y) {
+    return distance(x, 0, y, 0, x.length);
+  }
+
+  @Override
+  public float distance(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
     //  D(x, y) = \sum_i |x_i - y_i|
-    float result = 0;
-    for (int i = 0; i < x.length; ++i) {
-      result += Math.abs(x[i] - y[i]);
-    }
-    return result;
+    return DistanceKernels.SINGLETON.manhattan(x, xOffset, y, yOffset, length);
   }
 }
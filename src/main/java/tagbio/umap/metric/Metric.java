@@ -5,6 +5,7 @@
  */
 package tagbio.umap.metric;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,6 +32,78 @@ public abstract class Metric {
    */
   public abstract float distance(final float[] x, final float[] y);
 
+  /**
+   * Distance between points stored within larger arrays, for example rows of a
+   * matrix stored in a single array.  The default implementation copies the
+   * points; frequently used metrics override this to work in place.
+   * @param x array containing first point
+   * @param xOffset position of first point in <code>x</code>
+   * @param y array containing second point
+   * @param yOffset position of second point in <code>y</code>
+   * @param length number of coordinates of each point
+   * @return distance between the points
+   */
+  public float distance(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    return distance(Arrays.copyOfRange(x, xOffset, xOffset + length), Arrays.copyOfRange(y, yOffset, yOffset + length));
+  }
+
+  /**
+   * Number of values this metric caches for each point, or zero if the metric
+   * does not benefit from preparation.  Metrics which repeatedly derive the same
+   * per-point quantity, such as a norm or mean, on every distance computation
+   * can instead have it computed once per point by <code>prepare</code>.
+   * @return number of prepared values per point
+   */
+  public int preparedLength() {
+    return 0;
+  }
+
+  /**
+   * Compute the cached values for a point.
+   * @param x point
+   * @param prepared destination for <code>preparedLength()</code> values
+   * @param preparedOffset position of the values in <code>prepared</code>
+   * @throws UnsupportedOperationException if this metric does not support preparation.
+   */
+  public void prepare(final float[] x, final double[] prepared, final int preparedOffset) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Distance between points using values previously computed by <code>prepare</code>.
+   * The result agrees with <code>distance(x, y)</code> up to rounding, except
+   * that metrics may clamp it so that it is never negative.
+   * @param x first point
+   * @param xPrepared values prepared for the first point
+   * @param xPreparedOffset position of the values in <code>xPrepared</code>
+   * @param y second point
+   * @param yPrepared values prepared for the second point
+   * @param yPreparedOffset position of the values in <code>yPrepared</code>
+   * @return distance between the points
+   */
+  public float distance(final float[] x, final double[] xPrepared, final int xPreparedOffset, final float[] y, final double[] yPrepared, final int yPreparedOffset) {
+    return distance(x, y);
+  }
+
+  /**
+   * Distance between points stored within larger arrays using values previously
+   * computed by <code>prepare</code>.  The default implementation copies the
+   * points; metrics supporting preparation override this to work in place.
+   * @param x array containing first point
+   * @param xOffset position of first point in <code>x</code>
+   * @param xPrepared values prepared for the first point
+   * @param xPreparedOffset position of the values in <code>xPrepared</code>
+   * @param y array containing second point
+   * @param yOffset position of second point in <code>y</code>
+   * @param yPrepared values prepared for the second point
+   * @param yPreparedOffset position of the values in <code>yPrepared</code>
+   * @param length number of coordinates of each point
+   * @return distance between the points
+   */
+  public float distance(final float[] x, final int xOffset, final double[] xPrepared, final int xPreparedOffset, final float[] y, final int yOffset, final double[] yPrepared, final int yPreparedOffset, final int length) {
+    return distance(Arrays.copyOfRange(x, xOffset, xOffset + length), xPrepared, xPreparedOffset, Arrays.copyOfRange(y, yOffset, yOffset + length), yPrepared, yPreparedOffset);
+  }
+
   /**
    * Is this an angular metric.
    * @return true iff this metric is angular.
@@ -41,12 +114,7 @@ public abstract class Metric {
 
   private static Map<String, Metric> sMETRICS = null;
 
-  /**
-   * Retrieve a metric by name.
-   * @param name name of metric
-   * @return metric
-   */
-  public static Metric getMetric(final String name) {
+  private static Map<String, Metric> metrics() {
     if (sMETRICS == null) {
       sMETRICS = new HashMap<>();
       sMETRICS.put("euclidean", EuclideanMetric.SINGLETON);
@@ -74,11 +142,35 @@ public abstract class Metric {
       sMETRICS.put("sokalmichener", SokalMichenerMetric.SINGLETON);
       sMETRICS.put("yule", YuleMetric.SINGLETON);
     }
+    return sMETRICS;
+  }
 
-    final Metric m = sMETRICS.get(name.toLowerCase());
+  /**
+   * Retrieve a metric by name.
+   * @param name name of metric
+   * @return metric
+   */
+  public static Metric getMetric(final String name) {
+    final Metric m = metrics().get(name.toLowerCase());
     if (m == null) {
       throw new IllegalArgumentException("Unknown metric: " + name);
     }
     return m;
   }
+
+  /**
+   * Retrieve a name of a metric, such that <code>getMetric</code> on the name
+   * returns the metric.
+   * @param metric metric
+   * @return name of metric
+   * @throws IllegalArgumentException if the metric is not available by name
+   */
+  public static String getName(final Metric metric) {
+    for (final Map.Entry<String, Metric> e : metrics().entrySet()) {
+      if (e.getValue().equals(metric)) {
+        return e.getKey();
+      }
+    }
+    throw new IllegalArgumentException("Metric not available by name: " + metric.getClass().getSimpleName());
+  }
 }
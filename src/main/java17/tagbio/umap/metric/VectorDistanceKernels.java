@@ -0,0 +1,206 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap.metric;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementations of the distance kernels using the incubating JDK
+ * Vector API.  This class requires JDK 17 or later and is only compiled by
+ * the <code>vector</code> Maven profile.  It is loaded reflectively by
+ * <code>DistanceKernels</code>, so it must not be referenced directly.
+ * The vector width is fixed at 256 bits and lanes are summed in lane order,
+ * so results are the same on every host.  Cosine accumulates in double lanes,
+ * as the scalar version does.  Short tails which do not fill a vector are
+ * handled by scalar loops.
+ */
+final class VectorDistanceKernels extends DistanceKernels {
+
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_256;
+  private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_256;
+
+  VectorDistanceKernels() {
+    // Fail now, rather than on first use, if the module is unusable
+    FloatVector.zero(SPECIES);
+  }
+
+  @Override
+  String name() {
+    return "vector" + SPECIES.vectorBitSize();
+  }
+
+  // Sum of the lanes in lane order, unlike reduceLanes whose order is unspecified
+  private static float sum(final FloatVector v) {
+    float result = 0;
+    for (int k = 0; k < SPECIES.length(); ++k) {
+      result += v.lane(k);
+    }
+    return result;
+  }
+
+  // Sum of the lanes of the low then high halves, that is, in element order
+  private static double sum(final DoubleVector lo, final DoubleVector hi) {
+    double result = 0;
+    for (int k = 0; k < DOUBLE_SPECIES.length(); ++k) {
+      result += lo.lane(k);
+    }
+    for (int k = 0; k < DOUBLE_SPECIES.length(); ++k) {
+      result += hi.lane(k);
+    }
+    return result;
+  }
+
+  private static DoubleVector widen(final FloatVector v, final int part) {
+    return (DoubleVector) v.convertShape(VectorOperators.F2D, DOUBLE_SPECIES, part);
+  }
+
+  @Override
+  float squaredEuclidean(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    final int bound = SPECIES.loopBound(length);
+    FloatVector sum = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      final FloatVector d = FloatVector.fromArray(SPECIES, x, xOffset + i).sub(FloatVector.fromArray(SPECIES, y, yOffset + i));
+      sum = sum.add(d.mul(d));
+    }
+    float result = sum(sum);
+    for (; i < length; ++i) {
+      final float d = x[xOffset + i] - y[yOffset + i];
+      result += d * d;
+    }
+    return result;
+  }
+
+  @Override
+  float manhattan(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    final int bound = SPECIES.loopBound(length);
+    FloatVector sum = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      sum = sum.add(FloatVector.fromArray(SPECIES, x, xOffset + i).sub(FloatVector.fromArray(SPECIES, y, yOffset + i)).abs());
+    }
+    float result = sum(sum);
+    for (; i < length; ++i) {
+      result += Math.abs(x[xOffset + i] - y[yOffset + i]);
+    }
+    return result;
+  }
+
+  @Override
+  float cosine(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    // Products are formed in float and accumulated in double, as in the scalar version
+    final int bound = SPECIES.loopBound(length);
+    DoubleVector dotLo = DoubleVector.zero(DOUBLE_SPECIES);
+    DoubleVector dotHi = DoubleVector.zero(DOUBLE_SPECIES);
+    DoubleVector xxLo = DoubleVector.zero(DOUBLE_SPECIES);
+    DoubleVector xxHi = DoubleVector.zero(DOUBLE_SPECIES);
+    DoubleVector yyLo = DoubleVector.zero(DOUBLE_SPECIES);
+    DoubleVector yyHi = DoubleVector.zero(DOUBLE_SPECIES);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      final FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i);
+      final FloatVector yv = FloatVector.fromArray(SPECIES, y, yOffset + i);
+      final FloatVector xy = xv.mul(yv);
+      final FloatVector xx = xv.mul(xv);
+      final FloatVector yy = yv.mul(yv);
+      dotLo = dotLo.add(widen(xy, 0));
+      dotHi = dotHi.add(widen(xy, 1));
+      xxLo = xxLo.add(widen(xx, 0));
+      xxHi = xxHi.add(widen(xx, 1));
+      yyLo = yyLo.add(widen(yy, 0));
+      yyHi = yyHi.add(widen(yy, 1));
+    }
+    double result = sum(dotLo, dotHi);
+    double normX = sum(xxLo, xxHi);
+    double normY = sum(yyLo, yyHi);
+    for (; i < length; ++i) {
+      final float xi = x[xOffset + i];
+      final float yi = y[yOffset + i];
+      result += xi * yi;
+      normX += xi * xi;
+      normY += yi * yi;
+    }
+    return cosine(result, normX, normY);
+  }
+
+  @Override
+  float correlation(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    final int bound = SPECIES.loopBound(length);
+    FloatVector sumX = FloatVector.zero(SPECIES);
+    FloatVector sumY = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      sumX = sumX.add(FloatVector.fromArray(SPECIES, x, xOffset + i));
+      sumY = sumY.add(FloatVector.fromArray(SPECIES, y, yOffset + i));
+    }
+    float muX = sum(sumX);
+    float muY = sum(sumY);
+    for (; i < length; ++i) {
+      muX += x[xOffset + i];
+      muY += y[yOffset + i];
+    }
+    muX /= length;
+    muY /= length;
+
+    FloatVector dot = FloatVector.zero(SPECIES);
+    FloatVector xx = FloatVector.zero(SPECIES);
+    FloatVector yy = FloatVector.zero(SPECIES);
+    for (i = 0; i < bound; i += SPECIES.length()) {
+      final FloatVector xv = FloatVector.fromArray(SPECIES, x, xOffset + i).sub(muX);
+      final FloatVector yv = FloatVector.fromArray(SPECIES, y, yOffset + i).sub(muY);
+      dot = dot.add(xv.mul(yv));
+      xx = xx.add(xv.mul(xv));
+      yy = yy.add(yv.mul(yv));
+    }
+    float dotProduct = sum(dot);
+    float normX = sum(xx);
+    float normY = sum(yy);
+    for (; i < length; ++i) {
+      final float shiftedX = x[xOffset + i] - muX;
+      final float shiftedY = y[yOffset + i] - muY;
+      normX += shiftedX * shiftedX;
+      normY += shiftedY * shiftedY;
+      dotProduct += shiftedX * shiftedY;
+    }
+    return correlation(dotProduct, normX, normY);
+  }
+
+  @Override
+  double dot(final float[] x, final int xOffset, final float[] y, final int yOffset, final int length) {
+    final int bound = SPECIES.loopBound(length);
+    DoubleVector dotLo = DoubleVector.zero(DOUBLE_SPECIES);
+    DoubleVector dotHi = DoubleVector.zero(DOUBLE_SPECIES);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      final FloatVector xy = FloatVector.fromArray(SPECIES, x, xOffset + i).mul(FloatVector.fromArray(SPECIES, y, yOffset + i));
+      dotLo = dotLo.add(widen(xy, 0));
+      dotHi = dotHi.add(widen(xy, 1));
+    }
+    double result = sum(dotLo, dotHi);
+    for (; i < length; ++i) {
+      result += x[xOffset + i] * y[yOffset + i];
+    }
+    return result;
+  }
+
+  @Override
+  float centredDot(final float[] x, final int xOffset, final float muX, final float[] y, final int yOffset, final float muY, final int length) {
+    final int bound = SPECIES.loopBound(length);
+    FloatVector dot = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += SPECIES.length()) {
+      dot = dot.add(FloatVector.fromArray(SPECIES, x, xOffset + i).sub(muX).mul(FloatVector.fromArray(SPECIES, y, yOffset + i).sub(muY)));
+    }
+    float result = sum(dot);
+    for (; i < length; ++i) {
+      result += (x[xOffset + i] - muX) * (y[yOffset + i] - muY);
+    }
+    return result;
+  }
+}
@@ -8,6 +8,7 @@ package tagbio.umap;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
+import tagbio.umap.metric.Metric;
 
 /**
  * Tests the corresponding class.
@@ -44,6 +45,20 @@ public abstract class AbstractMatrixTest extends TestCase {
     assertTrue(Arrays.equals(new float[] {0.5F, 2}, getMatrixA().row(1)));
   }
 
+  public void testDistance() {
+    final Matrix m = getMatrixA();
+    for (final String name : new String[] {"euclidean", "manhattan", "cosine", "correlation", "chebyshev"}) {
+      final Metric metric = Metric.getMetric(name);
+      for (int i = 0; i < m.rows(); ++i) {
+        for (int j = 0; j < m.rows(); ++j) {
+          assertEquals(name, metric.distance(m.row(i), m.row(j)), m.distance(metric, i, j), 0);
+        }
+        assertEquals(name, metric.distance(m.row(i), new float[] {2, 1}), m.distance(metric, i, new float[] {2, 1}), 0);
+      }
+      assertEquals(name, metric.distance(m.row(1), m.row(3)), metric.distance(new float[] {9, 0, 1, 0.5F, 2}, 3, new float[] {0, 3, 7}, 0, 2), 0);
+    }
+  }
+
   public void testTranspose() {
     assertEquals("0.0,0.5,1.0,0.0\n1.0,2.0,0.0,3.0\n", getMatrixA().transpose().toString());
   }
@@ -20,11 +20,23 @@ public class AllTests extends TestSuite {
     suite.addTestSuite(CsrMatrixTest.class);
     suite.addTestSuite(DefaultMatrixTest.class);
     suite.addTestSuite(DigitDataTest.class);
+    suite.addTestSuite(EdgeScheduleTest.class);
+    suite.addTestSuite(FittedUmapModelTest.class);
+    suite.addTestSuite(FlatMatrixTest.class);
+    suite.addTestSuite(GradientKernelTest.class);
+    suite.addTestSuite(HeapTest.class);
+    suite.addTestSuite(HeapUpdatesTest.class);
     suite.addTestSuite(IrisDataTest.class);
+    suite.addTestSuite(MappedMatrixTest.class);
+    suite.addTestSuite(PairwiseDistancesTest.class);
+    suite.addTestSuite(PreparedMatrixTest.class);
+    suite.addTestSuite(SearchGraphTest.class);
     suite.addTestSuite(SortTest.class);
+    suite.addTestSuite(SparseTest.class);
     suite.addTestSuite(SparseVectorTest.class);
     suite.addTestSuite(UmapTest.class);
     suite.addTestSuite(UtilsTest.class);
+    suite.addTest(tagbio.umap.metric.AllTests.suite());
     return suite;
   }
 
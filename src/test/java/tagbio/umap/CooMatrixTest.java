@@ -5,6 +5,8 @@
  */
 package tagbio.umap;
 
+import java.util.Random;
+
 /**
  * Tests the corresponding class.
  * @author Sean A. Irvine
@@ -97,4 +99,35 @@ public class CooMatrixTest extends AbstractMatrixTest {
     final Matrix hmt = m.add(m.transpose());
     assertEquals(hmt, m.addTranspose());
   }
+
+  public void testFuzzyUnion() {
+    final Random random = new Random(3);
+    final float[][] d = new float[30][30];
+    for (int r = 0; r < d.length; ++r) {
+      for (int c = 0; c < d[r].length; ++c) {
+        if (r != c && random.nextInt(4) == 0) {
+          d[r][c] = random.nextFloat();
+        }
+      }
+    }
+    // Leave the last row and column empty
+    d[d.length - 1] = new float[d.length];
+    for (final float[] row : d) {
+      row[d.length - 1] = 0;
+    }
+    final CooMatrix m = new DefaultMatrix(d).toCoo();
+    for (final float mix : new float[] {0, 0.3F, 1}) {
+      final Matrix prod = m.hadamardMultiplyTranspose();
+      final Matrix expected = m.addTranspose().subtract(prod).multiply(mix).add(prod.multiply(1 - mix)).eliminateZeros();
+      for (int threads = 1; threads <= 3; threads += 2) {
+        final CooMatrix actual = m.fuzzyUnion(mix, threads).toCoo();
+        assertEquals(expected, actual);
+        assertEquals(actual, actual.transpose());
+        final float[] data = actual.data();
+        for (final float v : data) {
+          assertTrue(v != 0);
+        }
+      }
+    }
+  }
 }
@@ -35,4 +35,12 @@ public class CsrMatrixTest extends AbstractMatrixTest {
   @Override
   public void testTranspose() {
   }
+
+  public void testToCooWithEmptyRows() {
+    final float[][] d = {{0, 0, 0}, {1, 0, 2}, {0, 0, 0}, {0, 3, 0}, {0, 0, 0}};
+    final CooMatrix m = new DefaultMatrix(d).toCsr().toCoo();
+    assertEquals(new DefaultMatrix(d), m);
+    assertEquals(3, m.data().length);
+    assertEquals(new DefaultMatrix(d), m.toCsr());
+  }
 }
@@ -0,0 +1,86 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class EdgeScheduleTest extends TestCase {
+
+  private static int[] scan(final float[] epochOfNextSample, final float[] epochsPerSample, final int lo, final int hi, final int n) {
+    final int[] due = new int[hi - lo];
+    int count = 0;
+    for (int i = lo; i < hi; ++i) {
+      if (epochOfNextSample[i] <= n) {
+        due[count++] = i;
+        epochOfNextSample[i] += epochsPerSample[i];
+      }
+    }
+    return Arrays.copyOf(due, count);
+  }
+
+  private static int[] schedule(final EdgeSchedule schedule, final float[] epochOfNextSample, final float[] epochsPerSample, final int n) {
+    final int[] due = new int[schedule.due(n)];
+    for (int k = 0; k < due.length; ++k) {
+      due[k] = schedule.edge(k);
+      epochOfNextSample[due[k]] += epochsPerSample[due[k]];
+      schedule.reschedule(k, n);
+    }
+    return due;
+  }
+
+  private static float[] epochsPerSample(final int nEpochs) {
+    final Random random = new Random(5);
+    final float[] weights = new float[1000];
+    for (int k = 0; k < weights.length; ++k) {
+      weights[k] = random.nextFloat() * random.nextFloat();
+    }
+    return Umap.makeEpochsPerSample(weights, nEpochs);
+  }
+
+  public void testSameAsScan() {
+    final int nEpochs = 200;
+    final float[] epochsPerSample = epochsPerSample(nEpochs);
+    final float[] a = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
+    final float[] b = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
+    final EdgeSchedule schedule = new EdgeSchedule(b, 0, epochsPerSample.length, nEpochs);
+    int total = 0;
+    for (int n = 0; n < nEpochs; ++n) {
+      final int[] due = scan(a, epochsPerSample, 0, epochsPerSample.length, n);
+      assertTrue(Arrays.equals(due, schedule(schedule, b, epochsPerSample, n)));
+      total += due.length;
+    }
+    assertTrue(total < epochsPerSample.length * nEpochs / 2);
+  }
+
+  public void testRange() {
+    final int nEpochs = 50;
+    final float[] epochsPerSample = epochsPerSample(nEpochs);
+    final float[] a = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
+    final float[] b = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
+    final EdgeSchedule schedule = new EdgeSchedule(b, 100, 300, nEpochs);
+    for (int n = 0; n < nEpochs; ++n) {
+      assertTrue(Arrays.equals(scan(a, epochsPerSample, 100, 300, n), schedule(schedule, b, epochsPerSample, n)));
+    }
+  }
+
+  public void testEdges() {
+    final float[] epochsPerSample = {1, 3.5F, 2, 7, 1.25F};
+    final float[] b = Arrays.copyOf(epochsPerSample, epochsPerSample.length);
+    final EdgeSchedule schedule = new EdgeSchedule(b, new int[] {1, 3, 4}, 10);
+    final StringBuilder sb = new StringBuilder();
+    for (int n = 0; n < 10; ++n) {
+      sb.append(Arrays.toString(schedule(schedule, b, epochsPerSample, n)));
+    }
+    assertEquals("[][][4][4][1, 4][4][][1, 3, 4][4][4]", sb.toString());
+  }
+}
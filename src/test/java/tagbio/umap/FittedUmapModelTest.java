@@ -0,0 +1,147 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class FittedUmapModelTest extends TestCase {
+
+  public void testUnfitted() {
+    try {
+      new Umap().getModel();
+      fail();
+    } catch (final IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testSeededTransform() throws IOException {
+    final float[][] d = new IrisData().getData();
+    final Umap umap = new Umap();
+    umap.setSeed(42);
+    umap.fitTransform(d);
+    final FittedUmapModel model = umap.getModel();
+    final float[][] query = Arrays.copyOfRange(d, 10, 40);
+    final float[][] a = model.transform(query, 5);
+    assertEquals(30, a.length);
+    assertTrue(Arrays.deepEquals(a, model.transform(query, 5)));
+    // Refitting with different parameters does not change an existing model
+    umap.setNumberComponents(3);
+    umap.fitTransform(d);
+    assertTrue(Arrays.deepEquals(a, model.transform(query, 5)));
+    assertEquals(3, umap.getModel().transform(query[0]).length);
+  }
+
+  public void testConcurrentTransform() throws Exception {
+    final float[][] d = new IrisData().getData();
+    final Umap umap = new Umap();
+    umap.setSeed(42);
+    umap.fitTransform(d);
+    final FittedUmapModel model = umap.getModel();
+    // Alternate between the lightweight and general transforms
+    final int jobs = 8;
+    final float[][][] queries = new float[jobs][][];
+    final float[][][] expected = new float[jobs][][];
+    for (int k = 0; k < jobs; ++k) {
+      queries[k] = Arrays.copyOfRange(d, 7 * k, 7 * k + (k % 2 == 0 ? 3 : 40));
+      expected[k] = model.transform(queries[k], k);
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<float[][]>> futures = new ArrayList<>();
+      for (int k = 0; k < jobs; ++k) {
+        final int job = k;
+        futures.add(executor.submit(() -> model.transform(queries[job], job)));
+      }
+      for (int k = 0; k < jobs; ++k) {
+        assertTrue(Arrays.deepEquals(expected[k], futures.get(k).get()));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void checkSaveLoad(final FittedUmapModel model, final float[][] query) throws IOException {
+    final File file = File.createTempFile("umap", ".model");
+    try {
+      model.save(file);
+      final FittedUmapModel loaded = FittedUmapModel.load(file);
+      assertTrue(Arrays.deepEquals(model.transform(query, 3), loaded.transform(query, 3)));
+      final float[][] few = Arrays.copyOf(query, 2);
+      assertTrue(Arrays.deepEquals(model.transform(few, 4), loaded.transform(few, 4)));
+      // Default seed sequence continues from the saved point
+      assertTrue(Arrays.deepEquals(model.transform(few), loaded.transform(few)));
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testSaveLoadSmall() throws IOException {
+    final float[][] d = new IrisData().getData();
+    final Umap umap = new Umap();
+    umap.setSeed(42);
+    umap.fitTransform(d);
+    checkSaveLoad(umap.getModel(), Arrays.copyOfRange(d, 20, 60));
+  }
+
+  public void testSaveLoadLarge() throws IOException {
+    // Enough rows to use a random projection forest and search graph
+    final Random random = new Random(3);
+    final float[][] data = new float[4500][6];
+    for (int k = 0; k < data.length; ++k) {
+      for (int j = 0; j < data[k].length; ++j) {
+        data[k][j] = (float) (4 * (k % 3) + random.nextGaussian());
+      }
+    }
+    final Umap umap = new Umap();
+    umap.setSeed(42);
+    umap.setNumberEpochs(20);
+    umap.fitTransform(data);
+    checkSaveLoad(umap.getModel(), Arrays.copyOf(data, 30));
+  }
+
+  public void testSaveLoadPrepared() throws IOException {
+    // Prepared norms are stored in the file rather than recomputed on load
+    final float[][] d = new IrisData().getData();
+    for (final String metric : new String[] {"cosine", "correlation"}) {
+      final Umap umap = new Umap();
+      umap.setSeed(42);
+      umap.setMetric(metric);
+      umap.fitTransform(d);
+      checkSaveLoad(umap.getModel(), Arrays.copyOfRange(d, 70, 110));
+    }
+  }
+
+  public void testLoadInvalid() throws IOException {
+    final File file = File.createTempFile("umap", ".model");
+    try {
+      Files.write(file.toPath(), new byte[] {'N', 'O', 'P', 'E', 1, 0, 0, 0});
+      try {
+        FittedUmapModel.load(file);
+        fail();
+      } catch (final IOException e) {
+        assertTrue(e.getMessage().startsWith("Not a UMAP model file"));
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+}
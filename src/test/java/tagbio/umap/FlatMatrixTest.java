@@ -0,0 +1,36 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class FlatMatrixTest extends AbstractMatrixTest {
+
+  Matrix getMatrixA() {
+    return new FlatMatrix(new float[][] {{0, 1}, {0.5F, 2}, {1, 0}, {0, 3}});
+  }
+
+  public void testSet() {
+    final FlatMatrix m = new FlatMatrix(2, 3);
+    m.set(1, 2, 42);
+    assertEquals(42.0, m.get(1, 2), 1e-10);
+    assertEquals(42.0, m.data()[5], 1e-10);
+    assertTrue(Arrays.equals(new float[] {0, 0, 42}, m.row(1)));
+  }
+
+  public void testBadLength() {
+    try {
+      new FlatMatrix(new float[5], 2, 3);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
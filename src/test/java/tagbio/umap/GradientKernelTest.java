@@ -0,0 +1,84 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class GradientKernelTest extends TestCase {
+
+  public void testFastPow() {
+    final Random random = new Random(1);
+    for (int k = 0; k < 100000; ++k) {
+      final float x = (float) Math.exp(20 * random.nextDouble() - 10);
+      final float y = 4 * random.nextFloat() - 2;
+      final double exact = Math.pow(x, y);
+      assertEquals(exact, GradientKernel.FastKernel.pow(x, y), 2e-6 * exact);
+    }
+    assertEquals(1.0F, GradientKernel.FastKernel.pow(1, 0.7F));
+    assertEquals(0.0F, GradientKernel.FastKernel.exp2(-200));
+    assertEquals(Float.POSITIVE_INFINITY, GradientKernel.FastKernel.exp2(200));
+  }
+
+  public void testFastCoefficients() {
+    // Range of b used by the automatic kernel
+    for (final float b : new float[] {0.82F, 0.895F, 1.003F, 1.5F, 2}) {
+      final GradientKernel exact = GradientKernel.getKernel(GradientKernel.EXACT, 1.577F, b, 1);
+      final GradientKernel fast = GradientKernel.getKernel(GradientKernel.FAST, 1.577F, b, 1);
+      assertTrue(fast instanceof GradientKernel.FastKernel);
+      assertEquals(0.0F, fast.attractive(0));
+      for (float d = 1e-4F; d < 1e4F; d *= 1.1F) {
+        final float a = exact.attractive(d);
+        assertEquals(a, fast.attractive(d), 1e-5 * Math.abs(a));
+        final float r = exact.repulsive(d);
+        assertEquals(r, fast.repulsive(d), 1e-5 * r);
+      }
+    }
+  }
+
+  public void testAutoKernel() {
+    assertTrue(GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 0.79F, 1) instanceof GradientKernel.FastKernel);
+    assertTrue(GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 2, 1) instanceof GradientKernel.FastKernel);
+    assertTrue(GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 2.06F, 1) instanceof GradientKernel.ExactKernel);
+    assertTrue(GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 1.0000005F, 1) instanceof GradientKernel.UnitKernel);
+    assertTrue(GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 1.00301F, 1) instanceof GradientKernel.FastKernel);
+    // Within the tolerance, treating b as 1 is as accurate as the fast kernel
+    final GradientKernel exact = GradientKernel.getKernel(GradientKernel.EXACT, 1.929F, 0.9999995F, 1);
+    final GradientKernel unit = GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 0.9999995F, 1);
+    assertTrue(unit instanceof GradientKernel.UnitKernel);
+    for (float d = 1e-4F; d < 1e4F; d *= 1.1F) {
+      final float a = exact.attractive(d);
+      assertEquals(a, unit.attractive(d), 1e-5 * Math.abs(a));
+      final float r = exact.repulsive(d);
+      assertEquals(r, unit.repulsive(d), 1e-5 * r);
+    }
+  }
+
+  public void testUnitKernel() {
+    final GradientKernel exact = GradientKernel.getKernel(GradientKernel.EXACT, 1.929F, 1, 1);
+    final GradientKernel unit = GradientKernel.getKernel(GradientKernel.AUTO, 1.929F, 1, 1);
+    assertTrue(unit instanceof GradientKernel.UnitKernel);
+    for (float d = 1e-4F; d < 1e4F; d *= 1.1F) {
+      assertEquals(exact.attractive(d), unit.attractive(d));
+      assertEquals(exact.repulsive(d), unit.repulsive(d));
+    }
+  }
+
+  public void testBadKernel() {
+    assertFalse(GradientKernel.isKernel("slow"));
+    try {
+      GradientKernel.getKernel("slow", 1, 1, 1);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
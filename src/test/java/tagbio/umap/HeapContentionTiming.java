@@ -0,0 +1,127 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import tagbio.umap.metric.EuclideanMetric;
+
+/**
+ * Contention benchmark for neighbor heap updates.  Pushes are concentrated on
+ * a few hub rows, as happens in nearest neighbor descent on data with hubs.
+ * Compares pushing directly under a per-row monitor (as <code>Heap.push</code>
+ * used to do) against buffering with <code>HeapUpdates</code> and applying the
+ * buffers with each thread owning a block of rows.  Then times a complete
+ * parallel nearest neighbor descent.  Run with the thread counts of interest
+ * as arguments, for example 8 16 32.
+ * @author Sean A. Irvine
+ */
+public final class HeapContentionTiming {
+
+  private HeapContentionTiming() { }
+
+  private static final int ROWS = 100000;
+  private static final int HUBS = 64;
+  private static final int K = 15;
+  private static final int PUSHES_PER_JOB = 1000000;
+
+  // Pick a row, half the time one of a few hubs
+  private static int row(final Random random) {
+    return random.nextBoolean() ? random.nextInt(HUBS) : random.nextInt(ROWS);
+  }
+
+  private static long monitors(final ExecutorService executor, final int threads) throws Exception {
+    final Heap heap = new Heap(ROWS, K);
+    final Object[] locks = new Object[ROWS];
+    for (int r = 0; r < ROWS; ++r) {
+      locks[r] = new Object();
+    }
+    final List<Callable<Integer>> jobs = new ArrayList<>();
+    final Random[] randoms = Utils.splitRandom(new Random(42), threads);
+    for (int t = 0; t < threads; ++t) {
+      final Random random = randoms[t];
+      jobs.add(() -> {
+        int c = 0;
+        for (int k = 0; k < PUSHES_PER_JOB; ++k) {
+          final int p = row(random);
+          final int q = row(random);
+          final float d = random.nextFloat();
+          synchronized (locks[p]) {
+            c += heap.push(p, d, q, true) ? 1 : 0;
+          }
+          synchronized (locks[q]) {
+            c += heap.push(q, d, p, true) ? 1 : 0;
+          }
+        }
+        return c;
+      });
+    }
+    final long start = System.nanoTime();
+    for (final Future<Integer> f : executor.invokeAll(jobs)) {
+      f.get();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long buffered(final ExecutorService executor, final int threads) throws Exception {
+    final Heap heap = new Heap(ROWS, K);
+    final HeapUpdates[] updates = HeapUpdates.create(threads);
+    final List<Callable<Integer>> jobs = new ArrayList<>();
+    final Random[] randoms = Utils.splitRandom(new Random(42), threads);
+    for (int t = 0; t < threads; ++t) {
+      final Random random = randoms[t];
+      final HeapUpdates u = updates[t];
+      jobs.add(() -> {
+        for (int k = 0; k < PUSHES_PER_JOB; ++k) {
+          u.add(row(random), row(random), random.nextFloat());
+        }
+        return 0;
+      });
+    }
+    final long start = System.nanoTime();
+    for (final Future<Integer> f : executor.invokeAll(jobs)) {
+      f.get();
+    }
+    HeapUpdates.apply(executor, threads, heap, updates, threads);
+    return System.nanoTime() - start;
+  }
+
+  private static long descent(final Matrix data, final int threads) {
+    final long start = System.nanoTime();
+    new ParallelNearestNeighborDescent(EuclideanMetric.SINGLETON, threads).descent(data, K, new Random(42), 60, false, 5, null);
+    return System.nanoTime() - start;
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final Random random = new Random(1);
+    final float[][] d = new float[20000][32];
+    for (int k = 0; k < d.length; ++k) {
+      for (int j = 0; j < d[k].length; ++j) {
+        d[k][j] = (float) ((k % 10) + random.nextGaussian());
+      }
+    }
+    final Matrix data = new DefaultMatrix(d);
+    System.out.println("threads\tmonitors(ms)\tbuffered(ms)\tdescent(ms)");
+    for (final String arg : args.length == 0 ? new String[] {"8", "16", "32"} : args) {
+      final int threads = Integer.parseInt(arg);
+      final ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        // Warm up
+        monitors(executor, threads);
+        buffered(executor, threads);
+        System.out.println(threads + "\t" + monitors(executor, threads) / 1000000 + "\t" + buffered(executor, threads) / 1000000 + "\t" + descent(data, threads) / 1000000);
+      } finally {
+        executor.shutdown();
+      }
+    }
+  }
+}
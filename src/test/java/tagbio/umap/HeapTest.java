@@ -0,0 +1,105 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class HeapTest extends TestCase {
+
+  public void testPushAndFlags() {
+    final Heap heap = new Heap(2, 3);
+    assertEquals(2, heap.rows());
+    assertEquals(3, heap.size());
+    assertEquals(-1, heap.index(0, 0));
+    assertFalse(heap.isNew(0, 0));
+    assertTrue(heap.push(0, 0.5F, 7, true));
+    assertTrue(heap.push(0, 0.2F, 0, false));
+    assertFalse(heap.push(0, 0.1F, 7, false));
+    assertFalse(heap.push(0, 0.1F, 0, true));
+    assertTrue(heap.push(0, 0.3F, 4, true));
+    assertFalse(heap.push(0, 0.6F, 5, true));
+    assertEquals(7, heap.index(0, 0));
+    assertTrue(heap.isNew(0, 0));
+    assertEquals(0.5F, heap.weight(0, 0));
+    assertEquals(-1, heap.index(1, 0));
+    assertEquals(4, heap.smallestFlagged(0));
+    assertEquals(7, heap.smallestFlagged(0));
+    assertEquals(-1, heap.smallestFlagged(0));
+    final IndexedDistances sorted = heap.deheapSort();
+    assertTrue(Arrays.equals(new int[] {0, 4, 7}, sorted.getIndices()[0]));
+    assertTrue(Arrays.equals(new float[] {0.2F, 0.3F, 0.5F}, sorted.getDistances()[0]));
+    assertTrue(Arrays.equals(new int[] {-1, -1, -1}, sorted.getIndices()[1]));
+  }
+
+  public void testDeheapSortNearest() {
+    final Heap heap = new Heap(1, 4);
+    for (int k = 0; k < 10; ++k) {
+      heap.push(0, (k * 7) % 10, k, k % 2 == 0);
+    }
+    final IndexedDistances sorted = heap.deheapSort(2);
+    assertTrue(Arrays.equals(new int[] {0, 3}, sorted.getIndices()[0]));
+    assertTrue(Arrays.equals(new float[] {0, 1}, sorted.getDistances()[0]));
+  }
+
+  public void testBuildCandidatesInBlocks() {
+    final Random random = new Random(7);
+    final Heap graph = new Heap(20, 4);
+    for (int i = 0; i < 20; ++i) {
+      for (int j = 0; j < 4; ++j) {
+        graph.push(i, random.nextFloat(), random.nextInt(20), random.nextBoolean());
+      }
+    }
+    final Heap newCandidates = new Heap(20, 3);
+    final Heap oldCandidates = new Heap(20, 3);
+    // Stale contents should be cleared
+    newCandidates.push(0, 0.5F, 19, true);
+    graph.buildCandidates(newCandidates, oldCandidates, 4, 0, 7, new Random(1));
+    graph.buildCandidates(newCandidates, oldCandidates, 4, 7, 20, new Random(2));
+    final boolean[][] wasNew = new boolean[20][4];
+    for (int i = 0; i < 20; ++i) {
+      for (int j = 0; j < 4; ++j) {
+        wasNew[i][j] = graph.isNew(i, j);
+      }
+    }
+    graph.flagCandidates(newCandidates, 0, 20);
+    for (int i = 0; i < 20; ++i) {
+      for (int k = 0; k < 3; ++k) {
+        checkCandidate(graph, wasNew, i, newCandidates.index(i, k), true);
+        checkCandidate(graph, wasNew, i, oldCandidates.index(i, k), false);
+      }
+      for (int j = 0; j < 4; ++j) {
+        if (wasNew[i][j]) {
+          final int idx = graph.index(i, j);
+          boolean selected = false;
+          for (int k = 0; k < 3; ++k) {
+            selected |= newCandidates.index(i, k) == idx;
+          }
+          assertEquals(!selected, graph.isNew(i, j));
+        }
+      }
+    }
+  }
+
+  // A candidate of row i must be a neighbor of i, or have i as a neighbor, with the right flag
+  private static void checkCandidate(final Heap graph, final boolean[][] wasNew, final int i, final int candidate, final boolean flag) {
+    if (candidate < 0) {
+      return;
+    }
+    boolean ok = false;
+    for (int j = 0; j < graph.size(); ++j) {
+      ok |= graph.index(i, j) == candidate && wasNew[i][j] == flag;
+      ok |= graph.index(candidate, j) == i && wasNew[candidate][j] == flag;
+    }
+    assertTrue(ok);
+  }
+}
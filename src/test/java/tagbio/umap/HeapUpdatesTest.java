@@ -0,0 +1,73 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+import tagbio.umap.metric.EuclideanMetric;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class HeapUpdatesTest extends TestCase {
+
+  public void testApplySameAsPush() throws Exception {
+    final Random random = new Random(3);
+    final Heap expected = new Heap(50, 5);
+    final HeapUpdates[] updates = HeapUpdates.create(4);
+    for (int k = 0; k < 2000; ++k) {
+      final int p = random.nextInt(50);
+      final int q = random.nextInt(50);
+      final float d = random.nextFloat();
+      expected.push(p, d, q, true);
+      expected.push(q, d, p, true);
+      updates[k * updates.length / 2000].add(p, q, d);
+    }
+    assertEquals(500, updates[0].size());
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      final Heap heap = new Heap(50, 5);
+      HeapUpdates.apply(executor, 3, heap, updates, updates.length);
+      final IndexedDistances e = expected.deheapSort();
+      final IndexedDistances a = heap.deheapSort();
+      assertTrue(Arrays.deepEquals(e.getIndices(), a.getIndices()));
+      assertTrue(Arrays.deepEquals(e.getDistances(), a.getDistances()));
+      assertEquals(0, updates[0].size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testParallelDescent() {
+    final Random random = new Random(5);
+    final float[][] d = new float[2000][4];
+    for (final float[] row : d) {
+      for (int j = 0; j < row.length; ++j) {
+        row[j] = (float) random.nextGaussian();
+      }
+    }
+    final Matrix data = new DefaultMatrix(d);
+    final int[][] exact = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(data, EuclideanMetric.SINGLETON), 10);
+    final IndexedDistances nn = new ParallelNearestNeighborDescent(EuclideanMetric.SINGLETON, 3).descent(data, 10, new Random(42), 60, false, 10, null);
+    int found = 0;
+    for (int i = 0; i < d.length; ++i) {
+      for (final int u : exact[i]) {
+        for (final int v : nn.getIndices()[i]) {
+          if (u == v) {
+            ++found;
+          }
+        }
+      }
+    }
+    final double recall = found / (10.0 * d.length);
+    assertTrue(String.valueOf(recall), recall > 0.95);
+  }
+}
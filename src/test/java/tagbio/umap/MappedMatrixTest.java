@@ -0,0 +1,105 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class MappedMatrixTest extends AbstractMatrixTest {
+
+  Matrix getMatrixA() {
+    // Two chunks of two rows
+    return new MappedMatrix(new FloatBuffer[] {
+      FloatBuffer.wrap(new float[] {0, 1, 0.5F, 2}),
+      FloatBuffer.wrap(new float[] {1, 0, 0, 3}),
+    }, 2, 4, 2);
+  }
+
+  public void testRowScratch() {
+    final float[] scratch = new float[2];
+    assertSame(scratch, getMatrixA().row(3, scratch));
+    assertTrue(Arrays.equals(new float[] {0, 3}, scratch));
+    assertEquals(3.0, getMatrixA().get(3, 1), 1e-10);
+    assertEquals(getMatrixA(), getMatrixA().copy());
+  }
+
+  public void testReadOnly() {
+    try {
+      getMatrixA().set(0, 0, 1);
+      fail();
+    } catch (final UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  public void testBadLength() {
+    try {
+      new MappedMatrix(new FloatBuffer[] {FloatBuffer.wrap(new float[5])}, 2, 2, 3);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static File write(final float[][] data) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(data.length * data[0].length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (final float[] row : data) {
+      for (final float v : row) {
+        buffer.putFloat(v);
+      }
+    }
+    final File file = File.createTempFile("umap", ".dat");
+    Files.write(file.toPath(), buffer.array());
+    return file;
+  }
+
+  public void testMapFile() throws IOException {
+    final File file = write(new float[][] {{0, 1}, {0.5F, 2}, {1, 0}, {0, 3}});
+    try {
+      assertEquals(getMatrixA(), MappedMatrix.map(file, 2));
+      try {
+        MappedMatrix.map(file, 3);
+        fail();
+      } catch (final IOException e) {
+        // expected
+      }
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  public void testFitTransformFile() throws IOException {
+    // Enough rows to use nearest neighbor descent rather than pairwise distances
+    final Random random = new Random(5);
+    final float[][] data = new float[4500][6];
+    for (int k = 0; k < data.length; ++k) {
+      for (int j = 0; j < data[k].length; ++j) {
+        data[k][j] = (float) (4 * (k % 3) + random.nextGaussian());
+      }
+    }
+    final File file = write(data);
+    try {
+      final Umap umap = new Umap();
+      umap.setSeed(42);
+      umap.setNumberEpochs(20);
+      final float[][] expected = umap.fitTransform(data);
+      umap.setSeed(42);
+      assertTrue(Arrays.deepEquals(expected, umap.fitTransform(file, 6)));
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+}
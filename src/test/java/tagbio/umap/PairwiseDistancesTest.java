@@ -0,0 +1,58 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import tagbio.umap.metric.EuclideanMetric;
+import tagbio.umap.metric.Metric;
+import tagbio.umap.metric.PrecomputedMetric;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class PairwiseDistancesTest extends TestCase {
+
+  private static Matrix random(final Random random, final int rows, final int cols) {
+    return new DefaultMatrix(MathUtils.uniform(random, -1, 1, rows, cols));
+  }
+
+  private static void check(final Matrix x, final Matrix y, final Metric metric, final Matrix distances) {
+    assertEquals(x.rows(), distances.rows());
+    assertEquals(y.rows(), distances.cols());
+    for (int k = 0; k < x.rows(); ++k) {
+      for (int j = 0; j < y.rows(); ++j) {
+        assertEquals(metric.distance(x.row(k), y.row(j)), distances.get(k, j));
+      }
+    }
+  }
+
+  public void testSquare() {
+    final Matrix x = random(new Random(1), 150, 7);
+    for (final int threads : new int[] {1, 3}) {
+      check(x, x, EuclideanMetric.SINGLETON, PairwiseDistances.pairwiseDistances(x, EuclideanMetric.SINGLETON, threads));
+      check(x, x, Metric.getMetric("cosine"), PairwiseDistances.pairwiseDistances(x, Metric.getMetric("cosine"), threads));
+    }
+    assertSame(x, PairwiseDistances.pairwiseDistances(x, PrecomputedMetric.SINGLETON, 2));
+  }
+
+  public void testRectangular() {
+    final Random random = new Random(2);
+    final Matrix x = random(random, 70, 5);
+    final Matrix y = random(random, 131, 5);
+    for (final int threads : new int[] {1, 4}) {
+      check(x, y, EuclideanMetric.SINGLETON, PairwiseDistances.pairwiseDistances(x, y, EuclideanMetric.SINGLETON, threads));
+      check(y, x, EuclideanMetric.SINGLETON, PairwiseDistances.pairwiseDistances(y, x, EuclideanMetric.SINGLETON, threads));
+    }
+  }
+
+  public void testSparse() {
+    final Matrix x = random(new Random(3), 80, 6).toCsr();
+    check(x, x, EuclideanMetric.SINGLETON, PairwiseDistances.pairwiseDistances(x, EuclideanMetric.SINGLETON, 2));
+  }
+}
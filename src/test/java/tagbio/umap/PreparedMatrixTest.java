@@ -0,0 +1,108 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import tagbio.umap.metric.CorrelationMetric;
+import tagbio.umap.metric.CosineMetric;
+import tagbio.umap.metric.EuclideanMetric;
+import tagbio.umap.metric.Metric;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class PreparedMatrixTest extends TestCase {
+
+  private static float[][] data() {
+    final Random random = new Random(4);
+    final float[][] d = new float[12][37];
+    for (final float[] row : d) {
+      for (int k = 0; k < row.length; ++k) {
+        row[k] = (float) random.nextGaussian();
+      }
+    }
+    d[3] = new float[37]; // zero row
+    d[7] = new float[37];
+    d[7][5] = 2; // a row and its multiple
+    d[8] = new float[37];
+    d[8][5] = 3;
+    return d;
+  }
+
+  public void testSameAsUnprepared() {
+    final float[][] d = data();
+    final Matrix m = new DefaultMatrix(d);
+    for (final Metric metric : new Metric[] {CosineMetric.SINGLETON, CorrelationMetric.SINGLETON}) {
+      final Matrix p = PreparedMatrix.prepare(m, metric);
+      assertTrue(p instanceof PreparedMatrix);
+      // Identical with the scalar kernels, but SIMD kernels can sum in a different order
+      for (int i = 0; i < d.length; ++i) {
+        for (int j = 0; j < d.length; ++j) {
+          assertEquals(metric.distance(d[i], d[j]), p.distance(metric, i, j), 1e-6);
+          assertTrue(p.distance(metric, i, j) >= 0);
+        }
+        assertEquals(0, p.distance(metric, i, i), 0);
+        assertEquals(metric.distance(d[i], d[0]), p.distance(metric, i, d[0]), 1e-6);
+        assertEquals(p.distance(metric, i, d[0]), p.distance(metric, i, d[0], p.prepareQuery(metric, d[0])), 0);
+      }
+      // Other metrics are passed through
+      assertNull(p.prepareQuery(EuclideanMetric.SINGLETON, d[2]));
+      assertEquals(EuclideanMetric.SINGLETON.distance(d[1], d[2]), p.distance(EuclideanMetric.SINGLETON, 1, 2), 0);
+      assertEquals(m, p);
+    }
+  }
+
+  public void testFlatStorage() {
+    // Prepared distances over flat storage work in place and agree with other storage
+    final float[][] d = data();
+    for (final Metric metric : new Metric[] {CosineMetric.SINGLETON, CorrelationMetric.SINGLETON}) {
+      final Matrix p = PreparedMatrix.prepare(new DefaultMatrix(d), metric);
+      final Matrix q = PreparedMatrix.prepare(new FlatMatrix(d), metric);
+      for (int i = 0; i < d.length; ++i) {
+        for (int j = 0; j < d.length; ++j) {
+          assertEquals(p.distance(metric, i, j), q.distance(metric, i, j), 0);
+        }
+        assertEquals(p.distance(metric, i, d[2]), q.distance(metric, i, d[2]), 0);
+      }
+    }
+  }
+
+  public void testNotPrepared() {
+    final Matrix m = new DefaultMatrix(data());
+    assertSame(m, PreparedMatrix.prepare(m, EuclideanMetric.SINGLETON));
+    final Matrix c = m.toCsr();
+    assertSame(c, PreparedMatrix.prepare(c, CosineMetric.SINGLETON));
+    final Matrix p = PreparedMatrix.prepare(m, CosineMetric.SINGLETON);
+    assertSame(p, PreparedMatrix.prepare(p, CosineMetric.SINGLETON));
+  }
+
+  public void testPreparedValues() {
+    final Matrix m = new DefaultMatrix(data());
+    final PreparedMatrix p = (PreparedMatrix) PreparedMatrix.prepare(m, CosineMetric.SINGLETON);
+    final PreparedMatrix q = new PreparedMatrix(m, CosineMetric.SINGLETON, p.prepared().clone());
+    assertEquals(m.rows(), p.prepared().length);
+    for (int i = 0; i < m.rows(); ++i) {
+      for (int j = 0; j < m.rows(); ++j) {
+        assertEquals(p.distance(CosineMetric.SINGLETON, i, j), q.distance(CosineMetric.SINGLETON, i, j));
+      }
+    }
+    // A copy keeps the prepared values
+    final Matrix c = p.copy();
+    assertTrue(c instanceof PreparedMatrix);
+    assertTrue(Arrays.equals(p.prepared(), ((PreparedMatrix) c).prepared()));
+    assertEquals(m, c);
+    try {
+      new PreparedMatrix(m, CosineMetric.SINGLETON, new double[1]);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class SearchGraphTest extends TestCase {
+
+  public void testSmall() {
+    final int[][] indices = {{0, 1, 2}, {1, 0, -1}, {2, 3, 0}, {3, 2, 1}};
+    final float[][] dists = {{0, 1, 2}, {0, 1, Float.POSITIVE_INFINITY}, {0, 1, 2}, {0, 1, 0}};
+    final SearchGraph graph = new SearchGraph(indices, dists, 1);
+    assertEquals("[1, 2]", neighbors(graph, 0).toString());
+    assertEquals("[0]", neighbors(graph, 1).toString());
+    assertEquals("[0, 3]", neighbors(graph, 2).toString());
+    assertEquals("[2]", neighbors(graph, 3).toString());
+  }
+
+  public void testRandom() {
+    final Random random = new Random(5);
+    final int n = 500;
+    final int[][] indices = new int[n][8];
+    final float[][] dists = new float[n][8];
+    final List<TreeSet<Integer>> expected = new ArrayList<>();
+    for (int k = 0; k < n; ++k) {
+      expected.add(new TreeSet<>());
+    }
+    for (int k = 0; k < n; ++k) {
+      for (int j = 0; j < indices[k].length; ++j) {
+        indices[k][j] = random.nextInt(n);
+        dists[k][j] = random.nextInt(5);
+        if (dists[k][j] != 0) {
+          expected.get(k).add(indices[k][j]);
+          expected.get(indices[k][j]).add(k);
+        }
+      }
+    }
+    for (int threads = 1; threads <= 3; threads += 2) {
+      final SearchGraph graph = new SearchGraph(indices, dists, threads);
+      for (int k = 0; k < n; ++k) {
+        assertEquals(new ArrayList<>(expected.get(k)), neighbors(graph, k));
+      }
+    }
+  }
+
+  private static List<Integer> neighbors(final SearchGraph graph, final int row) {
+    final List<Integer> res = new ArrayList<>();
+    for (int p = graph.start(row); p < graph.end(row); ++p) {
+      res.add(graph.neighbor(p));
+    }
+    return res;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import tagbio.umap.metric.CorrelationMetric;
+import tagbio.umap.metric.Metric;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class SparseTest extends TestCase {
+
+  public void testAgreesWithDense() {
+    final Random random = new Random(1);
+    final float[][] d = new float[20][12];
+    for (final float[] row : d) {
+      for (int j = 0; j < row.length; ++j) {
+        if (random.nextInt(3) == 0) {
+          row[j] = random.nextInt(5) - 2; // includes some explicit zeros
+        }
+      }
+    }
+    d[5] = new float[12]; // an empty row
+    final CsrMatrix m = new DefaultMatrix(d).toCsr();
+    for (final String name : new String[] {"euclidean", "manhattan", "cosine", "jaccard"}) {
+      final Metric metric = Metric.getMetric(name);
+      assertTrue(Sparse.isSupported(metric));
+      for (int i = 0; i < d.length; ++i) {
+        for (int j = 0; j < d.length; ++j) {
+          assertEquals(name, metric.distance(d[i], d[j]), m.distance(metric, i, j), 1e-6);
+          // Sparse row against a dense point
+          assertEquals(name, metric.distance(d[i], d[j]), m.distance(metric, i, d[j]), 1e-6);
+          assertEquals(name, metric.distance(d[i], d[j]), m.distance(metric, i, d[j], m.prepareQuery(metric, d[j])), 1e-6);
+        }
+      }
+    }
+  }
+
+  public void testUnsupported() {
+    assertFalse(Sparse.isSupported(CorrelationMetric.SINGLETON));
+    try {
+      Sparse.distance(CorrelationMetric.SINGLETON, new int[0], new float[0], 0, 0, new int[0], new float[0], 0, 0);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      Sparse.prepare(CorrelationMetric.SINGLETON, new float[1]);
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+    // Matrix falls back to dense rows
+    final float[][] d = {{1, 0, 2}, {0, 3, 1}};
+    final CsrMatrix m = new DefaultMatrix(d).toCsr();
+    assertEquals(CorrelationMetric.SINGLETON.distance(d[0], d[1]), m.distance(CorrelationMetric.SINGLETON, 0, 1), 0);
+    assertNull(m.prepareQuery(CorrelationMetric.SINGLETON, d[1]));
+    assertEquals(CorrelationMetric.SINGLETON.distance(d[0], d[1]), m.distance(CorrelationMetric.SINGLETON, 0, d[1], null), 0);
+  }
+}
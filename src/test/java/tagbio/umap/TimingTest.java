@@ -38,7 +38,6 @@ public final class TimingTest {
 
   public static void main(final String[] args) {
     final PrintProgress printProgress = new PrintProgress();
-    UmapProgress.addProgressListener(printProgress);
     try {
 //      for (Data data : new Data[]{new IrisData(), new DigitData(), new MammothData(), new GeneData()}) {
       for (Data data : new Data[]{new GeneData()}) {
@@ -49,6 +48,7 @@ public final class TimingTest {
               System.out.print(data.getName() + "\t" + minDist + "\t" + neighbours + "\t" + seed);
 
               final Umap umap = new Umap();
+              umap.addProgressListener(printProgress);
               umap.setSeed(seed);
               umap.setMinDist(minDist);
               umap.setNumberNearestNeighbours(neighbours);
@@ -80,8 +80,6 @@ public final class TimingTest {
       }
     } catch (IOException e) {
       e.printStackTrace();
-    } finally {
-      UmapProgress.removeProgressListener(printProgress);
     }
 
   }
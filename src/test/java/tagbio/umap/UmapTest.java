@@ -8,9 +8,14 @@ package tagbio.umap;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.TestCase;
+import tagbio.umap.metric.EuclideanMetric;
 import tagbio.umap.metric.PrecomputedMetric;
 
 /**
@@ -29,7 +34,7 @@ public class UmapTest extends TestCase {
     //System.out.println(matrix);
     assertEquals(150, matrix.length);
     assertEquals(2, matrix[0].length);
-    assertEquals(-324.09808, MathUtils.sum(matrix), 1e-4);
+    assertEquals(-52.79290, MathUtils.sum(matrix), 1e-4);
     final float[][] t = umap.transform(d);
     //System.out.println(matrix);
 //    System.out.println("1st embedding");
@@ -43,7 +48,7 @@ public class UmapTest extends TestCase {
 //    for (int r = 0; r < t.length; ++r) {
 //      System.out.println(t[r][0] + " " + t[r][1] + " " + classIndexes[r]);
 //    }
-    assertEquals(-104.1167755, MathUtils.sum(t), 1e-4); // is this correct or should it be identical to 1st embedding
+    assertEquals(-54.92316, MathUtils.sum(t), 1e-4); // is this correct or should it be identical to 1st embedding
   }
 
   public void testIrisViaDouble() throws IOException {
@@ -60,7 +65,292 @@ public class UmapTest extends TestCase {
     final double[][] matrix = umap.fitTransform(dd);
     assertEquals(150, matrix.length);
     assertEquals(2, matrix[0].length);
-    assertEquals(-324.09808, MathUtils.sum(matrix), 1e-4);
+    assertEquals(-52.79290, MathUtils.sum(matrix), 1e-4);
+  }
+
+  public void testIrisSequentialLayoutWithThreads() throws IOException {
+    final Data data = new IrisData();
+    final Umap umap = new Umap();
+    umap.setThreads(4);
+    umap.setParallelLayout(false);
+    final float[][] matrix = umap.fitTransform(data.getData());
+    assertEquals(150, matrix.length);
+    assertEquals(2, matrix[0].length);
+    assertEquals(-52.79290, MathUtils.sum(matrix), 1e-4);
+  }
+
+  public void testIrisParallelLayout() throws IOException {
+    final Data data = new IrisData();
+    final Umap umap = new Umap();
+    umap.setThreads(4);
+    final float[][] matrix = umap.fitTransform(data.getData());
+    assertEquals(150, matrix.length);
+    assertEquals(2, matrix[0].length);
+    assertTrue(new DefaultMatrix(matrix).isFinite());
+    final float[][] t = umap.transform(data.getData());
+    assertEquals(150, t.length);
+    assertTrue(new DefaultMatrix(t).isFinite());
+  }
+
+  public void testSequentialLayoutTransform() throws IOException {
+    final float[][] data = new IrisData().getData();
+    float[][] expected = null;
+    for (int threads = 1; threads <= 4; threads += 3) {
+      final Umap umap = new Umap();
+      umap.setParallelLayout(false);
+      umap.setThreads(threads);
+      umap.fitTransform(data);
+      final float[][] t = umap.transform(Arrays.copyOf(data, 100));
+      if (expected == null) {
+        expected = t;
+      } else {
+        assertTrue(Arrays.deepEquals(expected, t));
+      }
+    }
+  }
+
+  private static float[][] deterministic(final float[][] data, final int threads, final Integer epochs) {
+    final Umap umap = new Umap();
+    umap.setDeterministic(true);
+    umap.setThreads(threads);
+    umap.setNumberEpochs(epochs);
+    return umap.fitTransform(data);
+  }
+
+  public void testIrisDeterministic() throws IOException {
+    final float[][] data = new IrisData().getData();
+    final float[][] a = deterministic(data, 1, null);
+    assertEquals(150, a.length);
+    assertTrue(new DefaultMatrix(a).isFinite());
+    assertTrue(Arrays.deepEquals(a, deterministic(data, 4, null)));
+  }
+
+  public void testMicroBatchTransform() throws IOException {
+    final float[][] d = new IrisData().getData();
+    final Umap umap = new Umap();
+    umap.setSeed(42);
+    final float[][] embedding = umap.fitTransform(d);
+    // Iris setosa are the first 50 instances and are well separated from the others
+    final float[][] t = umap.transform(Arrays.copyOf(d, 5));
+    assertEquals(5, t.length);
+    final int[][] nearest = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(new DefaultMatrix(t), new DefaultMatrix(embedding), EuclideanMetric.SINGLETON), 1);
+    for (final int[] n : nearest) {
+      assertTrue(n[0] < 50);
+    }
+    final float[] single = umap.transform(d[149]);
+    final int[][] n = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(new DefaultMatrix(new float[][] {single}), new DefaultMatrix(embedding), EuclideanMetric.SINGLETON), 1);
+    assertTrue(n[0][0] >= 50);
+  }
+
+  // Instance k is in cluster k % 5
+  private static float[][] clusters(final int n, final Random random) {
+    final float[][] data = new float[n][8];
+    for (int k = 0; k < data.length; ++k) {
+      final int cluster = k % 5;
+      for (int j = 0; j < data[k].length; ++j) {
+        data[k][j] = (float) (cluster * (j % 2 == 0 ? 3 : -2) + random.nextGaussian());
+      }
+    }
+    return data;
+  }
+
+  public void testLargeDeterministic() {
+    // Enough rows to use nearest neighbor descent rather than pairwise distances
+    final float[][] data = clusters(5000, new Random(7));
+    final float[][] a = deterministic(data, 1, 20);
+    assertTrue(new DefaultMatrix(a).isFinite());
+    assertTrue(Arrays.deepEquals(a, deterministic(data, 3, 20)));
+  }
+
+  public void testLargeTransform() {
+    // Large enough that transform uses the search graph
+    final float[][] data = clusters(5000, new Random(11));
+    final Umap umap = new Umap();
+    umap.setSeed(42);
+    umap.setNumberEpochs(20);
+    final float[][] embedding = umap.fitTransform(data);
+    final float[][] query = clusters(50, new Random(12));
+    final float[][] t = umap.transform(query);
+    assertEquals(50, t.length);
+    assertTrue(new DefaultMatrix(t).isFinite());
+    final float[] single = umap.transform(query[3]);
+    assertEquals(2, single.length);
+    assertTrue(new DefaultMatrix(new float[][] {single}).isFinite());
+    // New points should mostly be placed among training points of the same cluster
+    final int[][] nearest = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(new DefaultMatrix(t), new DefaultMatrix(embedding), EuclideanMetric.SINGLETON), 1);
+    int same = 0;
+    for (int k = 0; k < t.length; ++k) {
+      if (nearest[k][0] % 5 == k % 5) {
+        ++same;
+      }
+    }
+    assertTrue(String.valueOf(same), same >= 45);
+  }
+
+  public void testLargeTransformThreads() {
+    final float[][] data = clusters(5000, new Random(13));
+    final float[][] query = clusters(300, new Random(14));
+    float[][] expected = null;
+    for (int threads = 1; threads <= 3; threads += 2) {
+      final Umap umap = new Umap();
+      umap.setDeterministic(true);
+      umap.setThreads(threads);
+      umap.setNumberEpochs(20);
+      umap.fitTransform(data);
+      final float[][] t = umap.transform(query);
+      if (expected == null) {
+        expected = t;
+      } else {
+        assertTrue(Arrays.deepEquals(expected, t));
+      }
+    }
+  }
+
+  public void testProgress() throws Exception {
+    final float[][] data = new IrisData().getData();
+    final List<ProgressState> states = new ArrayList<>();
+    final Umap umap = new Umap();
+    umap.addProgressListener(states::add);
+    final Umap other = new Umap();
+    other.addProgressListener(state -> fail());
+    assertEquals(0, umap.getProgress().getTotal());
+    final Thread thread = new Thread(() -> umap.fitTransform(data));
+    thread.start();
+    thread.join();
+    assertFalse(states.isEmpty());
+    final ProgressState last = states.get(states.size() - 1);
+    assertTrue(last.getTotal() > 0);
+    assertEquals(last.getTotal(), last.getCount());
+    assertEquals(last.getTotal(), umap.getProgress().getCount());
+    assertEquals(0, other.getProgress().getTotal());
+  }
+
+  public void testProgressFromWorkers() throws IOException {
+    final List<ProgressState> states = new ArrayList<>();
+    final UmapProgress progress = new UmapProgress(Collections.singletonList(states::add));
+    progress.start(6);
+    // Trees are built and reported on the worker threads
+    assertEquals(6, RandomProjectionTree.makeForest(new DefaultMatrix(new IrisData().getData()), 15, 6, new Random(1), false, 3, progress).size());
+    assertEquals(6, progress.getState().getCount());
+    assertEquals(6, progress.getState().getTotal());
+    assertFalse(states.isEmpty());
+  }
+
+  public void testSharedExecutor() {
+    final float[][] data = clusters(5000, new Random(13));
+    final float[][] query = clusters(300, new Random(14));
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final float[][][] results = new float[2][][];
+      for (int k = 0; k < results.length; ++k) {
+        final Umap umap = new Umap();
+        umap.setDeterministic(true);
+        umap.setThreads(3);
+        umap.setNumberEpochs(20);
+        umap.setExecutor(k == 0 ? null : executor);
+        umap.fitTransform(data);
+        results[k] = umap.transform(query);
+      }
+      assertFalse(executor.isShutdown());
+      assertTrue(Arrays.deepEquals(results[0], results[1]));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // Sparse rows in five clusters, each with most values in its own block of columns
+  private static CsrMatrix sparseClusters(final int n, final Random random) {
+    final int cols = 300;
+    final int[] indptr = new int[n + 1];
+    final int[] indices = new int[10 * n];
+    final float[] data = new float[10 * n];
+    int nnz = 0;
+    for (int k = 0; k < n; ++k) {
+      final float[] row = new float[cols];
+      for (int j = 0; j < 8; ++j) {
+        row[60 * (k % 5) + random.nextInt(60)] = 1 + random.nextFloat();
+      }
+      row[random.nextInt(cols)] = random.nextFloat();
+      for (int c = 0; c < cols; ++c) {
+        if (row[c] != 0) {
+          indices[nnz] = c;
+          data[nnz++] = row[c];
+        }
+      }
+      indptr[k + 1] = nnz;
+    }
+    return new CsrMatrix(data, indptr, indices, n, cols);
+  }
+
+  public void testLargeSparse() {
+    // Enough rows to use a sparse random projection forest and nearest neighbor descent
+    final CsrMatrix data = sparseClusters(4500, new Random(15));
+    final float[][] query = sparseClusters(50, new Random(16)).toArray();
+    for (final String metric : new String[] {"cosine", "euclidean"}) {
+      final Umap umap = new Umap();
+      umap.setSeed(42);
+      umap.setMetric(metric);
+      umap.setNumberEpochs(20);
+      final float[][] embedding = umap.fitTransform(data).toArray();
+      assertTrue(new DefaultMatrix(embedding).isFinite());
+      checkSparseTransform(metric, embedding, umap.transform(query));
+      // The same queries in compressed sparse row form
+      final int[] indptr = new int[query.length + 1];
+      final int[] indices = new int[query.length * query[0].length];
+      final float[] values = new float[indices.length];
+      int nnz = 0;
+      for (int k = 0; k < query.length; ++k) {
+        for (int c = 0; c < query[k].length; ++c) {
+          if (query[k][c] != 0) {
+            indices[nnz] = c;
+            values[nnz++] = query[k][c];
+          }
+        }
+        indptr[k + 1] = nnz;
+      }
+      checkSparseTransform(metric, embedding, umap.transform(indptr, Arrays.copyOf(indices, nnz), Arrays.copyOf(values, nnz), query[0].length));
+    }
+  }
+
+  // Most transformed queries should be nearest to a training instance of their own cluster
+  private static void checkSparseTransform(final String metric, final float[][] embedding, final float[][] t) {
+    final int[][] nearest = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(new DefaultMatrix(t), new DefaultMatrix(embedding), EuclideanMetric.SINGLETON), 1);
+    int same = 0;
+    for (int k = 0; k < t.length; ++k) {
+      if (nearest[k][0] % 5 == k % 5) {
+        ++same;
+      }
+    }
+    assertTrue(metric + " " + same, same >= 45);
+  }
+
+  // Fraction of the k nearest neighbors in the input retained in the embedding
+  private static double knnPreservation(final float[][] data, final float[][] embedding, final int k) {
+    final int[][] a = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(new DefaultMatrix(data), EuclideanMetric.SINGLETON), k + 1);
+    final int[][] b = Utils.fastKnnIndices(PairwiseDistances.pairwiseDistances(new DefaultMatrix(embedding), EuclideanMetric.SINGLETON), k + 1);
+    int preserved = 0;
+    for (int i = 0; i < data.length; ++i) {
+      for (final int u : a[i]) {
+        for (final int v : b[i]) {
+          if (u == v && u != i) {
+            ++preserved;
+          }
+        }
+      }
+    }
+    return preserved / (double) (data.length * k);
+  }
+
+  public void testFastGradientKernel() throws IOException {
+    final float[][] data = new DigitData().getData();
+    final Umap umap = new Umap();
+    umap.setGradientKernel("exact");
+    final double exact = knnPreservation(data, umap.fitTransform(data), 10);
+    umap.setGradientKernel("fast");
+    final float[][] embedding = umap.fitTransform(data);
+    assertTrue(new DefaultMatrix(embedding).isFinite());
+    final double fast = knnPreservation(data, embedding, 10);
+    assertEquals(exact, fast, 0.02);
   }
 
   public void testDigits() throws IOException {
@@ -74,7 +364,7 @@ public class UmapTest extends TestCase {
     System.out.println("UMAP time: " + Math.round((System.currentTimeMillis() - start) / 1000.0) + " s");
     assertEquals(1797, matrix.length);
     assertEquals(3, matrix[0].length);
-    assertEquals(1054.7100830078125, MathUtils.sum(matrix), 1e-4);
+    assertEquals(-758.7816162109375, MathUtils.sum(matrix), 1e-4);
 //    final int[] classIndexes = data.getSampleClassIndex();
 //    for (int r = 0; r < matrix.length; ++r) {
 //      System.out.println(matrix[r][0] + " " + matrix[r][1] + " " + matrix[r][2] + " " + classIndexes[r]);
@@ -168,7 +458,7 @@ public class UmapTest extends TestCase {
     //umap.setThreads(4);
     final float[][] matrix = umap.fitTransform(d);
     System.out.println("UMAP time: " + Math.round((System.currentTimeMillis() - start) / 1000.0) + " s");
-    assertEquals(-5775.2890625, MathUtils.sum(matrix), 1e-4);
+    assertEquals(2136.9931640625, MathUtils.sum(matrix), 1e-4);
 //    for (int r = 0; r < matrix.length; ++r) {
 //      System.out.println(matrix[r][0] + " " + matrix[r][1] + " " + omega[r]);
 //    }
@@ -259,6 +549,16 @@ public class UmapTest extends TestCase {
     }
   }
 
+  public void testBadGradientKernel() {
+    final Umap umap = new Umap();
+    try {
+      umap.setGradientKernel("no-such-kernel");
+      fail();
+    } catch (final IllegalArgumentException e) {
+      // expected
+    }
+  }
+
   public void testNegativeLearningRate() {
     final Umap umap = new Umap();
     try {
@@ -362,6 +662,31 @@ public class UmapTest extends TestCase {
     }, m.toArray());
   }
 
+  public void testSmoothKnnDistThreads() {
+    final Random random = new Random(42);
+    final int[][] indices = new int[1000][10];
+    final float[][] dists = new float[1000][10];
+    for (int i = 0; i < dists.length; ++i) {
+      for (int j = 0; j < dists[i].length; ++j) {
+        indices[i][j] = (i + 7 * j) % dists.length;
+        // Include some zero distances
+        dists[i][j] = j == 0 || random.nextInt(10) == 0 ? 0 : random.nextFloat();
+      }
+      Arrays.sort(dists[i]);
+    }
+    for (int localConnectivity = 0; localConnectivity < 3; ++localConnectivity) {
+      final float[][] expected = Umap.smoothKnnDist(dists, 10, localConnectivity);
+      final float[][] actual = Umap.smoothKnnDist(dists, 10, localConnectivity, 3);
+      assertTrue(Arrays.equals(expected[0], actual[0]));
+      assertTrue(Arrays.equals(expected[1], actual[1]));
+      final CooMatrix m1 = Umap.computeMembershipStrengths(indices, dists, expected[0], expected[1], dists.length, dists.length);
+      final CooMatrix m3 = Umap.computeMembershipStrengths(indices, dists, expected[0], expected[1], dists.length, dists.length, 3);
+      assertTrue(Arrays.equals(m1.row(), m3.row()));
+      assertTrue(Arrays.equals(m1.col(), m3.col()));
+      assertTrue(Arrays.equals(m1.data(), m3.data()));
+    }
+  }
+
   public void testFuzzySimplicialSet() throws IOException {
     final Matrix distances = new IrisData(true).getDistances();
     final Matrix m = Umap.fuzzySimplicialSet(distances, 2, null, PrecomputedMetric.SINGLETON, null, null, false, 1, 1, 1, false);
@@ -60,6 +60,37 @@ public class UtilsTest extends TestCase {
     assertEquals("[[0, 1], [0, 1], [1, 0], [0, 1], [1, 0]]", Arrays.deepToString(knn));
   }
 
+  public void testFastKnn() {
+    final float[][] data = MathUtils.uniform(new Random(4), 0, 1, 300, 300);
+    data[7][3] = data[7][11];
+    data[7][200] = data[7][11];
+    final Matrix m = new DefaultMatrix(data);
+    final IndexedDistances knn = Utils.fastKnn(m, 10, 1);
+    final IndexedDistances parallel = Utils.fastKnn(m, 10, 3);
+    for (int k = 0; k < data.length; ++k) {
+      final int[] expected = Arrays.copyOf(MathUtils.argsort(Arrays.copyOf(data[k], data[k].length)), 10);
+      final float[] row = data[k];
+      final int[] actual = knn.getIndices()[k];
+      for (int j = 0; j < 10; ++j) {
+        assertEquals(row[expected[j]], knn.getDistances()[k][j]);
+        assertEquals(row[actual[j]], knn.getDistances()[k][j]);
+      }
+      assertTrue(Arrays.equals(actual, parallel.getIndices()[k]));
+      assertTrue(Arrays.equals(knn.getDistances()[k], parallel.getDistances()[k]));
+    }
+  }
+
+  public void testSmallestTies() {
+    final int[] indices = new int[4];
+    final float[] dists = new float[4];
+    Utils.smallest(new float[] {3, 1, 2, 1, 0, 1}, indices, dists);
+    assertEquals("[4, 1, 3, 5]", Arrays.toString(indices));
+    assertEquals("[0.0, 1.0, 1.0, 1.0]", Arrays.toString(dists));
+    Utils.smallest(new float[] {2, 1}, indices, dists);
+    assertEquals("[1, 0, -1, -1]", Arrays.toString(indices));
+    assertEquals("[1.0, 2.0, Infinity, Infinity]", Arrays.toString(dists));
+  }
+
   public void testL2Norm() {
     final float[] vec = new float[2];
     assertEquals(0.0, Utils.norm(vec), 1e-6);
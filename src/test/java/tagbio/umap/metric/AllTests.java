@@ -0,0 +1,26 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap.metric;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Links all the tests in this package.
+ * @author Sean A. Irvine
+ */
+public class AllTests extends TestSuite {
+
+  public static Test suite() {
+    final TestSuite suite = new TestSuite();
+    suite.addTestSuite(DistanceKernelsTest.class);
+    return suite;
+  }
+
+  public static void main(final String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
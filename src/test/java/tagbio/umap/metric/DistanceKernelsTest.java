@@ -0,0 +1,87 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap.metric;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the corresponding class.
+ * @author Sean A. Irvine
+ */
+public class DistanceKernelsTest extends TestCase {
+
+  // Compares the selected kernels (SIMD when available) against the scalar kernels
+  public void testSelectedAgreesWithScalar() {
+    final DistanceKernels scalar = new DistanceKernels();
+    final DistanceKernels selected = DistanceKernels.SINGLETON;
+    final Random random = new Random(42);
+    for (int length = 1; length <= 70; ++length) {
+      final float[] x = new float[length + 3];
+      final float[] y = new float[length + 5];
+      for (int k = 0; k < x.length; ++k) {
+        x[k] = (float) random.nextGaussian();
+      }
+      for (int k = 0; k < y.length; ++k) {
+        y[k] = (float) random.nextGaussian();
+      }
+      final String msg = selected.name() + " " + length;
+      assertEquals(msg, scalar.squaredEuclidean(x, 3, y, 5, length), selected.squaredEuclidean(x, 3, y, 5, length), 1e-4 * length);
+      assertEquals(msg, scalar.manhattan(x, 3, y, 5, length), selected.manhattan(x, 3, y, 5, length), 1e-4 * length);
+      assertEquals(msg, scalar.cosine(x, 3, y, 5, length), selected.cosine(x, 3, y, 5, length), 1e-4);
+      assertEquals(msg, scalar.correlation(x, 3, y, 5, length), selected.correlation(x, 3, y, 5, length), 1e-4);
+    }
+  }
+
+  // Prepared values computed with a kernel give a zero distance from a point to itself
+  public void testPreparedSelfDistance() {
+    final Random random = new Random(5);
+    for (final DistanceKernels kernels : new DistanceKernels[] {new DistanceKernels(), DistanceKernels.SINGLETON}) {
+      for (int length = 1; length <= 70; ++length) {
+        final float[] x = new float[length];
+        for (int k = 0; k < length; ++k) {
+          x[k] = (float) random.nextGaussian() * 1000;
+        }
+        final String msg = kernels.name() + " " + length;
+        final double norm = kernels.dot(x, 0, x, 0, length);
+        assertEquals(msg, 0, DistanceKernels.preparedCosine(kernels.dot(x, 0, x, 0, length), norm, norm), 0);
+        float mu = 0;
+        for (final float xi : x) {
+          mu += xi;
+        }
+        mu /= length;
+        final float centredNorm = kernels.centredDot(x, 0, mu, x, 0, mu, length);
+        assertEquals(msg, 0, DistanceKernels.preparedCorrelation(kernels.centredDot(x, 0, mu, x, 0, mu, length), centredNorm, centredNorm), 0);
+        // Nearly parallel points never have negative distance
+        assertTrue(msg, DistanceKernels.preparedCosine(norm * (1 + 1e-12), norm, norm) >= 0);
+        assertTrue(msg, DistanceKernels.preparedCorrelation(centredNorm * 1.0000001F, centredNorm, centredNorm) >= 0);
+      }
+    }
+  }
+
+  public void testDegenerate() {
+    final float[] zero = new float[20];
+    final float[] one = new float[20];
+    one[7] = 1;
+    final DistanceKernels kernels = DistanceKernels.SINGLETON;
+    assertEquals(0, kernels.cosine(zero, 0, zero, 0, 20), 0);
+    assertEquals(1, kernels.cosine(zero, 0, one, 0, 20), 0);
+    assertEquals(0, kernels.correlation(zero, 0, zero, 0, 20), 0);
+    assertEquals(1, kernels.squaredEuclidean(zero, 0, one, 0, 20), 0);
+    assertEquals(1, kernels.manhattan(zero, 0, one, 0, 20), 0);
+  }
+
+  public void testMetricsUseKernels() {
+    final float[] x = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+    final float[] y = {2, 2, 1, 4, 7, 6, 0, 8, 1};
+    assertEquals((float) Math.sqrt(DistanceKernels.SINGLETON.squaredEuclidean(x, 0, y, 0, 9)), EuclideanMetric.SINGLETON.distance(x, y), 0);
+    assertEquals(DistanceKernels.SINGLETON.squaredEuclidean(x, 0, y, 0, 9), ReducedEuclideanMetric.SINGLETON.distance(x, y), 0);
+    assertEquals(DistanceKernels.SINGLETON.manhattan(x, 0, y, 0, 9), ManhattanMetric.SINGLETON.distance(x, y), 0);
+    assertEquals(DistanceKernels.SINGLETON.cosine(x, 0, y, 0, 9), CosineMetric.SINGLETON.distance(x, y), 0);
+    assertEquals(DistanceKernels.SINGLETON.correlation(x, 0, y, 0, 9), CorrelationMetric.SINGLETON.distance(x, y), 0);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * BSD 3-Clause License
+ * Copyright (c) 2017, Leland McInnes, 2019 Tag.bio (Java port).
+ * See LICENSE.txt.
+ */
+package tagbio.umap.metric;
+
+import java.util.Random;
+
+/**
+ * Compares the scalar distance kernels with the selected kernels across a range
+ * of dimensions.  To include the SIMD kernels, build with the <code>vector</code>
+ * profile and run with <code>--add-modules jdk.incubator.vector</code>.
+ * Prints nanoseconds per distance evaluation.
+ * @author Sean A. Irvine
+ */
+public final class DistanceKernelsTiming {
+
+  private DistanceKernelsTiming() { }
+
+  private interface Kernel {
+    float apply(DistanceKernels kernels, float[] x, int xOffset, float[] y, int yOffset, int length);
+  }
+
+  private static final String[] NAMES = {"euclidean", "manhattan", "cosine", "correlation"};
+  private static final Kernel[] KERNELS = {
+    DistanceKernels::squaredEuclidean,
+    DistanceKernels::manhattan,
+    DistanceKernels::cosine,
+    DistanceKernels::correlation,
+  };
+
+  // Sink for results so that the computation is not optimized away
+  private static float sSink = 0;
+
+  private static double time(final DistanceKernels kernels, final Kernel kernel, final float[][] data, final int dim, final long evaluations) {
+    final long start = System.nanoTime();
+    for (long e = 0; e < evaluations; ) {
+      for (int i = 1; i < data.length && e < evaluations; ++i, ++e) {
+        sSink += kernel.apply(kernels, data[i - 1], 0, data[i], 0, dim);
+      }
+    }
+    return (System.nanoTime() - start) / (double) evaluations;
+  }
+
+  public static void main(final String[] args) {
+    final DistanceKernels scalar = new DistanceKernels();
+    final DistanceKernels selected = DistanceKernels.SINGLETON;
+    final Random random = new Random(42);
+    System.out.println("dim\tmetric\tscalar\t" + selected.name() + "\tspeedup");
+    for (int dim = 16; dim <= 1024; dim *= 2) {
+      final float[][] data = new float[256][dim];
+      for (final float[] row : data) {
+        for (int k = 0; k < dim; ++k) {
+          row[k] = (float) random.nextGaussian();
+        }
+      }
+      final long evaluations = Math.max(100000, 100000000L / dim);
+      for (int m = 0; m < KERNELS.length; ++m) {
+        // Warm up both versions before measuring
+        time(scalar, KERNELS[m], data, dim, evaluations);
+        time(selected, KERNELS[m], data, dim, evaluations);
+        final double s = time(scalar, KERNELS[m], data, dim, evaluations);
+        final double v = time(selected, KERNELS[m], data, dim, evaluations);
+        System.out.println(String.format("%d\t%s\t%.1f\t%.1f\t%.2f", dim, NAMES[m], s, v, s / v));
+      }
+    }
+    System.out.println(sSink == 0 ? "" : " ");
+  }
+}